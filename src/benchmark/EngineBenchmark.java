@@ -0,0 +1,739 @@
+package benchmark;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import database.BTree;
+import database.DataFile;
+import database.DataManager;
+import database.DataRecord;
+import database.Index;
+import database.IndexStatistics;
+import database.Predicate;
+
+// Times the engine's hot paths over records generated by MovieData. Every
+// case runs WARMUP_ROUNDS untimed rounds and then ROUNDS timed ones, with
+// the same seed each time, and reports the best and median round in
+// nanoseconds per operation.
+//
+// Usage: java benchmark.EngineBenchmark [numRecords] [case name prefix]
+public class EngineBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 7;
+	
+	private static final long SEED = 42;
+	
+	private static final String FILE_NAME = "bench.file";
+	
+	private static final String INDEXED_COLUMNS[] = { "Title", "Director", "Year" };
+	
+	// One benchmark. setUp() and tearDown() run around every round and are
+	// not timed; run() returns the number of operations it performed.
+	// finish() releases anything kept from one round to the next.
+	private static abstract class Case
+	{
+		final String _name;
+		
+		Case(String name)
+		{
+			_name = name;
+		}
+		
+		void setUp()
+		{
+		}
+		
+		abstract int run();
+		
+		void tearDown()
+		{
+		}
+		
+		void finish()
+		{
+		}
+	}
+	
+	private static List<Map<String,String>> _records;
+	private static DataRecord _dataRecords[];
+	
+	public static void main(String[] args)
+	{
+		int numRecords = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		String prefix = (args.length > 1) ? args[1] : "";
+		
+		_records = MovieData.records(numRecords, SEED);
+		_dataRecords = new DataRecord[numRecords];
+		
+		for (int i = 0; i < numRecords; i++)
+		{
+			_dataRecords[i] = new DataRecord(i, _records.get(i));
+		}
+		
+		System.out.println("records: " + numRecords);
+		System.out.println(String.format("%-32s %14s %14s", "case", "best ns/op", "median ns/op"));
+		
+		for (Case c : cases())
+		{
+			if (c._name.startsWith(prefix))
+			{
+				measure(c);
+			}
+		}
+	}
+	
+	private static List<Case> cases()
+	{
+		List<Case> cases = new ArrayList<Case>();
+		
+		cases.add(new TreeInsert("btree.insert.sequential", "Title", true));
+		cases.add(new TreeInsert("btree.insert.random", "Title", false));
+		cases.add(new TreeInsert("btree.insert.duplicates", "Year", false));
+		
+		cases.add(new Case("btree.getRecordIds")
+		{
+			BTree _tree;
+			
+			void setUp()
+			{
+				if (_tree == null)
+				{
+					_tree = new BTree();
+					
+					for (DataRecord record : _dataRecords)
+					{
+						_tree.insert(record.getValues().get("Title"), record.getRecordId());
+					}
+				}
+			}
+			
+			int run()
+			{
+				int found = 0;
+				
+				for (int i = _dataRecords.length - 1; i >= 0; i--)
+				{
+					if (_tree.getRecordIds(_dataRecords[i].getValues().get("Title")) != null)
+					{
+						found++;
+					}
+				}
+				
+				check(found == _dataRecords.length, "lookups missed keys");
+				
+				return found;
+			}
+		});
+		
+		cases.add(new Case("index.iterator.drain")
+		{
+			DataFile _file;
+			Index _index;
+			Set<String> _directors;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(0);
+					_index = _file.createIndex("bench.director", "Director");
+					
+					_directors = new TreeSet<String>();
+					
+					for (Map<String,String> record : _records)
+					{
+						_directors.add(record.get("Director"));
+					}
+				}
+			}
+			
+			int run()
+			{
+				int count = 0;
+				
+				for (String director : _directors)
+				{
+					Iterator<Integer> it = _index.iterator(director);
+					
+					while (it.hasNext())
+					{
+						it.next();
+						count++;
+					}
+				}
+				
+				check(count == _records.size(), "iterators missed records");
+				
+				return count;
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		cases.add(new TitlesByDirector("index.titlesByDirector.records", false));
+		cases.add(new TitlesByDirector("index.titlesByDirector.covering", true));
+		
+		cases.add(new DirectorYearLookup("index.directorYear.filter", false));
+		cases.add(new DirectorYearLookup("index.directorYear.composite", true));
+		
+		cases.add(new Case("index.directorYear.query")
+		{
+			DataFile _file;
+			Set<List<String>> _pairs;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(0);
+					_file.createIndex("bench.director", "Director");
+					_file.createIndex("bench.year", "Year");
+					
+					_pairs = new HashSet<List<String>>();
+					
+					for (Map<String,String> record : _records)
+					{
+						_pairs.add(Arrays.asList(record.get("Director"), record.get("Year")));
+					}
+				}
+			}
+			
+			int run()
+			{
+				int count = 0;
+				
+				for (List<String> pair : _pairs)
+				{
+					Iterator<Integer> it = _file.query(Predicate.and(Predicate.equal("Director", pair.get(0)),
+					                                                 Predicate.equal("Year", pair.get(1))));
+					
+					while (it.hasNext())
+					{
+						it.next();
+						count++;
+					}
+				}
+				
+				check(count == _records.size(), "queries missed records");
+				
+				return _pairs.size();
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		cases.add(new Case("index.director.statistics")
+		{
+			DataFile _file;
+			Index _index;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(0);
+					_index = _file.createIndex("bench.director", "Director");
+				}
+			}
+			
+			int run()
+			{
+				IndexStatistics stats = _index.computeStatistics(IndexStatistics.DEFAULT_BUCKETS);
+				
+				check(stats.getRecordCount() == _records.size(), "statistics missed records");
+				
+				return stats.getKeyCount();
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		for (int numIndexes = 0; numIndexes <= INDEXED_COLUMNS.length; numIndexes++)
+		{
+			final int indexes = numIndexes;
+			
+			cases.add(new Case("datafile.insertRecord." + indexes + "idx")
+			{
+				DataFile _file;
+				
+				void setUp()
+				{
+					_file = new DataFile(FILE_NAME, MovieData.descriptor());
+					
+					for (int i = 0; i < indexes; i++)
+					{
+						_file.createIndex("bench." + INDEXED_COLUMNS[i], INDEXED_COLUMNS[i]);
+					}
+				}
+				
+				int run()
+				{
+					for (Map<String,String> record : _records)
+					{
+						_file.insertRecord(record);
+					}
+					
+					return _records.size();
+				}
+				
+				void tearDown()
+				{
+					_file.dropFile();
+				}
+			});
+			
+			cases.add(new Case("datafile.insertAll." + indexes + "idx")
+			{
+				DataFile _file;
+				
+				void setUp()
+				{
+					_file = new DataFile(FILE_NAME, MovieData.descriptor());
+					
+					for (int i = 0; i < indexes; i++)
+					{
+						_file.createIndex("bench." + INDEXED_COLUMNS[i], INDEXED_COLUMNS[i]);
+					}
+				}
+				
+				int run()
+				{
+					_file.insertAll(_records);
+					
+					return _records.size();
+				}
+				
+				void tearDown()
+				{
+					_file.dropFile();
+				}
+			});
+		}
+		
+		cases.add(new Case("datafile.insertRecord.columnar")
+		{
+			DataFile _file;
+			
+			void setUp()
+			{
+				_file = new DataFile(FILE_NAME, MovieData.descriptor(), false, true);
+			}
+			
+			int run()
+			{
+				for (Map<String,String> record : _records)
+				{
+					_file.insertRecord(record);
+				}
+				
+				return _records.size();
+			}
+			
+			void tearDown()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		cases.add(new Case("datafile.createIndex")
+		{
+			DataFile _file;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(0);
+				}
+				_file.dropIndex("bench.title");
+			}
+			
+			int run()
+			{
+				_file.createIndex("bench.title", "Title");
+				
+				return _records.size();
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		cases.add(new Case("datafile.createIndexes.3idx")
+		{
+			DataFile _file;
+			Map<String,String> _columns;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(0);
+					_columns = new HashMap<String,String>();
+					
+					for (String column : INDEXED_COLUMNS)
+					{
+						_columns.put("bench." + column, column);
+					}
+				}
+				
+				for (String indexName : _columns.keySet())
+				{
+					_file.dropIndex(indexName);
+				}
+			}
+			
+			int run()
+			{
+				_file.createIndexes(_columns);
+				
+				return _records.size();
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		cases.add(new StreamScan("datafile.stream.sequential", false));
+		cases.add(new StreamScan("datafile.stream.parallel", true));
+		
+		cases.add(new Case("datafile.dumpRestore")
+		{
+			DataFile _file;
+			
+			void setUp()
+			{
+				if (_file == null)
+				{
+					_file = populate(1);
+				}
+			}
+			
+			int run()
+			{
+				_file.dumpFile();
+				
+				DataFile restored = DataManager.restoreFile(FILE_NAME);
+				
+				check(restored.getRecord(_records.size() - 1) != null, "restore lost records");
+				
+				return _records.size();
+			}
+			
+			void tearDown()
+			{
+				// Only DataManager.exit() lets go of a restored file
+				DataManager.exit();
+			}
+			
+			void finish()
+			{
+				_file.dropFile();
+			}
+		});
+		
+		return cases;
+	}
+	
+	// Counts the records of a year by filtering a stream of the whole file
+	private static class StreamScan extends Case
+	{
+		boolean _parallel;
+		
+		DataFile _file;
+		String _year;
+		long _expected;
+		
+		StreamScan(String name, boolean parallel)
+		{
+			super(name);
+			
+			_parallel = parallel;
+		}
+		
+		void setUp()
+		{
+			if (_file == null)
+			{
+				_file = populate(0);
+				_year = _records.get(0).get("Year");
+				
+				for (Map<String,String> record : _records)
+				{
+					if (record.get("Year").equals(_year))
+					{
+						_expected++;
+					}
+				}
+			}
+		}
+		
+		int run()
+		{
+			Stream<Map<String,String>> records = _parallel ? _file.stream().parallel() : _file.stream();
+			long count = records.filter(r -> r.get("Year").equals(_year)).count();
+			
+			check(count == _expected, "stream missed records");
+			
+			return _records.size();
+		}
+		
+		void finish()
+		{
+			_file.dropFile();
+		}
+	}
+	
+	private static class TreeInsert extends Case
+	{
+		String _keys[];
+		boolean _sorted;
+		String _column;
+		
+		BTree _tree;
+		
+		TreeInsert(String name, String column, boolean sorted)
+		{
+			super(name);
+			
+			_column = column;
+			_sorted = sorted;
+		}
+		
+		void setUp()
+		{
+			if (_keys == null)
+			{
+				_keys = new String[_dataRecords.length];
+				
+				for (int i = 0; i < _keys.length; i++)
+				{
+					_keys[i] = _dataRecords[i].getValues().get(_column);
+				}
+				
+				if (_sorted)
+				{
+					Arrays.sort(_keys);
+				}
+			}
+			
+			_tree = new BTree();
+		}
+		
+		int run()
+		{
+			for (int i = 0; i < _keys.length; i++)
+			{
+				_tree.insert(_keys[i], i);
+			}
+			
+			return _keys.length;
+		}
+	}
+	
+	// Collects the titles of every director's films, either by reading the
+	// records an index on Director finds or from a covering index alone
+	private static class TitlesByDirector extends Case
+	{
+		boolean _covering;
+		
+		DataFile _file;
+		Index _index;
+		Set<String> _directors;
+		
+		TitlesByDirector(String name, boolean covering)
+		{
+			super(name);
+			
+			_covering = covering;
+		}
+		
+		void setUp()
+		{
+			if (_file == null)
+			{
+				_file = populate(0);
+				_index = _covering ? _file.createIndex("bench.director", "Director", Arrays.asList("Title"))
+				                   : _file.createIndex("bench.director", "Director");
+				
+				_directors = new HashSet<String>();
+				
+				for (Map<String,String> record : _records)
+				{
+					_directors.add(record.get("Director"));
+				}
+			}
+		}
+		
+		int run()
+		{
+			int count = 0;
+			
+			for (String director : _directors)
+			{
+				if (_covering)
+				{
+					Iterator<Map<String,String>> it = _index.projectionIterator(director);
+					
+					while (it.hasNext())
+					{
+						count += (it.next().get("Title") != null) ? 1 : 0;
+					}
+				}
+				else
+				{
+					Iterator<Integer> it = _index.iterator(director);
+					
+					while (it.hasNext())
+					{
+						count += (_file.getRecord(it.next()).get("Title") != null) ? 1 : 0;
+					}
+				}
+			}
+			
+			check(count == _records.size(), "lookups missed titles");
+			
+			return count;
+		}
+		
+		void finish()
+		{
+			_file.dropFile();
+		}
+	}
+	
+	// Looks up the records of every director and year, either through a
+	// composite index or through an index on Director and a filter on Year
+	private static class DirectorYearLookup extends Case
+	{
+		boolean _composite;
+		
+		DataFile _file;
+		Index _index;
+		Set<List<String>> _pairs;
+		
+		DirectorYearLookup(String name, boolean composite)
+		{
+			super(name);
+			
+			_composite = composite;
+		}
+		
+		void setUp()
+		{
+			if (_file == null)
+			{
+				_file = populate(0);
+				_index = _composite ? _file.createCompositeIndex("bench.directorYear", Arrays.asList("Director", "Year"))
+				                    : _file.createIndex("bench.director", "Director");
+				
+				_pairs = new HashSet<List<String>>();
+				
+				for (Map<String,String> record : _records)
+				{
+					_pairs.add(Arrays.asList(record.get("Director"), record.get("Year")));
+				}
+			}
+		}
+		
+		int run()
+		{
+			int count = 0;
+			
+			for (List<String> pair : _pairs)
+			{
+				Iterator<Integer> it = _composite ? _index.iterator(pair.get(0), pair.get(1))
+				                                  : _index.iterator(pair.get(0));
+				
+				while (it.hasNext())
+				{
+					int recordId = it.next();
+					
+					if (_composite || pair.get(1).equals(_file.getRecord(recordId).get("Year")))
+					{
+						count++;
+					}
+				}
+			}
+			
+			check(count == _records.size(), "lookups missed records");
+			
+			return _pairs.size();
+		}
+		
+		void finish()
+		{
+			_file.dropFile();
+		}
+	}
+	
+	// Returns a file holding every record, indexed over the first
+	// numIndexes of INDEXED_COLUMNS
+	private static DataFile populate(int numIndexes)
+	{
+		DataFile file = new DataFile(FILE_NAME, MovieData.descriptor());
+		
+		for (Map<String,String> record : _records)
+		{
+			file.insertRecord(record);
+		}
+		
+		for (int i = 0; i < numIndexes; i++)
+		{
+			file.createIndex("bench." + INDEXED_COLUMNS[i], INDEXED_COLUMNS[i]);
+		}
+		
+		return file;
+	}
+	
+	private static void measure(Case c)
+	{
+		long times[] = new long[ROUNDS];
+		int ops = 0;
+		
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			c.setUp();
+			
+			long start = System.nanoTime();
+			ops = c.run();
+			long elapsed = System.nanoTime() - start;
+			
+			c.tearDown();
+			
+			if (round >= WARMUP_ROUNDS)
+			{
+				times[round - WARMUP_ROUNDS] = elapsed;
+			}
+		}
+		
+		c.finish();
+		
+		Arrays.sort(times);
+		
+		System.out.println(String.format("%-32s %14.1f %14.1f", c._name,
+		                   (double)times[0] / ops, (double)times[ROUNDS / 2] / ops));
+	}
+	
+	private static void check(boolean condition, String message)
+	{
+		if (!condition)
+		{
+			throw new IllegalStateException("EngineBenchmark: " + message);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import java.util.*;
+
+// Generates records shaped like those in movieVault: unique 20-letter
+// titles, directors drawn from a pool about a third the size of the file,
+// years from 1950 to 2019 and budgets of up to six digits. A given seed
+// always produces the same records.
+public class MovieData
+{
+	public static final int TITLE_LENGTH    = 20;
+	public static final int DIRECTOR_LENGTH = 20;
+	
+	private MovieData()
+	{
+	}
+	
+	public static Map<String,Integer> descriptor()
+	{
+		Map<String,Integer> descriptor = new HashMap<String,Integer>();
+		
+		descriptor.put("Title", 20);
+		descriptor.put("Budget", 15);
+		descriptor.put("Director", 20);
+		descriptor.put("Year", 6);
+		
+		return descriptor;
+	}
+	
+	public static List<Map<String,String>> records(int count, long seed)
+	{
+		Random random = new Random(seed);
+		
+		String directors[] = new String[Math.max(1, count / 3)];
+		
+		for (int i = 0; i < directors.length; i++)
+		{
+			directors[i] = randomKey(random, DIRECTOR_LENGTH);
+		}
+		
+		List<Map<String,String>> records = new ArrayList<Map<String,String>>(count);
+		Set<String> titles = new HashSet<String>();
+		
+		while (records.size() < count)
+		{
+			String title = randomKey(random, TITLE_LENGTH);
+			
+			if (titles.add(title))
+			{
+				Map<String,String> record = new HashMap<String,String>();
+				
+				record.put("Title", title);
+				record.put("Budget", String.valueOf(random.nextInt(1000000)));
+				record.put("Director", directors[random.nextInt(directors.length)]);
+				record.put("Year", String.valueOf(1950 + random.nextInt(70)));
+				
+				records.add(record);
+			}
+		}
+		
+		return records;
+	}
+	
+	public static String randomKey(Random random, int length)
+	{
+		char chars[] = new char[length];
+		
+		for (int i = 0; i < length; i++)
+		{
+			chars[i] = (char)('a' + random.nextInt(26));
+		}
+		
+		return new String(chars);
+	}
+}
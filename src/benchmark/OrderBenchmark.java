@@ -0,0 +1,81 @@
+package benchmark;
+
+import java.util.*;
+
+import database.BTree;
+
+// Measures BTree insert and point lookup cost for a range of node orders.
+//
+// Usage: java benchmark.OrderBenchmark [numKeys]
+public class OrderBenchmark
+{
+	private static final int[] ORDERS = { 8, 16, 32, 64, 128, 256, 512 };
+	
+	private static final int ROUNDS = 5;
+	
+	public static void main(String[] args)
+	{
+		int numKeys = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		
+		String keys[] = new String[numKeys];
+		Random random = new Random(42);
+		
+		for (int i = 0; i < numKeys; i++)
+		{
+			keys[i] = randomKey(random, 20);
+		}
+		
+		System.out.println("keys: " + numKeys);
+		System.out.println(String.format("%8s %16s %16s", "order", "insert ns/op", "lookup ns/op"));
+		
+		for (int order : ORDERS)
+		{
+			long bestInsert = Long.MAX_VALUE;
+			long bestLookup = Long.MAX_VALUE;
+			
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				BTree tree = new BTree(order);
+				
+				long start = System.nanoTime();
+				for (int i = 0; i < numKeys; i++)
+				{
+					tree.insert(keys[i], i);
+				}
+				bestInsert = Math.min(bestInsert, System.nanoTime() - start);
+				
+				int found = 0;
+				
+				start = System.nanoTime();
+				for (int i = numKeys - 1; i >= 0; i--)
+				{
+					if (tree.getRecordIds(keys[i]) != null)
+					{
+						found++;
+					}
+				}
+				bestLookup = Math.min(bestLookup, System.nanoTime() - start);
+				
+				if (found != numKeys)
+				{
+					throw new IllegalStateException("OrderBenchmark: lookup missed keys");
+				}
+			}
+			
+			System.out.println(String.format("%8d %16.1f %16.1f", order,
+			                   (double)bestInsert / numKeys, (double)bestLookup / numKeys));
+		}
+	}
+	
+	private static String randomKey(Random random, int length)
+	{
+		char chars[] = new char[length];
+		
+		for (int i = 0; i < length; i++)
+		{
+			chars[i] = (char)('a' + random.nextInt(26));
+		}
+		
+		return new String(chars);
+	}
+}
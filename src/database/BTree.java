@@ -1,408 +1,2397 @@
 package database;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The tree may be used by many threads at once. Every node has a read-write
+// latch, taken top-down: readers hold at most a node and its child while
+// descending, and writers descend the same way and write-latch only the leaf
+// unless it would split or underflow. In that case they descend again with
+// write latches, letting go of everything above the lowest node that can
+// absorb the change. Siblings are only latched while their parent is
+// write-latched.
+//
+// A tree created in copy-on-write mode works differently: writers take
+// turns, copy every node they change along with the path above it, and
+// publish the new root with a single write. Published nodes never change
+// again, so readers use whichever root they find without latching anything
+// and see a consistent snapshot for as long as they hold it. Old versions
+// are reclaimed by the garbage collector once no reader refers to them.
 
 public class BTree implements Serializable
 {
-	private final int ORDER = 8;
+	public static final int DEFAULT_ORDER = 8;
+	
+	public static final double DEFAULT_FILL_FACTOR = 0.75;
+	
+	// insertAll() rebuilds the tree for batches of at least one entry per
+	// MERGE_RATIO already in it
+	private static final int MERGE_RATIO = 8;
 	
 	private static final long serialVersionUID = 8128671465444525120L;
 	
-	private class Node implements Serializable
+	private final int ORDER;
+	
+	private final boolean _copyOnWrite;
+	
+	// Static, so that nodes read back by readObject() below need no
+	// reference to the tree that holds them.
+	//
+	// Keys are held as KeyBytes. The bytes that every key in a node starts
+	// with are kept once in _prefix, and _keys holds what follows. Keys are
+	// only moved from one node to another while both are expanded, with an
+	// empty prefix, and the nodes are compressed again afterwards.
+	private static class Node implements Serializable
 	{
 		private static final long serialVersionUID = 5869161159086543508L;
 		
-		String  _keys[];
+		// Nodes are written in the form they had before keys were held as
+		// bytes, with String keys, so that trees written then can still be
+		// read. Their leaves held lists of records rather than Postings.
+		private static final ObjectStreamField serialPersistentFields[] =
+		{
+			new ObjectStreamField("_keys", String[].class),
+			new ObjectStreamField("_children", Object[].class),
+			new ObjectStreamField("_numKeys", int.class),
+			new ObjectStreamField("_isLeaf", boolean.class)
+		};
+		
+		byte    _prefix[];
+		byte    _keys[][];
 		Object  _children[];
 		int     _numKeys;
 		boolean _isLeaf;
 		
-		private Node()
+		transient ReentrantReadWriteLock _latch;
+		
+		private Node(int order)
 		{
-			_keys     = new String[ORDER];
-			_children = new Object[ORDER+1];
+			_prefix   = KeyBytes.EMPTY;
+			_keys     = new byte[order][];
+			_children = new Object[order+1];
 			_isLeaf   = true;
 			_numKeys  = 0;
+			_latch    = new ReentrantReadWriteLock();
 			
-			for (int i = 0; i < ORDER; i++)
+			for (int i = 0; i < order; i++)
 			{
 				_keys[i]     = null;
 				_children[i] = null;
 			}
-			_children[ORDER] = null;
+			_children[order] = null;
 		}
-	}
-	
-	Node _root;
-	
-	// Temporary results from operations:
-	Node   _newChild;
-	String _newKey;
-	
-	public BTree()
-	{
-		_root = null;
-	}
-	
-	public List<DataRecord> getRecordList(String key)
-	{
-		return getRecordList(_root, key);
-	}
-	
-	private List<DataRecord> getRecordList(Node node, String key)
-	{
-		List<DataRecord> recordList = null;
 		
-		if (node._isLeaf)
+		// The link to the next leaf is left out. Following it would recurse
+		// once per leaf, so BTree.readObject() relinks the leaves instead.
+		private void writeObject(ObjectOutputStream out) throws IOException
 		{
-			for (int i = 0; i < node._numKeys; i++)
+			Object children[] = _children;
+			int link = _children.length - 1;
+			
+			if (_isLeaf && (_children[link] != null))
 			{
-				if (key.compareTo(node._keys[i]) == 0)
-				{
-					recordList = (List<DataRecord>)node._children[i];
-					break;
-				}
-				else if (key.compareTo(node._keys[i]) < 0)
-				{
-					break;
-				}
+				children = _children.clone();
+				children[link] = null;
 			}
 			
-			return recordList;
-		}
-		else
-		{
-			int index = 0;
-			while ((index < node._numKeys) && (key.compareTo(node._keys[index]) >= 0))
+			String keys[] = new String[_keys.length];
+			
+			for (int i = 0; i < _numKeys; i++)
 			{
-				index ++;
+				keys[i] = keyString(i);
 			}
 			
-			return getRecordList((Node)node._children[index], key);
+			ObjectOutputStream.PutField fields = out.putFields();
+			fields.put("_keys", keys);
+			fields.put("_children", children);
+			fields.put("_numKeys", _numKeys);
+			fields.put("_isLeaf", _isLeaf);
+			out.writeFields();
 		}
-	}
-	
-	public String printTree()
-	{
-		StringBuilder stringBuilder = new StringBuilder("");
-		printTreeInorder(_root, 0, stringBuilder);
-		return new String(stringBuilder.toString());
-	}
-	
-	private void printTreeInorder(Node node, int level, StringBuilder s)
-	{
-		if (node._isLeaf)
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
 		{
-			for (int i = 0; i < node._numKeys; i++)
+			ObjectInputStream.GetField fields = in.readFields();
+			String keys[] = (String[])fields.get("_keys", null);
+			
+			_prefix   = KeyBytes.EMPTY;
+			_keys     = new byte[keys.length][];
+			_children = (Object[])fields.get("_children", null);
+			_numKeys  = fields.get("_numKeys", 0);
+			_isLeaf   = fields.get("_isLeaf", false);
+			_latch    = new ReentrantReadWriteLock();
+			
+			for (int i = 0; i < _numKeys; i++)
 			{
-				List<DataRecord> recordList =
-					(List<DataRecord>)node._children[i];
-				
-				Iterator<DataRecord> recordIter = recordList.iterator();
+				_keys[i] = KeyBytes.encode(keys[i]);
 				
-				while (recordIter.hasNext())
+				if (_isLeaf && (_children[i] instanceof List))
 				{
-					DataRecord record = recordIter.next();
-
-					if (!record.isDeletePending())
-					{
-						for (int j = 0; j < level; j++)
-						{
-							s.append("\t");
-						}
-
-						s.append(node._keys[i]);
-						s.append(" ");
-						s.append(record.getRecordId());
-						s.append("\n");
-					}
+					_children[i] = postingsOf((List<?>)_children[i]);
 				}
 			}
+			
+			compress();
 		}
-		else
+		
+		private static Postings postingsOf(List<?> records)
 		{
-			for (int i = 0; i < node._numKeys; i++)
+			int ids[] = new int[records.size()];
+			int count = 0;
+			
+			for (Object record : records)
+			{
+				ids[count++] = ((DataRecord)record).getRecordId();
+			}
+			
+			Arrays.sort(ids);
+			
+			return Postings.fromSorted(ids, count);
+		}
+		
+		// Returns the position of key, or where it would be inserted, as
+		// Arrays.binarySearch() does
+		int search(byte key[])
+		{
+			int prefixLength = _prefix.length;
+			int cmp = KeyBytes.compare(_prefix, 0, prefixLength, key, 0, Math.min(prefixLength, key.length));
+			
+			if (cmp > 0)
+			{
+				return -1;
+			}
+			else if (cmp < 0)
+			{
+				return -(_numKeys + 1);
+			}
+			
+			int low  = 0;
+			int high = _numKeys - 1;
+			
+			while (low <= high)
 			{
-				printTreeInorder((Node)node._children[i], level+1, s);
+				int mid = (low + high) >>> 1;
 				
-				for (int j = 0; j < level; j++)
+				cmp = KeyBytes.compare(_keys[mid], 0, _keys[mid].length, key, prefixLength, key.length);
+				
+				if (cmp < 0)
 				{
-					s.append("\t");
+					low = mid + 1;
+				}
+				else if (cmp > 0)
+				{
+					high = mid - 1;
+				}
+				else
+				{
+					return mid;
 				}
-				s.append(node._keys[i]);
-				s.append("\n");
 			}
-			printTreeInorder((Node)node._children[node._numKeys], level+1, s);
+			
+			return -(low + 1);
 		}
-	}
-	
-	public void insert(String key, DataRecord record)
-	{
-		_newChild = null;
-		_newKey   = null;
 		
-		if (_root == null)
+		// Compares key i with key
+		int compare(int i, byte key[])
 		{
-			_root = new Node();
-			_root._keys[0] = key;
+			int prefixLength = _prefix.length;
+			int cmp = KeyBytes.compare(_prefix, 0, prefixLength, key, 0, Math.min(prefixLength, key.length));
 			
-			List<DataRecord> recordList = new LinkedList<DataRecord>();
-			recordList.add(record);
-			_root._children[0] = recordList;
+			if (cmp != 0)
+			{
+				return cmp;
+			}
 			
-			_root._numKeys = 1;
+			return KeyBytes.compare(_keys[i], 0, _keys[i].length, key, prefixLength, key.length);
 		}
-		else
+		
+		byte[] key(int i)
 		{
-			insert(_root, key, record);
-			
-			if (_newChild != null)
+			return KeyBytes.concat(_prefix, _keys[i]);
+		}
+		
+		String keyString(int i)
+		{
+			return KeyBytes.decode(_prefix, _keys[i]);
+		}
+		
+		// Returns what to store in _keys for key. The node is expanded
+		// first if key does not start with its prefix.
+		byte[] entryFor(byte key[])
+		{
+			if (!KeyBytes.startsWith(key, _prefix))
 			{
-				createNewRoot();
+				expand();
 			}
+			
+			return (_prefix.length == 0) ? key : Arrays.copyOfRange(key, _prefix.length, key.length);
 		}
-	}
-	
-	private void insert(Node node, String key, DataRecord record)
-	{
-		_newChild = null;
-		_newKey   = null;
 		
-		if (node._isLeaf)
+		void expand()
 		{
-			insertIntoLeaf(node, key, record);
+			if (_prefix.length > 0)
+			{
+				for (int i = 0; i < _numKeys; i++)
+				{
+					_keys[i] = KeyBytes.concat(_prefix, _keys[i]);
+				}
+				
+				_prefix = KeyBytes.EMPTY;
+			}
 		}
-		else
+		
+		// Moves the bytes that every key shares into the prefix. The keys
+		// are sorted, so those are the bytes the first and last share.
+		void compress()
 		{
-			int index = 0;
-			while ((index < node._numKeys) && (key.compareTo(node._keys[index]) >= 0))
+			if (_numKeys < 2)
 			{
-				index ++;
+				return;
 			}
 			
-			insert((Node)node._children[index], key, record);
+			int shared = KeyBytes.commonPrefixLength(_keys[0], _keys[_numKeys-1]);
 			
-			if (_newChild != null)
+			if (shared > 0)
 			{
-				if (node._numKeys < ORDER)
-				{
-					insertIntoNonfullInteriorNode(node);
-				}
-				else
+				_prefix = KeyBytes.concat(_prefix, Arrays.copyOf(_keys[0], shared));
+				
+				for (int i = 0; i < _numKeys; i++)
 				{
-					splitInteriorNode(node);
+					_keys[i] = Arrays.copyOfRange(_keys[i], shared, _keys[i].length);
 				}
 			}
 		}
 	}
 	
-	private void insertIntoNonfullInteriorNode(Node node)
+	// The node split off to the right of a full node, and the key that
+	// separates it from the left half in their parent
+	private class Split
 	{
-		// Locate the insertion index
-		int index = 0;
-		while ((index < node._numKeys) && (_newKey.compareTo(node._keys[index]) > 0))
+		Node _right;
+		byte _key[];
+		
+		private Split(Node right, byte key[])
+		{
+			_right = right;
+			_key   = key;
+		}
+	}
+	
+	volatile Node _root;
+	
+	// Guards _root itself. It is only held until the root is latched, or by
+	// a writer that may replace the root.
+	transient ReentrantReadWriteLock _rootLatch;
+	
+	// Counts changes to the set of keys, so that range iterators know when
+	// their position in a leaf may have shifted
+	AtomicInteger _modCount;
+	
+	// Number of records in the tree, and of distinct keys
+	AtomicInteger _size;
+	AtomicInteger _numKeys;
+	
+	public BTree()
+	{
+		this(DEFAULT_ORDER);
+	}
+	
+	public BTree(int order)
+	{
+		this(order, false);
+	}
+	
+	public BTree(int order, boolean copyOnWrite)
+	{
+		if ((order < 4) || (order % 2 != 0))
 		{
-			index ++;
+			throw new IllegalArgumentException
+			   ("BTree::BTree(): order must be an even number of at least 4");
 		}
 		
-		for (int tempIndex = node._numKeys; tempIndex > index; tempIndex--)
+		ORDER = order;
+		_copyOnWrite = copyOnWrite;
+		_root = null;
+		_rootLatch = new ReentrantReadWriteLock();
+		_modCount = new AtomicInteger();
+		_size = new AtomicInteger();
+		_numKeys = new AtomicInteger();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		_rootLatch = new ReentrantReadWriteLock();
+		
+		if (_size == null)
 		{
-			node._keys[tempIndex] = node._keys[tempIndex-1];
-			node._children[tempIndex+1] = node._children[tempIndex];
+			// Written before changes and records were counted
+			_modCount = new AtomicInteger();
+			_size = new AtomicInteger(countRecords(_root));
 		}
 		
-		node._keys[index] = _newKey;
-		node._children[index+1] = _newChild;
-		node._numKeys++;
+		if (_numKeys == null)
+		{
+			// Written before distinct keys were counted
+			_numKeys = new AtomicInteger(countKeys(_root));
+		}
 		
-		_newChild = null;
-		_newKey   = null;
+		// Leaves are not chained in copy-on-write mode, since a link would
+		// keep the old versions of its neighbour alive
+		if ((_root != null) && !_copyOnWrite)
+		{
+			linkLeaves(_root, null);
+		}
 	}
 	
-	private void splitInteriorNode(Node node)
+	// Chains the leaves under node in key order, starting after previousLeaf,
+	// and returns the last of them
+	private Node linkLeaves(Node node, Node previousLeaf)
 	{
-		// Create temporary arrays to imitate an extended node
-		String tempKeys[] = new String[ORDER+1];
-		Object tempChildren[] = new Node[ORDER+2];
-		
-		// Copy all keys from the filled node to the temp key array
-		for (int i = 0; i < node._numKeys; i++)
+		if (node._isLeaf)
 		{
-			tempKeys[i] = node._keys[i];
+			if (previousLeaf != null)
+			{
+				previousLeaf._children[ORDER] = node;
+			}
+			
+			return node;
 		}
 		
-		// Copy all children from filled node to the temp children array
 		for (int i = 0; i <= node._numKeys; i++)
 		{
-			tempChildren[i] = node._children[i];
+			previousLeaf = linkLeaves((Node)node._children[i], previousLeaf);
 		}
 		
-		// Locate the insertion index in the temp node
-		int index = 0;
-		while ((index < node._numKeys) && (_newKey.compareTo(node._keys[index]) > 0))
+		return previousLeaf;
+	}
+	
+	public int getOrder()
+	{
+		return ORDER;
+	}
+	
+	public boolean isCopyOnWrite()
+	{
+		return _copyOnWrite;
+	}
+	
+	// Returns the number of records held in the tree
+	public int size()
+	{
+		return _size.get();
+	}
+	
+	// Returns the number of distinct keys in the tree
+	public int keyCount()
+	{
+		return _numKeys.get();
+	}
+	
+	// Returns the number of levels of nodes, 0 for an empty tree. Every leaf
+	// is at the same depth, so this follows the leftmost path down.
+	public int height()
+	{
+		int height = 0;
+		
+		for (Node node = _root; node != null; node = node._isLeaf ? null : (Node)node._children[0])
 		{
-			index ++;
+			height++;
 		}
 		
-		// Insert the new key and child into the temp arrays
-		for (int tempIndex = ORDER; tempIndex > index; tempIndex--)
+		return height;
+	}
+	
+	private static int countKeys(Node node)
+	{
+		if (node == null)
 		{
-			tempKeys[tempIndex] = tempKeys[tempIndex-1];
-			tempChildren[tempIndex+1] = tempChildren[tempIndex];
+			return 0;
+		}
+		else if (node._isLeaf)
+		{
+			return node._numKeys;
 		}
-		tempKeys[index] = _newKey;
-		tempChildren[index+1] = _newChild;
-
-		// Create a new interior node and copy the appropriate keys and
-		// children to it
-		Node rightNode = new Node();
 		
-		int offset = ORDER / 2 + 1;
+		int count = 0;
 		
-		for (int i = 0; i < (ORDER / 2); i++)
+		for (int i = 0; i <= node._numKeys; i++)
 		{
-			rightNode._keys[i] = tempKeys[i+offset];
+			count += countKeys((Node)node._children[i]);
 		}
 		
-		for (int i = 0; i < (ORDER / 2) + 1; i++)
+		return count;
+	}
+	
+	private static int countRecords(Node node)
+	{
+		if (node == null)
 		{
-			rightNode._children[i] = tempChildren[i+offset];
+			return 0;
 		}
 		
-		rightNode._numKeys = ORDER / 2;
-		rightNode._isLeaf = false;
+		int count = 0;
 		
-		// Repopulate the left node, but first null everything
-		for (int i = 0; i < ORDER; i++)
+		for (int i = 0; i < node._numKeys + (node._isLeaf ? 0 : 1); i++)
 		{
-			node._keys[i] = null;
-			node._children[i] = null;
+			count += node._isLeaf ? ((Postings)node._children[i]).size()
+			                      : countRecords((Node)node._children[i]);
 		}
-		node._children[ORDER] = null;
 		
-		for (int i = 0; i < (ORDER / 2); i++)
+		return count;
+	}
+	
+	// Reports every node and then every key, in order, with its number of
+	// records to builder. Nodes are read-latched from the root down to the
+	// one being read, so writers wait only where the walk is.
+	void addStatistics(IndexStatistics.Builder builder)
+	{
+		if (_copyOnWrite)
 		{
-			node._keys[i] = tempKeys[i];
+			addStatistics(_root, 0, builder, false);
+			return;
 		}
 		
-		for (int i = 0; i < (ORDER / 2 + 1); i++)
+		_rootLatch.readLock().lock();
+		
+		Node root = _root;
+		
+		if (root == null)
 		{
-			node._children[i] = tempChildren[i];
+			_rootLatch.readLock().unlock();
+			return;
 		}
 		
-		node._numKeys = ORDER / 2;
+		root._latch.readLock().lock();
+		_rootLatch.readLock().unlock();
 		
-		_newChild = rightNode;
-		_newKey = tempKeys[ORDER / 2];
+		try
+		{
+			addStatistics(root, 0, builder, true);
+		}
+		finally
+		{
+			root._latch.readLock().unlock();
+		}
 	}
 	
-	private void insertIntoLeaf(Node leaf, String key, DataRecord record)
+	// Called with node latched if latched is set
+	private void addStatistics(Node node, int depth, IndexStatistics.Builder builder, boolean latched)
 	{
-		boolean uniqueKey = true;
+		if (node == null)
+		{
+			return;
+		}
 		
-		for (int i = 0; i < leaf._numKeys; i++)
+		builder.node(depth, node._isLeaf, (double)node._numKeys / ORDER);
+		
+		if (node._isLeaf)
 		{
-			if (leaf._keys[i].compareTo(key) == 0)
+			for (int i = 0; i < node._numKeys; i++)
 			{
-				uniqueKey = false;
-				
-				List<DataRecord> recordList =
-					(List<DataRecord>)leaf._children[i];
-				
-				recordList.add(record);
-				
-				break;
+				builder.key(node.keyString(i), ((Postings)node._children[i]).size());
 			}
+			
+			return;
 		}
 		
-		if (uniqueKey)
+		for (int i = 0; i <= node._numKeys; i++)
 		{
-			if (leaf._numKeys < ORDER)
+			Node child = (Node)node._children[i];
+			
+			if (latched)
 			{
-				insertIntoNonfullLeaf(leaf, key, record);
+				child._latch.readLock().lock();
 			}
-			else
+			
+			try
+			{
+				addStatistics(child, depth + 1, builder, latched);
+			}
+			finally
 			{
-				splitLeaf(leaf, key, record);
+				if (latched)
+				{
+					child._latch.readLock().unlock();
+				}
 			}
 		}
 	}
 	
-	private void insertIntoNonfullLeaf(Node leaf, String key, DataRecord record)
+	// Returns the index of the child subtree that may contain key. Keys equal
+	// to a separator live in the subtree to its right.
+	private int findChildIndex(Node node, byte key[])
 	{
-		// Locate the insertion index
-		int index = 0;
-		while ((index < leaf._numKeys) && (key.compareTo(leaf._keys[index]) > 0))
-		{
-			index ++;
-		}
-		
-		for (int tempIndex = leaf._numKeys; tempIndex > index; tempIndex--)
-		{
-			leaf._keys[tempIndex] = leaf._keys[tempIndex-1];
-			leaf._children[tempIndex] = leaf._children[tempIndex-1];
-		}
+		int index = node.search(key);
 		
-		leaf._keys[index] = key;
-		
-		List<DataRecord> recordList = new LinkedList<DataRecord>();
-		recordList.add(record);
-		leaf._children[index] = recordList;
-		
-		leaf._numKeys++;
+		return (index >= 0) ? index + 1 : -(index + 1);
+	}
+	
+	// Returns the position of key in the node, or the position at which it
+	// would be inserted if it is not present.
+	private int findKeyIndex(Node node, byte key[])
+	{
+		int index = node.search(key);
 		
-		_newChild = null;
-		_newKey   = null;
+		return (index >= 0) ? index : -(index + 1);
 	}
 	
-	private void splitLeaf(Node leaf, String key, DataRecord record)
+	// Returns the ids of the records stored under key, or null if there are
+	// none. The returned list is never changed afterwards; inserts and
+	// deletes replace it in the leaf instead.
+	public Postings getRecordIds(String key)
 	{
-		Node rightLeaf = new Node();
+		byte keyBytes[] = KeyBytes.encode(key);
 		
-		int indexOffset = ORDER / 2;
+		if (_copyOnWrite)
+		{
+			return getRecordIds(findLeafInSnapshot(_root, keyBytes), keyBytes);
+		}
 		
-		// Move elements to new leaf and remove references from old leaf
-		for (int i = 0; i < indexOffset; i++)
+		Node leaf = findLeaf(keyBytes, false);
+		
+		if (leaf == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			return getRecordIds(leaf, keyBytes);
+		}
+		finally
+		{
+			leaf._latch.readLock().unlock();
+		}
+	}
+	
+	private Postings getRecordIds(Node leaf, byte key[])
+	{
+		Postings recordIds = null;
+		
+		if (leaf != null)
+		{
+			int index = findKeyIndex(leaf, key);
+			
+			if ((index < leaf._numKeys) && (leaf.compare(index, key) == 0))
+			{
+				recordIds = (Postings)leaf._children[index];
+			}
+		}
+		
+		return recordIds;
+	}
+	
+	// Descends from root, one version of a copy-on-write tree, to the leaf
+	// that may hold key
+	private Node findLeafInSnapshot(Node root, byte key[])
+	{
+		Node node = root;
+		
+		while ((node != null) && !node._isLeaf)
+		{
+			node = (Node)node._children[(key != null) ? findChildIndex(node, key) : 0];
+		}
+		
+		return node;
+	}
+	
+	// Descends to the leaf that may hold key, or the leftmost leaf for a null
+	// key, read-latching each node before letting go of its parent. The leaf
+	// is returned read-latched, or write-latched if exclusive is set.
+	private Node findLeaf(byte key[], boolean exclusive)
+	{
+		_rootLatch.readLock().lock();
+		
+		Node node = _root;
+		
+		if (node == null)
+		{
+			_rootLatch.readLock().unlock();
+			return null;
+		}
+		
+		latch(node, exclusive && node._isLeaf);
+		_rootLatch.readLock().unlock();
+		
+		while (!node._isLeaf)
+		{
+			Node child = (Node)node._children[(key != null) ? findChildIndex(node, key) : 0];
+			
+			latch(child, exclusive && child._isLeaf);
+			node._latch.readLock().unlock();
+			
+			node = child;
+		}
+		
+		return node;
+	}
+	
+	private void latch(Node node, boolean exclusive)
+	{
+		if (exclusive)
+		{
+			node._latch.writeLock().lock();
+		}
+		else
+		{
+			node._latch.readLock().lock();
+		}
+	}
+	
+	// Returns the ids of the records whose keys fall between fromKey and
+	// toKey, in key order. The tree is descended once to the first
+	// qualifying leaf, after which the leaf-to-leaf pointers are followed.
+	// A null bound leaves that end of the range open. In copy-on-write mode
+	// the iterator reads the version of the tree current when it was
+	// created.
+	public Iterator<Integer> range(String fromKey, boolean fromInclusive,
+	                               String toKey, boolean toInclusive)
+	{
+		return keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	KeyedIterator keyedRange(String fromKey, boolean fromInclusive,
+	                         String toKey, boolean toInclusive)
+	{
+		byte from[] = (fromKey != null) ? KeyBytes.encode(fromKey) : null;
+		byte to[]   = (toKey != null) ? KeyBytes.encode(toKey) : null;
+		
+		if (_copyOnWrite)
+		{
+			return new SnapshotIterator(_root, from, fromInclusive, to, toInclusive);
+		}
+		
+		return new RangeIterator(from, fromInclusive, to, toInclusive);
+	}
+	
+	// Returns a key that divides the keys between fromKey and toKey, taken
+	// from the highest node with more than one subtree in that range, so
+	// that the keys below it and those from it on are whole subtrees. The key
+	// lies strictly between the bounds, either of which may be null for an
+	// open end. Returns null if the range falls under a single leaf.
+	String splitKey(String fromKey, String toKey)
+	{
+		byte from[] = (fromKey != null) ? KeyBytes.encode(fromKey) : null;
+		byte to[]   = (toKey != null) ? KeyBytes.encode(toKey) : null;
+		
+		// A copy-on-write tree is read without latches, as a snapshot
+		boolean latched = !_copyOnWrite;
+		
+		if (latched)
+		{
+			_rootLatch.readLock().lock();
+		}
+		
+		Node node = _root;
+		
+		if (latched)
+		{
+			if (node != null)
+			{
+				node._latch.readLock().lock();
+			}
+			_rootLatch.readLock().unlock();
+		}
+		
+		if (node == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			while (!node._isLeaf)
+			{
+				// Keys first through last - 1 are above fromKey and below toKey
+				int first = (from != null) ? findChildIndex(node, from) : 0;
+				int last  = (to != null) ? findKeyIndex(node, to) : node._numKeys;
+				
+				if (first < last)
+				{
+					return node.keyString((first + last - 1) / 2);
+				}
+				
+				Node child = (Node)node._children[first];
+				
+				if (latched)
+				{
+					child._latch.readLock().lock();
+					node._latch.readLock().unlock();
+				}
+				
+				node = child;
+			}
+			
+			return null;
+		}
+		finally
+		{
+			if (latched)
+			{
+				node._latch.readLock().unlock();
+			}
+		}
+	}
+	
+	private class RangeIterator implements KeyedIterator
+	{
+		Node _leaf;
+		int  _index;
+		
+		Postings.Cursor _recordIter;
+		byte _lastKey[];
+		
+		// Where to descend to again if the tree changes under the iterator
+		byte    _seekKey[];
+		boolean _seekInclusive;
+		
+		byte    _toKey[];
+		boolean _toInclusive;
+		
+		int _expectedModCount;
+		
+		private RangeIterator(byte fromKey[], boolean fromInclusive,
+		                      byte toKey[], boolean toInclusive)
+		{
+			_recordIter  = null;
+			_lastKey     = null;
+			_toKey       = toKey;
+			_toInclusive = toInclusive;
+			
+			seek(fromKey, fromInclusive);
+		}
+		
+		// Positions the iterator on the first key at or after fromKey
+		private void seek(byte fromKey[], boolean fromInclusive)
+		{
+			_seekKey       = fromKey;
+			_seekInclusive = fromInclusive;
+			
+			_leaf  = findLeaf(fromKey, false);
+			_index = 0;
+			
+			if (_leaf != null)
+			{
+				try
+				{
+					_expectedModCount = _modCount.get();
+					
+					if (fromKey != null)
+					{
+						_index = findKeyIndex(_leaf, fromKey);
+						
+						if ((_index < _leaf._numKeys) && !fromInclusive &&
+						    (_leaf.compare(_index, fromKey) == 0))
+						{
+							_index++;
+						}
+					}
+				}
+				finally
+				{
+					_leaf._latch.readLock().unlock();
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while ((_recordIter == null) || !_recordIter.hasNext())
+			{
+				if (_leaf == null)
+				{
+					return false;
+				}
+				
+				// Only one leaf is latched at a time, so the iterator never
+				// holds up a writer rebalancing its neighbours
+				Node leaf = _leaf;
+				boolean stale = false;
+				
+				leaf._latch.readLock().lock();
+				
+				try
+				{
+					if (_expectedModCount != _modCount.get())
+					{
+						stale = true;
+					}
+					else if (_index >= leaf._numKeys)
+					{
+						// Move on to the next leaf in the chain
+						_leaf  = (Node)leaf._children[ORDER];
+						_index = 0;
+					}
+					else
+					{
+						if (_toKey != null)
+						{
+							int cmp = leaf.compare(_index, _toKey);
+							
+							if ((cmp > 0) || (cmp == 0 && !_toInclusive))
+							{
+								_leaf = null;
+								return false;
+							}
+						}
+						
+						_recordIter = ((Postings)leaf._children[_index]).cursor();
+						_seekKey = leaf.key(_index);
+						_seekInclusive = false;
+						_index++;
+					}
+				}
+				finally
+				{
+					leaf._latch.readLock().unlock();
+				}
+				
+				if (stale)
+				{
+					// Keys were added or removed since the leaf was read, so
+					// descend again rather than trust the saved position
+					seek(_seekKey, _seekInclusive);
+				}
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public Integer next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			// _seekKey holds the key of the ids being read
+			_lastKey = _seekKey;
+			
+			return _recordIter.next();
+		}
+		
+		@Override
+		public String key()
+		{
+			if (_lastKey == null)
+			{
+				throw new java.lang.IllegalStateException();
+			}
+			
+			return KeyBytes.decode(KeyBytes.EMPTY, _lastKey);
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new java.lang.UnsupportedOperationException();
+		}
+	}
+	
+	// Walks one version of a copy-on-write tree. Its leaves are not chained,
+	// so the iterator keeps the path down to its leaf and climbs back up it
+	// to reach the next one.
+	private class SnapshotIterator implements KeyedIterator
+	{
+		List<Node>    _path;
+		List<Integer> _childIndexes;
+		
+		Node _leaf;
+		int  _index;
+		
+		Postings.Cursor _recordIter;
+		
+		// Where the key of the id last returned is; nodes of a snapshot
+		// never change
+		Node _lastLeaf;
+		int  _lastIndex;
+		
+		byte    _toKey[];
+		boolean _toInclusive;
+		
+		private SnapshotIterator(Node root, byte fromKey[], boolean fromInclusive,
+		                         byte toKey[], boolean toInclusive)
+		{
+			_path         = new ArrayList<Node>();
+			_childIndexes = new ArrayList<Integer>();
+			_recordIter   = null;
+			_toKey        = toKey;
+			_toInclusive  = toInclusive;
+			
+			_leaf  = root;
+			_index = 0;
+			
+			if (_leaf == null)
+			{
+				return;
+			}
+			
+			while (!_leaf._isLeaf)
+			{
+				int index = (fromKey != null) ? findChildIndex(_leaf, fromKey) : 0;
+				
+				_path.add(_leaf);
+				_childIndexes.add(index);
+				
+				_leaf = (Node)_leaf._children[index];
+			}
+			
+			if (fromKey != null)
+			{
+				_index = findKeyIndex(_leaf, fromKey);
+				
+				if ((_index < _leaf._numKeys) && !fromInclusive &&
+				    (_leaf.compare(_index, fromKey) == 0))
+				{
+					_index++;
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while ((_recordIter == null) || !_recordIter.hasNext())
+			{
+				if (_leaf == null)
+				{
+					return false;
+				}
+				
+				if (_index >= _leaf._numKeys)
+				{
+					_leaf  = nextLeaf();
+					_index = 0;
+				}
+				else
+				{
+					if (_toKey != null)
+					{
+						int cmp = _leaf.compare(_index, _toKey);
+						
+						if ((cmp > 0) || (cmp == 0 && !_toInclusive))
+						{
+							_leaf = null;
+							return false;
+						}
+					}
+					
+					_recordIter = ((Postings)_leaf._children[_index]).cursor();
+					_index++;
+				}
+			}
+			
+			return true;
+		}
+		
+		// Climbs to the nearest ancestor with a child to the right of the
+		// path, then descends to the leftmost leaf under that child
+		private Node nextLeaf()
+		{
+			int depth = _path.size() - 1;
+			
+			while ((depth >= 0) && (_childIndexes.get(depth) >= _path.get(depth)._numKeys))
+			{
+				_path.remove(depth);
+				_childIndexes.remove(depth);
+				depth--;
+			}
+			
+			if (depth < 0)
+			{
+				return null;
+			}
+			
+			int index = _childIndexes.get(depth) + 1;
+			_childIndexes.set(depth, index);
+			
+			Node node = (Node)_path.get(depth)._children[index];
+			
+			while (!node._isLeaf)
+			{
+				_path.add(node);
+				_childIndexes.add(0);
+				
+				node = (Node)node._children[0];
+			}
+			
+			return node;
+		}
+		
+		@Override
+		public Integer next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			_lastLeaf  = _leaf;
+			_lastIndex = _index - 1;
+			
+			return _recordIter.next();
+		}
+		
+		@Override
+		public String key()
+		{
+			if (_lastLeaf == null)
+			{
+				throw new java.lang.IllegalStateException();
+			}
+			
+			return _lastLeaf.keyString(_lastIndex);
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new java.lang.UnsupportedOperationException();
+		}
+	}
+	
+	public String printTree()
+	{
+		StringBuilder stringBuilder = new StringBuilder("");
+		
+		if (_copyOnWrite)
+		{
+			// Nothing a reader can see is ever changed, so the latches taken
+			// below are never contended
+			Node root = _root;
+			
+			if (root != null)
+			{
+				printTreeInorder(root, 0, stringBuilder);
+			}
+			
+			return new String(stringBuilder.toString());
+		}
+		
+		_rootLatch.readLock().lock();
+		
+		Node root = _root;
+		
+		if (root != null)
+		{
+			root._latch.readLock().lock();
+		}
+		_rootLatch.readLock().unlock();
+		
+		if (root != null)
+		{
+			try
+			{
+				printTreeInorder(root, 0, stringBuilder);
+			}
+			finally
+			{
+				root._latch.readLock().unlock();
+			}
+		}
+		return new String(stringBuilder.toString());
+	}
+	
+	// Called with node read-latched
+	private void printTreeInorder(Node node, int level, StringBuilder s)
+	{
+		if (node._isLeaf)
+		{
+			for (int i = 0; i < node._numKeys; i++)
+			{
+				Postings.Cursor recordIds = ((Postings)node._children[i]).cursor();
+				
+				while (recordIds.hasNext())
+				{
+					for (int j = 0; j < level; j++)
+					{
+						s.append("\t");
+					}
+
+					s.append(node.keyString(i));
+					s.append(" ");
+					s.append(recordIds.next());
+					s.append("\n");
+				}
+			}
+		}
+		else
+		{
+			for (int i = 0; i < node._numKeys; i++)
+			{
+				printChild((Node)node._children[i], level+1, s);
+				
+				for (int j = 0; j < level; j++)
+				{
+					s.append("\t");
+				}
+				s.append(node.keyString(i));
+				s.append("\n");
+			}
+			printChild((Node)node._children[node._numKeys], level+1, s);
+		}
+	}
+	
+	private void printChild(Node child, int level, StringBuilder s)
+	{
+		child._latch.readLock().lock();
+		
+		try
+		{
+			printTreeInorder(child, level, s);
+		}
+		finally
+		{
+			child._latch.readLock().unlock();
+		}
+	}
+	
+	public void insert(String key, int recordId)
+	{
+		byte keyBytes[] = KeyBytes.encode(key);
+		
+		if (_copyOnWrite)
+		{
+			insertCopyOnWrite(keyBytes, recordId);
+		}
+		else if (!insertIntoLeafOnly(keyBytes, recordId))
+		{
+			insertWithSplits(keyBytes, recordId);
+		}
+	}
+	
+	// Inserts with only the leaf write-latched. Returns false, having changed
+	// nothing, if the leaf is full and would have to split.
+	private boolean insertIntoLeafOnly(byte key[], int recordId)
+	{
+		Node leaf = findLeaf(key, true);
+		
+		if (leaf == null)
+		{
+			return false;
+		}
+		
+		try
+		{
+			int index = findKeyIndex(leaf, key);
+			
+			if ((leaf._numKeys == ORDER) &&
+			    ((index >= leaf._numKeys) || (leaf.compare(index, key) != 0)))
+			{
+				return false;
+			}
+			
+			insertIntoLeaf(leaf, key, recordId);
+			return true;
+		}
+		finally
+		{
+			leaf._latch.writeLock().unlock();
+		}
+	}
+	
+	// Write-latches the path down to the leaf. Once a node with room for one
+	// more key is reached, no split can travel above it, so everything above
+	// it is let go.
+	private void insertWithSplits(byte key[], int recordId)
+	{
+		List<Node> path = new ArrayList<Node>();
+		
+		_rootLatch.writeLock().lock();
+		boolean rootLatched = true;
+		
+		try
+		{
+			if (_root == null)
+			{
+				_root = newRootLeaf(key, recordId);
+				return;
+			}
+			
+			Node node = _root;
+			node._latch.writeLock().lock();
+			path.add(node);
+			
+			while (true)
+			{
+				if (node._numKeys < ORDER)
+				{
+					unlatchAncestors(path, null);
+					
+					if (rootLatched)
+					{
+						_rootLatch.writeLock().unlock();
+						rootLatched = false;
+					}
+				}
+				
+				if (node._isLeaf)
+				{
+					break;
+				}
+				
+				node = (Node)node._children[findChildIndex(node, key)];
+				node._latch.writeLock().lock();
+				path.add(node);
+			}
+			
+			Split split = insertIntoLeaf(node, key, recordId);
+			
+			for (int i = path.size() - 2; (i >= 0) && (split != null); i--)
+			{
+				Node parent = path.get(i);
+				
+				if (parent._numKeys < ORDER)
+				{
+					insertIntoNonfullInteriorNode(parent, split);
+					split = null;
+				}
+				else
+				{
+					split = splitInteriorNode(parent, split);
+				}
+			}
+			
+			if (split != null)
+			{
+				// Only the root can be left to split, and its latch is still held
+				_root = newRoot(_root, split);
+			}
+		}
+		finally
+		{
+			for (int i = 0; i < path.size(); i++)
+			{
+				path.get(i)._latch.writeLock().unlock();
+			}
+			
+			if (rootLatched)
+			{
+				_rootLatch.writeLock().unlock();
+			}
+		}
+	}
+	
+	// Copies the path down to the leaf and publishes the new root once the
+	// insert is complete. The latch only keeps writers from overlapping.
+	private void insertCopyOnWrite(byte key[], int recordId)
+	{
+		_rootLatch.writeLock().lock();
+		
+		try
+		{
+			if (_root == null)
+			{
+				_root = newRootLeaf(key, recordId);
+				return;
+			}
+			
+			List<Node> path = copyPath(key, null);
+			Node leaf = path.get(path.size() - 1);
+			
+			Split split = insertIntoLeaf(leaf, key, recordId);
+			
+			for (int i = path.size() - 2; (i >= 0) && (split != null); i--)
+			{
+				Node parent = path.get(i);
+				
+				if (parent._numKeys < ORDER)
+				{
+					insertIntoNonfullInteriorNode(parent, split);
+					split = null;
+				}
+				else
+				{
+					split = splitInteriorNode(parent, split);
+				}
+			}
+			
+			// A split chains the copied leaf to its new sibling
+			leaf._children[ORDER] = null;
+			
+			_root = (split != null) ? newRoot(path.get(0), split) : path.get(0);
+		}
+		finally
+		{
+			_rootLatch.writeLock().unlock();
+		}
+	}
+	
+	// Copies the nodes from the root down to the leaf that may hold key,
+	// pointing each copy at the copy below it. childIndexes, if given,
+	// receives the position of each copy after the first within its parent.
+	private List<Node> copyPath(byte key[], List<Integer> childIndexes)
+	{
+		List<Node> path = new ArrayList<Node>();
+		
+		Node node = copyNode(_root);
+		path.add(node);
+		
+		while (!node._isLeaf)
+		{
+			int index = findChildIndex(node, key);
+			
+			Node child = copyNode((Node)node._children[index]);
+			node._children[index] = child;
+			
+			path.add(child);
+			
+			if (childIndexes != null)
+			{
+				childIndexes.add(index);
+			}
+			
+			node = child;
+		}
+		
+		return path;
+	}
+	
+	// Copies node, leaving out the link to the next leaf
+	private Node copyNode(Node node)
+	{
+		Node copy = new Node(ORDER);
+		
+		copy._prefix = node._prefix;
+		System.arraycopy(node._keys, 0, copy._keys, 0, node._numKeys);
+		System.arraycopy(node._children, 0, copy._children, 0,
+		                 node._isLeaf ? node._numKeys : node._numKeys + 1);
+		
+		copy._numKeys = node._numKeys;
+		copy._isLeaf  = node._isLeaf;
+		
+		return copy;
+	}
+	
+	// Lets go of every node on path but the last. childIndexes, if given,
+	// holds the position of each node after the first within its parent and
+	// is trimmed to match.
+	private void unlatchAncestors(List<Node> path, List<Integer> childIndexes)
+	{
+		while (path.size() > 1)
+		{
+			path.remove(0)._latch.writeLock().unlock();
+			
+			if (childIndexes != null)
+			{
+				childIndexes.remove(0);
+			}
+		}
+	}
+	
+	private void insertIntoNonfullInteriorNode(Node node, Split split)
+	{
+		// Locate the insertion index
+		int index = findKeyIndex(node, split._key);
+		byte entry[] = node.entryFor(split._key);
+		
+		for (int tempIndex = node._numKeys; tempIndex > index; tempIndex--)
+		{
+			node._keys[tempIndex] = node._keys[tempIndex-1];
+			node._children[tempIndex+1] = node._children[tempIndex];
+		}
+		
+		node._keys[index] = entry;
+		node._children[index+1] = split._right;
+		node._numKeys++;
+		
+		node.compress();
+	}
+	
+	private Split splitInteriorNode(Node node, Split split)
+	{
+		// Keys are about to move to the new node
+		node.expand();
+		
+		// Create temporary arrays to imitate an extended node
+		byte tempKeys[][] = new byte[ORDER+1][];
+		Object tempChildren[] = new Node[ORDER+2];
+		
+		// Copy all keys from the filled node to the temp key array
+		for (int i = 0; i < node._numKeys; i++)
+		{
+			tempKeys[i] = node._keys[i];
+		}
+		
+		// Copy all children from filled node to the temp children array
+		for (int i = 0; i <= node._numKeys; i++)
+		{
+			tempChildren[i] = node._children[i];
+		}
+		
+		// Locate the insertion index in the temp node
+		int index = findKeyIndex(node, split._key);
+		
+		// Insert the new key and child into the temp arrays
+		for (int tempIndex = ORDER; tempIndex > index; tempIndex--)
+		{
+			tempKeys[tempIndex] = tempKeys[tempIndex-1];
+			tempChildren[tempIndex+1] = tempChildren[tempIndex];
+		}
+		tempKeys[index] = split._key;
+		tempChildren[index+1] = split._right;
+
+		// Create a new interior node and copy the appropriate keys and
+		// children to it
+		Node rightNode = new Node(ORDER);
+		
+		int offset = ORDER / 2 + 1;
+		
+		for (int i = 0; i < (ORDER / 2); i++)
+		{
+			rightNode._keys[i] = tempKeys[i+offset];
+		}
+		
+		for (int i = 0; i < (ORDER / 2) + 1; i++)
+		{
+			rightNode._children[i] = tempChildren[i+offset];
+		}
+		
+		rightNode._numKeys = ORDER / 2;
+		rightNode._isLeaf = false;
+		
+		// Repopulate the left node, but first null everything
+		for (int i = 0; i < ORDER; i++)
+		{
+			node._keys[i] = null;
+			node._children[i] = null;
+		}
+		node._children[ORDER] = null;
+		
+		for (int i = 0; i < (ORDER / 2); i++)
+		{
+			node._keys[i] = tempKeys[i];
+		}
+		
+		for (int i = 0; i < (ORDER / 2 + 1); i++)
+		{
+			node._children[i] = tempChildren[i];
+		}
+		
+		node._numKeys = ORDER / 2;
+		
+		node.compress();
+		rightNode.compress();
+		
+		return new Split(rightNode, tempKeys[ORDER / 2]);
+	}
+	
+	// Returns the split of the leaf, or null if it had room for the key
+	private Split insertIntoLeaf(Node leaf, byte key[], int recordId)
+	{
+		int index = findKeyIndex(leaf, key);
+		
+		if ((index < leaf._numKeys) && (leaf.compare(index, key) == 0))
+		{
+			// The list is replaced rather than changed in place, so that
+			// readers already walking it are not disturbed
+			Postings recordIds = (Postings)leaf._children[index];
+			Postings newRecordIds = recordIds.add(recordId);
+			
+			if (newRecordIds != recordIds)
+			{
+				leaf._children[index] = newRecordIds;
+				_size.incrementAndGet();
+			}
+			
+			return null;
+		}
+		else if (leaf._numKeys < ORDER)
+		{
+			insertIntoNonfullLeaf(leaf, key, recordId);
+			return null;
+		}
+		else
+		{
+			return splitLeaf(leaf, key, recordId);
+		}
+	}
+	
+	private void insertIntoNonfullLeaf(Node leaf, byte key[], int recordId)
+	{
+		// Locate the insertion index
+		int index = findKeyIndex(leaf, key);
+		byte entry[] = leaf.entryFor(key);
+		
+		for (int tempIndex = leaf._numKeys; tempIndex > index; tempIndex--)
+		{
+			leaf._keys[tempIndex] = leaf._keys[tempIndex-1];
+			leaf._children[tempIndex] = leaf._children[tempIndex-1];
+		}
+		
+		leaf._keys[index] = entry;
+		leaf._children[index] = Postings.of(recordId);
+		
+		leaf._numKeys++;
+		leaf.compress();
+		
+		_modCount.incrementAndGet();
+		_size.incrementAndGet();
+		_numKeys.incrementAndGet();
+	}
+	
+	private Split splitLeaf(Node leaf, byte key[], int recordId)
+	{
+		Node rightLeaf = new Node(ORDER);
+		
+		leaf.expand();
+		
+		int indexOffset = ORDER / 2;
+		
+		// Move elements to new leaf and remove references from old leaf
+		for (int i = 0; i < indexOffset; i++)
 		{
 			rightLeaf._keys[i] = leaf._keys[i+indexOffset];
 			leaf._keys[i+indexOffset] = null;
 			
-			rightLeaf._children[i] = leaf._children[i+indexOffset];
-			leaf._children[i+indexOffset] = null;
+			rightLeaf._children[i] = leaf._children[i+indexOffset];
+			leaf._children[i+indexOffset] = null;
+		}
+		
+		leaf._numKeys -= indexOffset;
+		rightLeaf._numKeys = indexOffset;
+		
+		// Set up the leaf-to-leaf pointers
+		rightLeaf._children[ORDER] = leaf._children[ORDER];
+		leaf._children[ORDER] = rightLeaf;
+		
+		if (rightLeaf.compare(0, key) >= 0)
+		{
+			// Insert into left leaf, which is now non-full
+			insertIntoNonfullLeaf(leaf, key, recordId);
+		}
+		else
+		{
+			// Insert into right leaf, which is non-full
+			insertIntoNonfullLeaf(rightLeaf, key, recordId);
+		}
+		
+		leaf.compress();
+		rightLeaf.compress();
+		
+		// The parent only needs as much of the right leaf's first key as
+		// tells it apart from the left leaf's last
+		return new Split(rightLeaf, KeyBytes.separator(leaf.key(leaf._numKeys-1), rightLeaf.key(0)));
+	}
+	
+	// Removes recordId from the list stored under key, and removes the key
+	// itself once no ids remain. Nodes left less than half full borrow
+	// from or merge with a sibling. Returns true if the record was found.
+	public boolean delete(String key, int recordId)
+	{
+		byte keyBytes[] = KeyBytes.encode(key);
+		Boolean removed;
+		
+		if (_copyOnWrite)
+		{
+			removed = deleteCopyOnWrite(keyBytes, recordId);
+		}
+		else
+		{
+			removed = deleteFromLeafOnly(keyBytes, recordId);
+		}
+		
+		if (removed == null)
+		{
+			removed = deleteWithRebalancing(keyBytes, recordId);
+		}
+		
+		return removed;
+	}
+	
+	// Deletes with only the leaf write-latched. Returns null, having changed
+	// nothing, if the leaf would be left less than half full.
+	private Boolean deleteFromLeafOnly(byte key[], int recordId)
+	{
+		Node leaf = findLeaf(key, true);
+		
+		if (leaf == null)
+		{
+			return false;
+		}
+		
+		try
+		{
+			int index = findKeyIndex(leaf, key);
+			
+			if ((index >= leaf._numKeys) || (leaf.compare(index, key) != 0))
+			{
+				return false;
+			}
+			
+			Postings recordIds = (Postings)leaf._children[index];
+			
+			if (!recordIds.contains(recordId))
+			{
+				return false;
+			}
+			
+			boolean keyRemains = recordIds.size() > 1;
+			
+			if (!keyRemains && !((leaf == _root) ? (leaf._numKeys > 1) : (leaf._numKeys > ORDER / 2)))
+			{
+				return null;
+			}
+			
+			return removeFromList(leaf, index, recordId);
+		}
+		finally
+		{
+			leaf._latch.writeLock().unlock();
+		}
+	}
+	
+	// Write-latches the path down to the leaf. A node that can lose a key
+	// without dropping below half full stops any merge from travelling
+	// above it, so everything above it is let go.
+	private boolean deleteWithRebalancing(byte key[], int recordId)
+	{
+		List<Node> path = new ArrayList<Node>();
+		List<Integer> childIndexes = new ArrayList<Integer>();
+		
+		_rootLatch.writeLock().lock();
+		boolean rootLatched = true;
+		
+		try
+		{
+			if (_root == null)
+			{
+				return false;
+			}
+			
+			Node node = _root;
+			node._latch.writeLock().lock();
+			path.add(node);
+			
+			while (true)
+			{
+				if ((node == _root) ? (node._numKeys > 1) : (node._numKeys > ORDER / 2))
+				{
+					unlatchAncestors(path, childIndexes);
+					
+					if (rootLatched)
+					{
+						_rootLatch.writeLock().unlock();
+						rootLatched = false;
+					}
+				}
+				
+				if (node._isLeaf)
+				{
+					break;
+				}
+				
+				int index = findChildIndex(node, key);
+				
+				node = (Node)node._children[index];
+				node._latch.writeLock().lock();
+				path.add(node);
+				childIndexes.add(index);
+			}
+			
+			int index = findKeyIndex(node, key);
+			
+			if ((index >= node._numKeys) || (node.compare(index, key) != 0))
+			{
+				return false;
+			}
+			
+			boolean removed = removeFromList(node, index, recordId);
+			
+			for (int i = path.size() - 2; i >= 0; i--)
+			{
+				if (path.get(i+1)._numKeys < ORDER / 2)
+				{
+					rebalanceChild(path.get(i), childIndexes.get(i));
+				}
+			}
+			
+			if (rootLatched && (_root._numKeys == 0))
+			{
+				_root = _root._isLeaf ? null : (Node)_root._children[0];
+			}
+			
+			return removed;
+		}
+		finally
+		{
+			for (int i = 0; i < path.size(); i++)
+			{
+				path.get(i)._latch.writeLock().unlock();
+			}
+			
+			if (rootLatched)
+			{
+				_rootLatch.writeLock().unlock();
+			}
+		}
+	}
+	
+	private boolean deleteCopyOnWrite(byte key[], int recordId)
+	{
+		_rootLatch.writeLock().lock();
+		
+		try
+		{
+			// Look first, so that nothing is copied for a missing record
+			Node leaf = findLeafInSnapshot(_root, key);
+			Postings recordIds = getRecordIds(leaf, key);
+			
+			if ((recordIds == null) || !recordIds.contains(recordId))
+			{
+				return false;
+			}
+			
+			List<Integer> childIndexes = new ArrayList<Integer>();
+			List<Node> path = copyPath(key, childIndexes);
+			
+			leaf = path.get(path.size() - 1);
+			removeFromList(leaf, findKeyIndex(leaf, key), recordId);
+			
+			for (int i = path.size() - 2; i >= 0; i--)
+			{
+				if (path.get(i+1)._numKeys < ORDER / 2)
+				{
+					copySiblings(path.get(i), childIndexes.get(i));
+					rebalanceChild(path.get(i), childIndexes.get(i));
+				}
+			}
+			
+			Node root = path.get(0);
+			
+			if (root._numKeys == 0)
+			{
+				root = root._isLeaf ? null : (Node)root._children[0];
+			}
+			
+			_root = root;
+			
+			return true;
+		}
+		finally
+		{
+			_rootLatch.writeLock().unlock();
+		}
+	}
+	
+	// Replaces the neighbours of parent's child at index with copies, so
+	// that rebalancing may change them
+	private void copySiblings(Node parent, int index)
+	{
+		if (index > 0)
+		{
+			parent._children[index-1] = copyNode((Node)parent._children[index-1]);
+		}
+		if (index < parent._numKeys)
+		{
+			parent._children[index+1] = copyNode((Node)parent._children[index+1]);
+		}
+	}
+	
+	private boolean removeFromList(Node leaf, int index, int recordId)
+	{
+		// The list is replaced rather than changed in place, so that
+		// iterators already walking it are not disturbed
+		Postings recordIds = (Postings)leaf._children[index];
+		Postings newRecordIds = recordIds.remove(recordId);
+		
+		if (newRecordIds == recordIds)
+		{
+			return false;
+		}
+		
+		if (newRecordIds == null)
+		{
+			removeFromLeaf(leaf, index);
+		}
+		else
+		{
+			leaf._children[index] = newRecordIds;
+		}
+		
+		_size.decrementAndGet();
+		
+		return true;
+	}
+	
+	private void removeFromLeaf(Node leaf, int index)
+	{
+		for (int i = index; i < leaf._numKeys - 1; i++)
+		{
+			leaf._keys[i] = leaf._keys[i+1];
+			leaf._children[i] = leaf._children[i+1];
+		}
+		
+		leaf._numKeys--;
+		leaf._keys[leaf._numKeys] = null;
+		leaf._children[leaf._numKeys] = null;
+		
+		// Losing the first or last key may leave the rest sharing more
+		leaf.compress();
+		
+		_modCount.incrementAndGet();
+		_numKeys.decrementAndGet();
+	}
+	
+	// Restores the minimum fill of parent's child at index, which has just
+	// dropped below half full. Called with both write-latched.
+	private void rebalanceChild(Node parent, int index)
+	{
+		Node child = (Node)parent._children[index];
+		Node left  = (index > 0) ? (Node)parent._children[index-1] : null;
+		Node right = (index < parent._numKeys) ? (Node)parent._children[index+1] : null;
+		
+		if (left != null)
+		{
+			left._latch.writeLock().lock();
+		}
+		if (right != null)
+		{
+			right._latch.writeLock().lock();
+		}
+		
+		try
+		{
+			// Keys move between all of these below
+			parent.expand();
+			child.expand();
+			
+			if (left != null)
+			{
+				left.expand();
+			}
+			if (right != null)
+			{
+				right.expand();
+			}
+			
+			if ((left != null) && (left._numKeys > ORDER / 2))
+			{
+				borrowFromLeft(parent, index, left, child);
+			}
+			else if ((right != null) && (right._numKeys > ORDER / 2))
+			{
+				borrowFromRight(parent, index, child, right);
+			}
+			else if (left != null)
+			{
+				mergeNodes(parent, index - 1, left, child);
+			}
+			else
+			{
+				mergeNodes(parent, index, child, right);
+			}
+			
+			parent.compress();
+			child.compress();
+			
+			if (left != null)
+			{
+				left.compress();
+			}
+			if (right != null)
+			{
+				right.compress();
+			}
+			
+			_modCount.incrementAndGet();
+		}
+		finally
+		{
+			if (right != null)
+			{
+				right._latch.writeLock().unlock();
+			}
+			if (left != null)
+			{
+				left._latch.writeLock().unlock();
+			}
+		}
+	}
+	
+	private void borrowFromLeft(Node parent, int index, Node left, Node child)
+	{
+		// Make room at the front of the child
+		for (int i = child._numKeys; i > 0; i--)
+		{
+			child._keys[i] = child._keys[i-1];
+		}
+		for (int i = child._isLeaf ? child._numKeys : child._numKeys + 1; i > 0; i--)
+		{
+			child._children[i] = child._children[i-1];
 		}
 		
-		leaf._numKeys -= indexOffset;
-		rightLeaf._numKeys = indexOffset;
+		if (child._isLeaf)
+		{
+			child._keys[0] = left._keys[left._numKeys-1];
+			child._children[0] = left._children[left._numKeys-1];
+			
+			left._children[left._numKeys-1] = null;
+			
+			parent._keys[index-1] = child._keys[0];
+		}
+		else
+		{
+			child._keys[0] = parent._keys[index-1];
+			child._children[0] = left._children[left._numKeys];
+			
+			left._children[left._numKeys] = null;
+			
+			parent._keys[index-1] = left._keys[left._numKeys-1];
+		}
 		
-		// Set up the leaf-to-leaf pointers
-		rightLeaf._children[ORDER] = leaf._children[ORDER];
-		leaf._children[ORDER] = rightLeaf;
+		left._keys[left._numKeys-1] = null;
+		left._numKeys--;
+		child._numKeys++;
+	}
+	
+	private void borrowFromRight(Node parent, int index, Node child, Node right)
+	{
+		if (child._isLeaf)
+		{
+			child._keys[child._numKeys] = right._keys[0];
+			child._children[child._numKeys] = right._children[0];
+		}
+		else
+		{
+			child._keys[child._numKeys] = parent._keys[index];
+			child._children[child._numKeys+1] = right._children[0];
+			
+			parent._keys[index] = right._keys[0];
+		}
+		child._numKeys++;
 		
-		if (key.compareTo(rightLeaf._keys[0]) <= 0)
+		// Close the gap at the front of the right sibling
+		for (int i = 0; i < right._numKeys - 1; i++)
 		{
-			// Insert into left leaf, which is now non-full
-			insertIntoNonfullLeaf(leaf, key, record);
+			right._keys[i] = right._keys[i+1];
+		}
+		for (int i = 0; i < (right._isLeaf ? right._numKeys - 1 : right._numKeys); i++)
+		{
+			right._children[i] = right._children[i+1];
+		}
+		
+		right._keys[right._numKeys-1] = null;
+		right._children[right._isLeaf ? right._numKeys - 1 : right._numKeys] = null;
+		right._numKeys--;
+		
+		if (child._isLeaf)
+		{
+			parent._keys[index] = right._keys[0];
+		}
+	}
+	
+	// Appends right, and the separator between them, to left and removes
+	// right from parent
+	private void mergeNodes(Node parent, int separatorIndex, Node left, Node right)
+	{
+		if (left._isLeaf)
+		{
+			for (int i = 0; i < right._numKeys; i++)
+			{
+				left._keys[left._numKeys+i] = right._keys[i];
+				left._children[left._numKeys+i] = right._children[i];
+			}
+			left._numKeys += right._numKeys;
+			
+			left._children[ORDER] = right._children[ORDER];
 		}
 		else
 		{
-			// Insert into right leaf, which is non-full
-			insertIntoNonfullLeaf(rightLeaf, key, record);
+			left._keys[left._numKeys] = parent._keys[separatorIndex];
+			
+			for (int i = 0; i < right._numKeys; i++)
+			{
+				left._keys[left._numKeys+1+i] = right._keys[i];
+			}
+			for (int i = 0; i <= right._numKeys; i++)
+			{
+				left._children[left._numKeys+1+i] = right._children[i];
+			}
+			left._numKeys += right._numKeys + 1;
+		}
+		
+		// Remove the separator and the right child from the parent
+		for (int i = separatorIndex; i < parent._numKeys - 1; i++)
+		{
+			parent._keys[i] = parent._keys[i+1];
+			parent._children[i+1] = parent._children[i+2];
 		}
 		
-		_newChild = rightLeaf;
-		_newKey = rightLeaf._keys[0];
+		parent._keys[parent._numKeys-1] = null;
+		parent._children[parent._numKeys] = null;
+		parent._numKeys--;
 	}
 	
-	private void createNewRoot()
+	private Node newRoot(Node left, Split split)
 	{
-		Node newRoot = new Node();
-		newRoot._keys[0] = _newKey;
-		newRoot._children[0] = _root;
-		newRoot._children[1] = _newChild;
+		Node newRoot = new Node(ORDER);
+		newRoot._keys[0] = split._key;
+		newRoot._children[0] = left;
+		newRoot._children[1] = split._right;
 		newRoot._numKeys = 1;
 		newRoot._isLeaf = false;
 		
-		_root = newRoot;
+		return newRoot;
+	}
+	
+	private Node newRootLeaf(byte key[], int recordId)
+	{
+		Node root = new Node(ORDER);
+		root._keys[0] = key;
+		root._children[0] = Postings.of(recordId);
+		root._numKeys = 1;
+		
+		_modCount.incrementAndGet();
+		_size.incrementAndGet();
+		_numKeys.incrementAndGet();
+		
+		return root;
+	}
+	
+	// Builds the tree bottom-up from the first count entries of keys and
+	// recordIds, which must already be sorted by key. Runs of equal keys
+	// share one list of record ids. Leaves are packed left to right until
+	// they are fillFactor full, then each interior level is built over the
+	// one below.
+	public void bulkLoad(String keys[], int recordIds[], int count, double fillFactor)
+	{
+		_rootLatch.writeLock().lock();
+		
+		try
+		{
+			bulkLoadLatched(keys, recordIds, count, fillFactor);
+		}
+		finally
+		{
+			_rootLatch.writeLock().unlock();
+		}
+	}
+	
+	private void bulkLoadLatched(String keys[], int recordIds[], int count, double fillFactor)
+	{
+		if (_root != null)
+		{
+			throw new IllegalStateException
+			   ("BTree::bulkLoad(): tree is not empty");
+		}
+		else if ((fillFactor < 0.5) || (fillFactor > 1.0))
+		{
+			throw new IllegalArgumentException
+			   ("BTree::bulkLoad(): fill factor must be between 0.5 and 1.0");
+		}
+		
+		List<byte[]> distinctKeys = new ArrayList<byte[]>();
+		List<Postings> recordLists = new ArrayList<Postings>();
+		
+		build(distinctKeys, recordLists, collapseRuns(keys, recordIds, count, distinctKeys, recordLists),
+		      fillFactor);
+	}
+	
+	// Collapses runs of equal keys among the first count entries of keys and
+	// recordIds, which must be sorted by key, into one list of record ids per
+	// key. Returns the number of distinct ids.
+	private int collapseRuns(String keys[], int recordIds[], int count,
+	                         List<byte[]> distinctKeys, List<Postings> recordLists)
+	{
+		int numRecords = 0;
+		
+		for (int start = 0, end = 0; start < count; start = end)
+		{
+			while ((end < count) && (keys[start].compareTo(keys[end]) == 0))
+			{
+				end++;
+			}
+			
+			int run[] = Arrays.copyOfRange(recordIds, start, end);
+			Arrays.sort(run);
+			
+			int distinct = 0;
+			
+			for (int i = 0; i < run.length; i++)
+			{
+				if ((i == 0) || (run[i] != run[i-1]))
+				{
+					run[distinct++] = run[i];
+				}
+			}
+			
+			distinctKeys.add(KeyBytes.encode(keys[start]));
+			recordLists.add(Postings.fromSorted(run, distinct));
+			numRecords += distinct;
+		}
+		
+		return numRecords;
+	}
+	
+	// Replaces the tree with one built bottom-up from distinctKeys, in order,
+	// and their lists of record ids
+	private void build(List<byte[]> distinctKeys, List<Postings> recordLists, int numRecords,
+	                   double fillFactor)
+	{
+		if (distinctKeys.isEmpty())
+		{
+			_root = null;
+			_size.set(0);
+			_numKeys.set(0);
+			return;
+		}
+		
+		_size.set(numRecords);
+		_numKeys.set(distinctKeys.size());
+		
+		int keysPerNode = Math.max(ORDER / 2, Math.min(ORDER, (int)Math.ceil(ORDER * fillFactor)));
+		
+		// Build the leaf level
+		List<Node> level = new ArrayList<Node>();
+		List<byte[]> lowKeys = new ArrayList<byte[]>();
+		
+		int sizes[] = packNodeSizes(distinctKeys.size(), keysPerNode, ORDER / 2, ORDER);
+		int next = 0;
+		Node previousLeaf = null;
+		
+		for (int size : sizes)
+		{
+			Node leaf = new Node(ORDER);
+			
+			for (int i = 0; i < size; i++)
+			{
+				leaf._keys[i]     = distinctKeys.get(next);
+				leaf._children[i] = recordLists.get(next);
+				next++;
+			}
+			leaf._numKeys = size;
+			
+			// Each leaf is told apart from the one before by as few bytes
+			// as will do
+			if (previousLeaf == null)
+			{
+				lowKeys.add(leaf._keys[0]);
+			}
+			else
+			{
+				lowKeys.add(KeyBytes.separator(previousLeaf._keys[previousLeaf._numKeys-1], leaf._keys[0]));
+				previousLeaf.compress();
+				
+				if (!_copyOnWrite)
+				{
+					previousLeaf._children[ORDER] = leaf;
+				}
+			}
+			previousLeaf = leaf;
+			
+			level.add(leaf);
+		}
+		previousLeaf.compress();
+		
+		// Build interior levels until a single root remains
+		while (level.size() > 1)
+		{
+			List<Node> parentLevel = new ArrayList<Node>();
+			List<byte[]> parentLowKeys = new ArrayList<byte[]>();
+			
+			sizes = packNodeSizes(level.size(), keysPerNode + 1, ORDER / 2 + 1, ORDER + 1);
+			next = 0;
+			
+			for (int size : sizes)
+			{
+				Node node = new Node(ORDER);
+				node._isLeaf = false;
+				
+				parentLowKeys.add(lowKeys.get(next));
+				
+				for (int i = 0; i < size; i++)
+				{
+					if (i > 0)
+					{
+						node._keys[i-1] = lowKeys.get(next);
+					}
+					node._children[i] = level.get(next);
+					next++;
+				}
+				node._numKeys = size - 1;
+				node.compress();
+				
+				parentLevel.add(node);
+			}
+			
+			level   = parentLevel;
+			lowKeys = parentLowKeys;
+		}
+		
+		_root = level.get(0);
+	}
+	
+	// Adds the first count entries of keys and recordIds, which must be
+	// sorted by key. A batch that is large next to the tree is merged with
+	// the tree's entries in one ordered pass, and the tree rebuilt from the
+	// result as bulkLoad() builds it; a smaller one is inserted one entry at
+	// a time, in key order, so that each descent mostly retraces the one
+	// before. Callers keep other writers out until it returns; readers see
+	// either the old tree or the new one.
+	public void insertAll(String keys[], int recordIds[], int count)
+	{
+		if ((long)count * MERGE_RATIO < _size.get())
+		{
+			for (int i = 0; i < count; i++)
+			{
+				insert(keys[i], recordIds[i]);
+			}
+			
+			return;
+		}
+		
+		_rootLatch.writeLock().lock();
+		
+		try
+		{
+			List<byte[]> newKeys = new ArrayList<byte[]>();
+			List<Postings> newLists = new ArrayList<Postings>();
+			
+			collapseRuns(keys, recordIds, count, newKeys, newLists);
+			
+			List<byte[]> oldKeys = new ArrayList<byte[]>();
+			List<Postings> oldLists = new ArrayList<Postings>();
+			
+			if (_root != null)
+			{
+				collectEntries(_root, oldKeys, oldLists);
+			}
+			
+			List<byte[]> mergedKeys = new ArrayList<byte[]>(oldKeys.size() + newKeys.size());
+			List<Postings> mergedLists = new ArrayList<Postings>(oldKeys.size() + newKeys.size());
+			int numRecords = 0;
+			int i = 0;
+			int j = 0;
+			
+			while ((i < oldKeys.size()) || (j < newKeys.size()))
+			{
+				int cmp = (i == oldKeys.size()) ? 1 :
+				          (j == newKeys.size()) ? -1 : KeyBytes.compare(oldKeys.get(i), newKeys.get(j));
+				
+				Postings merged;
+				
+				if (cmp < 0)
+				{
+					mergedKeys.add(oldKeys.get(i));
+					merged = oldLists.get(i++);
+				}
+				else if (cmp > 0)
+				{
+					mergedKeys.add(newKeys.get(j));
+					merged = newLists.get(j++);
+				}
+				else
+				{
+					mergedKeys.add(oldKeys.get(i));
+					merged = union(oldLists.get(i++), newLists.get(j++));
+				}
+				
+				mergedLists.add(merged);
+				numRecords += merged.size();
+			}
+			
+			build(mergedKeys, mergedLists, numRecords, DEFAULT_FILL_FACTOR);
+			
+			// Send range iterators on the old tree to the new one
+			_modCount.incrementAndGet();
+		}
+		finally
+		{
+			_rootLatch.writeLock().unlock();
+		}
+	}
+	
+	// Appends the keys under node, whole, and their lists of record ids in
+	// key order
+	private void collectEntries(Node node, List<byte[]> keys, List<Postings> recordLists)
+	{
+		if (node._isLeaf)
+		{
+			for (int i = 0; i < node._numKeys; i++)
+			{
+				keys.add(node.key(i));
+				recordLists.add((Postings)node._children[i]);
+			}
+		}
+		else
+		{
+			for (int i = 0; i <= node._numKeys; i++)
+			{
+				collectEntries((Node)node._children[i], keys, recordLists);
+			}
+		}
+	}
+	
+	private static Postings union(Postings a, Postings b)
+	{
+		int ids[] = new int[a.size() + b.size()];
+		int count = 0;
+		
+		Postings.Cursor aIter = a.cursor();
+		Postings.Cursor bIter = b.cursor();
+		int aId = aIter.hasNext() ? aIter.next() : Integer.MAX_VALUE;
+		int bId = bIter.hasNext() ? bIter.next() : Integer.MAX_VALUE;
+		
+		while ((aId != Integer.MAX_VALUE) || (bId != Integer.MAX_VALUE))
+		{
+			int id = Math.min(aId, bId);
+			ids[count++] = id;
+			
+			if (aId == id)
+			{
+				aId = aIter.hasNext() ? aIter.next() : Integer.MAX_VALUE;
+			}
+			
+			if (bId == id)
+			{
+				bId = bIter.hasNext() ? bIter.next() : Integer.MAX_VALUE;
+			}
+		}
+		
+		return Postings.fromSorted(ids, count);
+	}
+	
+	// Splits total entries into consecutive nodes of perNode entries each,
+	// rebalancing the last two nodes so that none falls below minPerNode.
+	private int[] packNodeSizes(int total, int perNode, int minPerNode, int maxPerNode)
+	{
+		if (total <= maxPerNode)
+		{
+			return new int[] { total };
+		}
+		
+		int numNodes = (total + perNode - 1) / perNode;
+		int sizes[] = new int[numNodes];
+		
+		Arrays.fill(sizes, perNode);
+		sizes[numNodes-1] = total - perNode * (numNodes - 1);
+		
+		if (sizes[numNodes-1] < minPerNode)
+		{
+			int combined = sizes[numNodes-2] + sizes[numNodes-1];
+			
+			if (combined <= maxPerNode)
+			{
+				sizes = Arrays.copyOf(sizes, numNodes - 1);
+				sizes[numNodes-2] = combined;
+			}
+			else
+			{
+				sizes[numNodes-2] = combined - combined / 2;
+				sizes[numNodes-1] = combined / 2;
+			}
+		}
+		
+		return sizes;
 	}
 }
@@ -0,0 +1,180 @@
+package database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// A bounded cache of pages from a PageFile. Pages are pinned while in use
+// and the least recently used unpinned page is evicted, after being written
+// back if dirty, when a new page has to be faulted in.
+class BufferPool
+{
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private class Frame
+	{
+		int        _pageId;
+		ByteBuffer _data;
+		int        _pinCount;
+		boolean    _dirty;
+	}
+	
+	private PageFile _pageFile;
+	private int _capacity;
+	
+	// Kept in access order, so iteration starts at the least recently used
+	private LinkedHashMap<Integer,Frame> _frames;
+	
+	private long _faults;
+	
+	BufferPool(PageFile pageFile, int capacity)
+	{
+		if (capacity < MIN_CAPACITY)
+		{
+			throw new IllegalArgumentException
+			   ("BufferPool::BufferPool(): capacity must be at least " + MIN_CAPACITY + " pages");
+		}
+		
+		_pageFile = pageFile;
+		_capacity = capacity;
+		_frames = new LinkedHashMap<Integer,Frame>(capacity, 0.75f, true);
+		_faults = 0;
+	}
+	
+	// Returns the contents of a page, reading it from disk if it is not
+	// cached. The page stays in memory until the matching unpin().
+	ByteBuffer pin(int pageId)
+	{
+		Frame frame = _frames.get(pageId);
+		
+		if (frame == null)
+		{
+			frame = newFrame(pageId);
+			
+			try
+			{
+				_pageFile.readPage(pageId, frame._data);
+			}
+			catch (IOException ex)
+			{
+				_frames.remove(pageId);
+				throw new IllegalStateException
+				   ("BufferPool::pin(): failed to read page " + pageId, ex);
+			}
+			
+			_faults++;
+		}
+		
+		frame._pinCount++;
+		return frame._data;
+	}
+	
+	// Pins a freshly allocated page without reading it from disk
+	ByteBuffer pinNew(int pageId)
+	{
+		Frame frame = newFrame(pageId);
+		
+		frame._pinCount++;
+		frame._dirty = true;
+		return frame._data;
+	}
+	
+	void unpin(int pageId, boolean dirty)
+	{
+		Frame frame = _frames.get(pageId);
+		
+		if ((frame == null) || (frame._pinCount == 0))
+		{
+			throw new IllegalStateException
+			   ("BufferPool::unpin(): page " + pageId + " is not pinned");
+		}
+		
+		frame._pinCount--;
+		frame._dirty |= dirty;
+	}
+	
+	// Writes every dirty page back to the file
+	void flush() throws IOException
+	{
+		Iterator<Frame> frameIter = _frames.values().iterator();
+		
+		while (frameIter.hasNext())
+		{
+			Frame frame = frameIter.next();
+			
+			if (frame._dirty)
+			{
+				_pageFile.writePage(frame._pageId, frame._data);
+				frame._dirty = false;
+			}
+		}
+	}
+	
+	// Number of pages read from disk since the pool was created
+	long getFaultCount()
+	{
+		return _faults;
+	}
+	
+	int getCapacity()
+	{
+		return _capacity;
+	}
+	
+	private Frame newFrame(int pageId)
+	{
+		ByteBuffer data = null;
+		
+		if (_frames.size() >= _capacity)
+		{
+			data = evict();
+		}
+		
+		Frame frame = new Frame();
+		frame._pageId = pageId;
+		frame._data = (data != null) ? data : ByteBuffer.allocate(_pageFile.getPageSize());
+		frame._pinCount = 0;
+		frame._dirty = false;
+		
+		_frames.put(pageId, frame);
+		
+		return frame;
+	}
+	
+	// Removes the least recently used unpinned frame and returns its buffer
+	// for reuse
+	private ByteBuffer evict()
+	{
+		Iterator<Frame> frameIter = _frames.values().iterator();
+		
+		while (frameIter.hasNext())
+		{
+			Frame frame = frameIter.next();
+			
+			if (frame._pinCount == 0)
+			{
+				if (frame._dirty)
+				{
+					try
+					{
+						_pageFile.writePage(frame._pageId, frame._data);
+					}
+					catch (IOException ex)
+					{
+						throw new IllegalStateException
+						   ("BufferPool::evict(): failed to write page " + frame._pageId, ex);
+					}
+				}
+				
+				frameIter.remove();
+				
+				Arrays.fill(frame._data.array(), (byte)0);
+				return frame._data;
+			}
+		}
+		
+		throw new IllegalStateException("BufferPool::evict(): all pages are pinned");
+	}
+}
@@ -0,0 +1,420 @@
+package database;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Record values of a DataFile created in columnar mode, kept column by
+// column instead of in one map per record. Every descriptor field has its
+// own column, split into chunks of CHUNK_SIZE record ids. A chunk packs the
+// UTF-8 bytes of its values back to back in a single array and keeps the
+// offset and length of each value beside it, so a record costs eight bytes
+// per field beyond its data, and scanning one column reads memory in order.
+//
+// Records are read through views that decode values on demand. Values may
+// be put by several threads at once: appending to a chunk is serialized on
+// the chunk, and a value's length is published last so readers never see
+// a value before its bytes. Compaction never moves values in place: it
+// packs a chunk into a new one and swaps that into the store, so readers
+// holding no lock see either the old chunk or the new one whole.
+class ColumnStore implements Serializable
+{
+	private static final long serialVersionUID = -3570930410836218694L;
+	
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK  = CHUNK_SIZE - 1;
+	
+	private static final int INITIAL_CHUNK_BYTES = 4096;
+	
+	private static class Chunk
+	{
+		volatile byte _data[];
+		int _used;
+		
+		// Offset of each value, then its length plus one, or 0 if the
+		// record has no value for the column
+		final AtomicIntegerArray _slots;
+		
+		Chunk(int capacity)
+		{
+			_data  = new byte[capacity];
+			_used  = 0;
+			_slots = new AtomicIntegerArray(2 * CHUNK_SIZE);
+		}
+		
+		synchronized void put(int slot, byte value[])
+		{
+			int needed = _used + value.length;
+			
+			if (needed > _data.length)
+			{
+				// Ids mostly arrive in order, so size the array for the
+				// whole chunk at the average value length seen so far
+				long estimate = (long)needed * CHUNK_SIZE / (slot + 1);
+				
+				_data = Arrays.copyOf(_data, (int)Math.max(estimate, needed + _data.length / 8));
+			}
+			
+			System.arraycopy(value, 0, _data, _used, value.length);
+			
+			_slots.set(2 * slot, _used);
+			_slots.set(2 * slot + 1, value.length + 1);
+			
+			_used += value.length;
+		}
+		
+		String get(int slot)
+		{
+			int length = _slots.get(2 * slot + 1) - 1;
+			
+			if (length < 0)
+			{
+				return null;
+			}
+			
+			return new String(_data, _slots.get(2 * slot), length, PagedBTree.UTF8);
+		}
+		
+		boolean has(int slot)
+		{
+			return _slots.get(2 * slot + 1) != 0;
+		}
+		
+		void remove(int slot)
+		{
+			_slots.set(2 * slot + 1, 0);
+		}
+		
+		// Returns a new chunk holding only the values still present;
+		// callers keep writers out
+		synchronized Chunk compacted()
+		{
+			int size = 0;
+			
+			for (int slot = 0; slot < CHUNK_SIZE; slot++)
+			{
+				size += Math.max(0, _slots.get(2 * slot + 1) - 1);
+			}
+			
+			Chunk chunk = new Chunk(Math.max(size, 1));
+			
+			for (int slot = 0; slot < CHUNK_SIZE; slot++)
+			{
+				int length = _slots.get(2 * slot + 1) - 1;
+				
+				if (length >= 0)
+				{
+					System.arraycopy(_data, _slots.get(2 * slot), chunk._data, chunk._used, length);
+					chunk._slots.set(2 * slot, chunk._used);
+					chunk._slots.set(2 * slot + 1, length + 1);
+					chunk._used += length;
+				}
+			}
+			
+			return chunk;
+		}
+	}
+	
+	private String _columns[];
+	
+	private transient Map<String,Integer> _columnIndexes;
+	private transient volatile Chunk _chunks[][];
+	
+	ColumnStore(Collection<String> fields)
+	{
+		_columns = fields.toArray(new String[fields.size()]);
+		Arrays.sort(_columns);
+		
+		init();
+	}
+	
+	private void init()
+	{
+		_columnIndexes = new HashMap<String,Integer>();
+		
+		for (int i = 0; i < _columns.length; i++)
+		{
+			_columnIndexes.put(_columns[i], i);
+		}
+		
+		_chunks = new Chunk[_columns.length][0];
+	}
+	
+	// Stores the values of the record with the given id, which must not be
+	// in the store already. Values for fields outside the descriptor are
+	// ignored; callers validate records first.
+	void put(int recordId, Map<String,String> values)
+	{
+		for (int column = 0; column < _columns.length; column++)
+		{
+			String value = values.get(_columns[column]);
+			
+			if (value != null)
+			{
+				chunk(column, recordId, true).put(recordId & CHUNK_MASK, value.getBytes(PagedBTree.UTF8));
+			}
+		}
+	}
+	
+	// Returns the value of the record in the given column, or null if it
+	// has none
+	String get(int recordId, String column)
+	{
+		Integer columnIndex = _columnIndexes.get(column);
+		
+		if (columnIndex == null)
+		{
+			return null;
+		}
+		
+		Chunk chunk = chunk(columnIndex, recordId, false);
+		
+		return (chunk != null) ? chunk.get(recordId & CHUNK_MASK) : null;
+	}
+	
+	boolean has(int recordId, String column)
+	{
+		Integer columnIndex = _columnIndexes.get(column);
+		
+		if (columnIndex == null)
+		{
+			return false;
+		}
+		
+		Chunk chunk = chunk(columnIndex, recordId, false);
+		
+		return (chunk != null) && chunk.has(recordId & CHUNK_MASK);
+	}
+	
+	void remove(int recordId)
+	{
+		for (int column = 0; column < _columns.length; column++)
+		{
+			Chunk chunk = chunk(column, recordId, false);
+			
+			if (chunk != null)
+			{
+				chunk.remove(recordId & CHUNK_MASK);
+			}
+		}
+	}
+	
+	// Gives back the space held by removed values
+	void compact()
+	{
+		compact(0, Integer.MAX_VALUE);
+	}
+	
+	// Gives back the space held by removed values in the chunks holding ids
+	// from fromId up to toId. The compacted chunks are published together,
+	// as grow() publishes a new one.
+	synchronized void compact(int fromId, int toId)
+	{
+		Chunk all[][] = _chunks.clone();
+		
+		for (int column = 0; column < all.length; column++)
+		{
+			Chunk chunks[] = all[column].clone();
+			int end = (int)Math.min(chunks.length, ((long)toId + CHUNK_MASK) >>> CHUNK_SHIFT);
+			
+			for (int i = fromId >>> CHUNK_SHIFT; i < end; i++)
+			{
+				if (chunks[i] != null)
+				{
+					chunks[i] = chunks[i].compacted();
+				}
+			}
+			
+			all[column] = chunks;
+		}
+		
+		_chunks = all;
+	}
+	
+	synchronized void clear()
+	{
+		_chunks = new Chunk[_columns.length][0];
+	}
+	
+	// Returns a read-only map over the record's values
+	Map<String,String> view(int recordId)
+	{
+		return new RecordView(recordId);
+	}
+	
+	private Chunk chunk(int column, int recordId, boolean create)
+	{
+		Chunk chunks[] = _chunks[column];
+		int index = recordId >>> CHUNK_SHIFT;
+		
+		Chunk chunk = (index < chunks.length) ? chunks[index] : null;
+		
+		return ((chunk == null) && create) ? grow(column, index) : chunk;
+	}
+	
+	private synchronized Chunk grow(int column, int index)
+	{
+		Chunk all[][] = _chunks.clone();
+		Chunk chunks[] = all[column];
+		
+		if (index >= chunks.length)
+		{
+			chunks = Arrays.copyOf(chunks, Math.max(index + 1, chunks.length * 2));
+		}
+		else if (chunks[index] != null)
+		{
+			return chunks[index];
+		}
+		else
+		{
+			chunks = chunks.clone();
+		}
+		
+		chunks[index] = new Chunk(INITIAL_CHUNK_BYTES);
+		
+		all[column] = chunks;
+		_chunks = all;
+		
+		return chunks[index];
+	}
+	
+	// Each chunk is written as its used bytes and slots; the arrays are
+	// sized again when read
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		
+		Chunk chunks[][] = _chunks;
+		
+		for (int column = 0; column < chunks.length; column++)
+		{
+			out.writeInt(chunks[column].length);
+			
+			for (int i = 0; i < chunks[column].length; i++)
+			{
+				Chunk chunk = chunks[column][i];
+				
+				if (chunk == null)
+				{
+					out.writeInt(-1);
+					continue;
+				}
+				
+				synchronized (chunk)
+				{
+					out.writeInt(chunk._used);
+					out.write(chunk._data, 0, chunk._used);
+					
+					for (int slot = 0; slot < 2 * CHUNK_SIZE; slot++)
+					{
+						out.writeInt(chunk._slots.get(slot));
+					}
+				}
+			}
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		init();
+		
+		for (int column = 0; column < _columns.length; column++)
+		{
+			Chunk chunks[] = new Chunk[in.readInt()];
+			
+			for (int i = 0; i < chunks.length; i++)
+			{
+				int used = in.readInt();
+				
+				if (used < 0)
+				{
+					continue;
+				}
+				
+				Chunk chunk = new Chunk(Math.max(used, 1));
+				in.readFully(chunk._data, 0, used);
+				chunk._used = used;
+				
+				for (int slot = 0; slot < 2 * CHUNK_SIZE; slot++)
+				{
+					chunk._slots.set(slot, in.readInt());
+				}
+				
+				chunks[i] = chunk;
+			}
+			
+			_chunks[column] = chunks;
+		}
+	}
+	
+	// The values of one record. Only the store and the record id are held,
+	// and each value is decoded when it is asked for.
+	private class RecordView extends AbstractMap<String,String> implements Serializable
+	{
+		private static final long serialVersionUID = 4715203317460312370L;
+		
+		private final int _recordId;
+		
+		private RecordView(int recordId)
+		{
+			_recordId = recordId;
+		}
+		
+		@Override
+		public String get(Object key)
+		{
+			return (key instanceof String) ? ColumnStore.this.get(_recordId, (String)key) : null;
+		}
+		
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return (key instanceof String) && has(_recordId, (String)key);
+		}
+		
+		@Override
+		public Set<Map.Entry<String,String>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String,String>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String,String>> iterator()
+				{
+					List<Map.Entry<String,String>> entries = new ArrayList<Map.Entry<String,String>>();
+					
+					for (int column = 0; column < _columns.length; column++)
+					{
+						String value = ColumnStore.this.get(_recordId, _columns[column]);
+						
+						if (value != null)
+						{
+							entries.add(new AbstractMap.SimpleImmutableEntry<String,String>
+							   (_columns[column], value));
+						}
+					}
+					
+					return entries.iterator();
+				}
+				
+				@Override
+				public int size()
+				{
+					int size = 0;
+					
+					for (int column = 0; column < _columns.length; column++)
+					{
+						if (has(_recordId, _columns[column]))
+						{
+							size++;
+						}
+					}
+					
+					return size;
+				}
+			};
+		}
+	}
+}
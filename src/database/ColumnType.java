@@ -0,0 +1,340 @@
+package database;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+// The type of a DataFile column. Record values are strings whatever their
+// type, but an index over a typed column keys them by an encoding that
+// sorts the way the values do, so that numbers sort by value and dates by
+// day where as strings "100" would come before "20". The encodings are
+// printable ASCII, so every index format stores them one byte per char and
+// compares them byte by byte.
+public enum ColumnType
+{
+	STRING
+	{
+		String key(String value)
+		{
+			return value;
+		}
+		
+		String value(String key)
+		{
+			return key;
+		}
+	},
+	
+	// A 32-bit integer
+	INT
+	{
+		String key(String value)
+		{
+			StringBuilder key = new StringBuilder(INT_CHARS);
+			appendInt(key, parseInt(value, this));
+			
+			return key.toString();
+		}
+		
+		String value(String key)
+		{
+			return Integer.toString(readInt(key, 0));
+		}
+	},
+	
+	// A 64-bit integer
+	LONG
+	{
+		String key(String value)
+		{
+			long number;
+			
+			try
+			{
+				number = Long.parseLong(value);
+			}
+			catch (NumberFormatException ex)
+			{
+				throw invalid(value, this);
+			}
+			
+			StringBuilder key = new StringBuilder(LONG_CHARS);
+			appendBits(key, number ^ Long.MIN_VALUE, LONG_CHARS);
+			
+			return key.toString();
+		}
+		
+		String value(String key)
+		{
+			return Long.toString(readBits(key, 0, LONG_CHARS) ^ Long.MIN_VALUE);
+		}
+	},
+	
+	// A decimal number of any size and precision, such as "-12.50" or
+	// "1E+6". Numerically equal values share a key.
+	DECIMAL
+	{
+		String key(String value)
+		{
+			BigDecimal number;
+			
+			try
+			{
+				number = new BigDecimal(value);
+			}
+			catch (NumberFormatException ex)
+			{
+				throw invalid(value, this);
+			}
+			
+			if (number.signum() == 0)
+			{
+				return "1";
+			}
+			
+			// The number is 0.digits times ten to the power exponent; larger
+			// exponents, then larger digits, mean larger magnitudes
+			number = number.stripTrailingZeros();
+			String digits = number.unscaledValue().abs().toString();
+			int exponent = digits.length() - number.scale();
+			
+			StringBuilder key = new StringBuilder(digits.length() + INT_CHARS + 2);
+			
+			if (number.signum() > 0)
+			{
+				key.append('2');
+				appendInt(key, exponent);
+				key.append(digits);
+			}
+			else
+			{
+				// Negative numbers sort in reverse: the exponent and digits
+				// are complemented, and a terminator above every digit makes
+				// a longer run of digits sort first
+				key.append('0');
+				appendInt(key, ~exponent);
+				
+				for (int i = 0; i < digits.length(); i++)
+				{
+					key.append((char)('9' - digits.charAt(i) + '0'));
+				}
+				key.append('~');
+			}
+			
+			return key.toString();
+		}
+		
+		String value(String key)
+		{
+			if (key.charAt(0) == '1')
+			{
+				return "0";
+			}
+			
+			boolean negative = (key.charAt(0) == '0');
+			int exponent = readInt(key, 1);
+			String digits = key.substring(1 + INT_CHARS, key.length() - (negative ? 1 : 0));
+			
+			if (negative)
+			{
+				exponent = ~exponent;
+				
+				StringBuilder complement = new StringBuilder(digits.length());
+				
+				for (int i = 0; i < digits.length(); i++)
+				{
+					complement.append((char)('9' - digits.charAt(i) + '0'));
+				}
+				digits = complement.toString();
+			}
+			
+			BigDecimal number = new BigDecimal(new BigInteger(digits), digits.length() - exponent);
+			
+			return (negative ? number.negate() : number).toPlainString();
+		}
+	},
+	
+	// A calendar date written as yyyy-MM-dd, keyed by its day number
+	DATE
+	{
+		String key(String value)
+		{
+			StringBuilder key = new StringBuilder(INT_CHARS);
+			appendInt(key, parseDate(value, this));
+			
+			return key.toString();
+		}
+		
+		String value(String key)
+		{
+			return formatDate(readInt(key, 0));
+		}
+	};
+	
+	// Six bits are encoded per char
+	private static final int INT_CHARS  = 6;
+	private static final int LONG_CHARS = 11;
+	
+	// Returns the key of value, which must be valid for the type
+	abstract String key(String value);
+	
+	// Returns the value a key was made from, written the usual way for the
+	// type; "007" comes back as "7"
+	abstract String value(String key);
+	
+	public boolean isValid(String value)
+	{
+		try
+		{
+			key(value);
+			return true;
+		}
+		catch (IllegalArgumentException ex)
+		{
+			return false;
+		}
+	}
+	
+	private static IllegalArgumentException invalid(String value, ColumnType type)
+	{
+		return new IllegalArgumentException
+		   ("ColumnType::key(): " + value + " is not a valid " + type.name().toLowerCase());
+	}
+	
+	private static int parseInt(String value, ColumnType type)
+	{
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException ex)
+		{
+			throw invalid(value, type);
+		}
+	}
+	
+	// Flipping the sign bit makes unsigned order agree with signed order
+	private static void appendInt(StringBuilder key, int number)
+	{
+		appendBits(key, (number ^ Integer.MIN_VALUE) & 0xFFFFFFFFL, INT_CHARS);
+	}
+	
+	private static int readInt(String key, int from)
+	{
+		return (int)readBits(key, from, INT_CHARS) ^ Integer.MIN_VALUE;
+	}
+	
+	// Writes the low 6 * chars bits of bits, most significant first, as chars
+	// from '0' up
+	private static void appendBits(StringBuilder key, long bits, int chars)
+	{
+		for (int shift = 6 * (chars - 1); shift >= 0; shift -= 6)
+		{
+			key.append((char)('0' + ((bits >>> shift) & 0x3F)));
+		}
+	}
+	
+	private static long readBits(String key, int from, int chars)
+	{
+		long bits = 0;
+		
+		for (int i = from; i < from + chars; i++)
+		{
+			bits = (bits << 6) | (key.charAt(i) - '0');
+		}
+		
+		return bits;
+	}
+	
+	// Returns the number of days from 1970-01-01 to a yyyy-MM-dd date
+	private static int parseDate(String value, ColumnType type)
+	{
+		if ((value.length() != 10) || (value.charAt(4) != '-') || (value.charAt(7) != '-'))
+		{
+			throw invalid(value, type);
+		}
+		
+		int year  = parseDigits(value, 0, 4, type);
+		int month = parseDigits(value, 5, 7, type);
+		int day   = parseDigits(value, 8, 10, type);
+		
+		if ((month < 1) || (month > 12) || (day < 1) || (day > daysInMonth(year, month)))
+		{
+			throw invalid(value, type);
+		}
+		
+		// Count from a year starting in March, so that a leap day falls at
+		// the end of it, in 400-year eras of 146097 days
+		int y = (month <= 2) ? year - 1 : year;
+		int era = ((y >= 0) ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * ((month + 9) % 12) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	private static String formatDate(int days)
+	{
+		int z = days + 719468;
+		int era = ((z >= 0) ? z : z - 146096) / 146097;
+		int dayOfEra = z - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (5 * dayOfYear + 2) / 153;
+		
+		int day   = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		int month = (monthIndex < 10) ? monthIndex + 3 : monthIndex - 9;
+		int year  = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+		
+		StringBuilder date = new StringBuilder(10);
+		appendDigits(date, year, 4);
+		date.append('-');
+		appendDigits(date, month, 2);
+		date.append('-');
+		appendDigits(date, day, 2);
+		
+		return date.toString();
+	}
+	
+	private static int daysInMonth(int year, int month)
+	{
+		if (month == 2)
+		{
+			boolean leap = ((year % 4 == 0) && (year % 100 != 0)) || (year % 400 == 0);
+			
+			return leap ? 29 : 28;
+		}
+		
+		return ((month == 4) || (month == 6) || (month == 9) || (month == 11)) ? 30 : 31;
+	}
+	
+	private static int parseDigits(String value, int from, int to, ColumnType type)
+	{
+		int number = 0;
+		
+		for (int i = from; i < to; i++)
+		{
+			char c = value.charAt(i);
+			
+			if ((c < '0') || (c > '9'))
+			{
+				throw invalid(value, type);
+			}
+			
+			number = number * 10 + (c - '0');
+		}
+		
+		return number;
+	}
+	
+	private static void appendDigits(StringBuilder s, int number, int width)
+	{
+		String digits = Integer.toString(number);
+		
+		for (int i = digits.length(); i < width; i++)
+		{
+			s.append('0');
+		}
+		s.append(digits);
+	}
+}
@@ -0,0 +1,150 @@
+package database;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Compacts DataFiles in the background, on one daemon thread shared by every
+// file with compaction turned on; see DataFile.setCompactionRatio(). Each
+// step does a bounded amount of work, and the thread then sleeps long enough
+// that compaction takes at most DUTY_CYCLE of its time, so foreground work
+// waits on no more than one short step at a time. The thread stops when no
+// file needs it and starts again when one does.
+final class Compactor
+{
+	// Fraction of the time spent compacting while there is work to do
+	static final double DUTY_CYCLE = 0.1;
+	
+	// How long to wait before looking again when no file needed work
+	static final long IDLE_MILLIS = 100;
+	
+	// Files are held weakly, so that one dropped without dropFile() can
+	// still be collected
+	private static final List<WeakReference<DataFile>> _files = new ArrayList<WeakReference<DataFile>>();
+	private static Thread _thread;
+	
+	private Compactor()
+	{
+	}
+	
+	static synchronized void register(DataFile file)
+	{
+		for (WeakReference<DataFile> ref : _files)
+		{
+			if (ref.get() == file)
+			{
+				return;
+			}
+		}
+		
+		_files.add(new WeakReference<DataFile>(file));
+		
+		if (_thread == null)
+		{
+			_thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					compactFiles();
+				}
+			}, "DataFile compactor");
+			_thread.setDaemon(true);
+			_thread.start();
+		}
+	}
+	
+	static synchronized void unregister(DataFile file)
+	{
+		Iterator<WeakReference<DataFile>> refIter = _files.iterator();
+		
+		while (refIter.hasNext())
+		{
+			DataFile registered = refIter.next().get();
+			
+			if ((registered == null) || (registered == file))
+			{
+				refIter.remove();
+			}
+		}
+	}
+	
+	// Returns the registered files still around. If there are none, the
+	// thread is let go in the same step, so that register() starts another.
+	private static synchronized List<DataFile> files()
+	{
+		List<DataFile> files = new ArrayList<DataFile>();
+		Iterator<WeakReference<DataFile>> refIter = _files.iterator();
+		
+		while (refIter.hasNext())
+		{
+			DataFile file = refIter.next().get();
+			
+			if (file == null)
+			{
+				refIter.remove();
+			}
+			else
+			{
+				files.add(file);
+			}
+		}
+		
+		if (files.isEmpty())
+		{
+			_thread = null;
+		}
+		
+		return files;
+	}
+	
+	private static void compactFiles()
+	{
+		List<DataFile> files;
+		
+		while (!(files = files()).isEmpty())
+		{
+			boolean worked = false;
+			
+			for (DataFile file : files)
+			{
+				long start = System.nanoTime();
+				
+				try
+				{
+					if (!file.compactStep())
+					{
+						continue;
+					}
+				}
+				catch (RuntimeException ex)
+				{
+					ex.printStackTrace();
+					unregister(file);
+					continue;
+				}
+				
+				worked = true;
+				
+				long elapsed = System.nanoTime() - start;
+				sleep((long)(elapsed * (1 - DUTY_CYCLE) / DUTY_CYCLE));
+			}
+			
+			if (!worked)
+			{
+				sleep(TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS));
+			}
+		}
+	}
+	
+	private static void sleep(long nanos)
+	{
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -2,36 +2,392 @@ package database;
 
 import java.io.*;
 
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DataFile implements Serializable
 {
 	private static final long serialVersionUID = -4126263454830270822L;
 	
 	private Map<String,Integer> _fields;
+	
+	// Fields with a type other than ColumnType.STRING; files written
+	// before typed fields existed have none
+	private Map<String,ColumnType> _types;
+	
 	private String _fileName;
-	private Map<Integer, DataRecord> _dataRecords;
-	private int _nextRecordId;
+	private RecordStore _dataRecords;
+	private AtomicInteger _nextRecordId;
+	
+	// A columnar file keeps record values in _columns, one column per
+	// field, and its records hold views over them instead of maps
+	private ColumnStore _columns;
 	
 	private List<String> _indexNames;
+	
+	// Keyed by the index's column, or for a composite or covering index by
+	// its columns as Index.getColumnName() lists them
 	private Map<String,Index> _indexes;
 	
-	private int _modCount;
+	private AtomicInteger _modCount;
+	
+	// Inserts and deletes share the read lock and run concurrently, relying
+	// on the record map and the indexes being safe for concurrent use.
+	// Anything that needs the whole file to hold still, such as a checkpoint
+	// or building an index, takes the write lock.
+	private transient ReentrantReadWriteLock _lock;
+	
+	// Indexes being built in the background, which are told of every insert
+	// and delete until they are put in place; see createIndexOnline()
+	private transient List<IndexBuild> _builds;
+	
+	// An online build finishes under the write lock once fewer changes than
+	// this came in while it applied the last ones, or once they stop
+	// getting fewer
+	private static final int ONLINE_BUILD_CATCH_UP = 1024;
+	
+	// With a ratio above 0, a background thread compacts the file once
+	// delete-pending records make up that fraction of it, and a paged index
+	// once deleted entries make up that fraction of it; see
+	// setCompactionRatio(). _compactFrom is where the pass over the records
+	// got to, or 0 between passes, and _compactingIndex the index partway
+	// through one, if any.
+	private double _compactionRatio;
+	private transient int _compactFrom;
+	private transient Index _compactingIndex;
+	
+	// Each compaction step covers this many record ids, or this many parents
+	// of leaves in a paged index
+	private static final int COMPACTION_STEP_RECORDS = 16 * 1024;
+	private static final int COMPACTION_STEP_PARENTS = 16;
+	
+	// stream() is not split into ranges of fewer record ids than this
+	private static final int RECORD_SPLIT_SIZE = 1024;
+	
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	
+	// A logged file appends each change to <fileName>.log, and only rewrites
+	// the whole file at a checkpoint. The log is replayed over the last
+	// checkpoint when the file is restored. A change is on disk by the time
+	// the call making it returns; see setGroupCommit().
+	private boolean _logged;
+	private int _checkpointInterval;
+	private int _commitInterval;
+	private int _commitBatchSize;
+	private transient volatile RecordLog _log;
+	private transient volatile boolean _replaying;
+	private transient boolean _logReplayed;
 	
 	public DataFile(String fileName, Map<String,Integer> descriptor)
 	{
+		this(fileName, descriptor, false);
+	}
+	
+	public DataFile(String fileName, Map<String,Integer> descriptor, boolean logged)
+	{
+		this(fileName, descriptor, logged, false);
+	}
+	
+	public DataFile(String fileName, Map<String,Integer> descriptor, boolean logged, boolean columnar)
+	{
+		this(fileName, descriptor, Collections.<String,ColumnType>emptyMap(), logged, columnar);
+	}
+	
+	// Values of typed fields must be valid for their type, and indexes sort
+	// them by value; see ColumnType
+	public DataFile(String fileName, Map<String,Integer> descriptor, Map<String,ColumnType> types,
+	                boolean logged, boolean columnar)
+	{
+		for (String field : types.keySet())
+		{
+			if (!descriptor.containsKey(field))
+			{
+				throw new IllegalArgumentException("DataFile::DataFile(): " + field + " is not in the descriptor");
+			}
+		}
+		
 		_fileName = fileName;
 		_fields = descriptor;
-		_dataRecords = new TreeMap<Integer, DataRecord>();
-		_nextRecordId = 0;
+		_types = new HashMap<String,ColumnType>(types);
+		_dataRecords = new RecordStore();
+		_nextRecordId = new AtomicInteger();
+		_columns = columnar ? new ColumnStore(descriptor.keySet()) : null;
 		
 		_indexNames = new LinkedList<String>();
 		_indexes = new HashMap<String,Index>();
 		
-		_modCount = 0;
+		_modCount = new AtomicInteger();
+		_lock = new ReentrantReadWriteLock();
+		_builds = new ArrayList<IndexBuild>();
+		
+		_logged = logged;
+		_checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		_commitInterval = 0;
+		_commitBatchSize = 1;
+		
+		if (_logged)
+		{
+			// Start with an empty checkpoint so the file can be restored
+			// from its log even if it is never dumped
+			checkpoint();
+		}
+	}
+	
+	// The file is written in the form it has always had, with the records
+	// in a map by id and the counters as ints, so that files written before
+	// the records moved to a RecordStore can still be read. Fields added
+	// since are read back with their defaults from such files.
+	private static final ObjectStreamField serialPersistentFields[] =
+	{
+		new ObjectStreamField("_fields", Map.class),
+		new ObjectStreamField("_types", Map.class),
+		new ObjectStreamField("_fileName", String.class),
+		new ObjectStreamField("_dataRecords", Map.class),
+		new ObjectStreamField("_nextRecordId", int.class),
+		new ObjectStreamField("_columns", ColumnStore.class),
+		new ObjectStreamField("_indexNames", List.class),
+		new ObjectStreamField("_indexes", Map.class),
+		new ObjectStreamField("_modCount", int.class),
+		new ObjectStreamField("_compactionRatio", double.class),
+		new ObjectStreamField("_logged", boolean.class),
+		new ObjectStreamField("_checkpointInterval", int.class),
+		new ObjectStreamField("_commitInterval", int.class),
+		new ObjectStreamField("_commitBatchSize", int.class)
+	};
+	
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		Map<Integer,DataRecord> records = new TreeMap<Integer,DataRecord>();
+		Iterator<DataRecord> recordIter = _dataRecords.iterator();
+		
+		while (recordIter.hasNext())
+		{
+			DataRecord record = recordIter.next();
+			records.put(record.getRecordId(), record);
+		}
+		
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("_fields", _fields);
+		fields.put("_types", _types);
+		fields.put("_fileName", _fileName);
+		fields.put("_dataRecords", records);
+		fields.put("_nextRecordId", _nextRecordId.get());
+		fields.put("_columns", _columns);
+		fields.put("_indexNames", _indexNames);
+		fields.put("_indexes", _indexes);
+		fields.put("_modCount", _modCount.get());
+		fields.put("_compactionRatio", _compactionRatio);
+		fields.put("_logged", _logged);
+		fields.put("_checkpointInterval", _checkpointInterval);
+		fields.put("_commitInterval", _commitInterval);
+		fields.put("_commitBatchSize", _commitBatchSize);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		
+		_fields     = (Map<String,Integer>)fields.get("_fields", null);
+		_types      = (Map<String,ColumnType>)fields.get("_types", null);
+		_fileName   = (String)fields.get("_fileName", null);
+		_columns    = (ColumnStore)fields.get("_columns", null);
+		_indexNames = (List<String>)fields.get("_indexNames", null);
+		_indexes    = (Map<String,Index>)fields.get("_indexes", null);
+		
+		_dataRecords = new RecordStore();
+		
+		for (DataRecord record : ((Map<Integer,DataRecord>)fields.get("_dataRecords", null)).values())
+		{
+			_dataRecords.put(record);
+		}
+		
+		_nextRecordId = new AtomicInteger(fields.get("_nextRecordId", 0));
+		_modCount = new AtomicInteger(fields.get("_modCount", 0));
+		
+		_compactionRatio    = fields.get("_compactionRatio", 0.0);
+		_logged             = fields.get("_logged", false);
+		_checkpointInterval = fields.get("_checkpointInterval", DEFAULT_CHECKPOINT_INTERVAL);
+		_commitInterval     = fields.get("_commitInterval", 0);
+		_commitBatchSize    = fields.get("_commitBatchSize", 1);
+		
+		_lock = new ReentrantReadWriteLock();
+		_builds = new ArrayList<IndexBuild>();
 	}
 	
 	public Index createIndex(String indexName, String column)
+	{
+		return createIndex(indexName, column, BTree.DEFAULT_ORDER);
+	}
+	
+	public Index createIndex(String indexName, String column, int order)
+	{
+		return createIndex(indexName, column, order, BTree.DEFAULT_FILL_FACTOR);
+	}
+	
+	public Index createIndex(String indexName, String column, int order, double fillFactor)
+	{
+		return createIndex(indexName, column, order, fillFactor, false);
+	}
+	
+	// Creates an in-memory index whose iterators read a snapshot of it, so
+	// that long scans may run alongside inserts and deletes
+	public Index createSnapshotIndex(String indexName, String column)
+	{
+		return createSnapshotIndex(indexName, column, BTree.DEFAULT_ORDER);
+	}
+	
+	public Index createSnapshotIndex(String indexName, String column, int order)
+	{
+		return createIndex(indexName, column, order, BTree.DEFAULT_FILL_FACTOR, true);
+	}
+	
+	// Creates a covering index over column. Its keys also hold the values
+	// of includedColumns, so that Index.projectionIterator() answers
+	// queries for those columns without reading any record.
+	public Index createIndex(String indexName, String column, List<String> includedColumns)
+	{
+		return createCompositeIndex(indexName, Arrays.asList(column), includedColumns);
+	}
+	
+	// Creates an index keyed on several columns, in the given order. Its
+	// iterators look records up by values for all the columns or for any
+	// number of leading ones; see Index.iterator(String...).
+	public Index createCompositeIndex(String indexName, List<String> columns)
+	{
+		return createCompositeIndex(indexName, columns, BTree.DEFAULT_ORDER);
+	}
+	
+	public Index createCompositeIndex(String indexName, List<String> columns, int order)
+	{
+		return createIndex(indexName, columnList(columns, Collections.<String>emptyList()), order,
+		                   BTree.DEFAULT_FILL_FACTOR, false);
+	}
+	
+	public Index createCompositeIndex(String indexName, List<String> columns,
+	                                  List<String> includedColumns)
+	{
+		return createIndex(indexName, columnList(columns, includedColumns), BTree.DEFAULT_ORDER,
+		                   BTree.DEFAULT_FILL_FACTOR, false);
+	}
+	
+	// Lists the columns of a composite or covering index as Index keeps them
+	private String columnList(List<String> columns, List<String> includedColumns)
+	{
+		if (columns.isEmpty())
+		{
+			throw new IllegalArgumentException
+			   ("DataFile::createCompositeIndex(): no columns to index");
+		}
+		
+		List<String> allColumns = new ArrayList<String>(columns);
+		allColumns.addAll(includedColumns);
+		
+		StringBuilder columnList = new StringBuilder();
+		
+		for (int i = 0; i < allColumns.size(); i++)
+		{
+			String column = allColumns.get(i);
+			
+			if (!_fields.containsKey(column))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::createCompositeIndex(): " + column + " is invalid");
+			}
+			else if (column.contains(Index.COLUMN_SEPARATOR) || column.contains(Index.INCLUDE_SEPARATOR) ||
+			         (allColumns.indexOf(column) != i))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::createCompositeIndex(): " + column + " cannot be indexed here");
+			}
+			
+			if (i > 0)
+			{
+				columnList.append((i == columns.size()) ? Index.INCLUDE_SEPARATOR : Index.COLUMN_SEPARATOR);
+			}
+			columnList.append(column);
+		}
+		
+		return columnList.toString();
+	}
+	
+	private Index createIndex(String indexName, String column, int order, double fillFactor,
+	                          boolean snapshot)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			checkNewIndex(indexName, column);
+			
+			Index newIndex = new Index(this, indexName, column, order, snapshot);
+			
+			buildIndexes(Collections.singletonList(newIndex), fillFactor);
+			addIndex(newIndex, order, snapshot);
+			
+			return newIndex;
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Creates an in-memory index for each entry of columnsByIndexName, named
+	// by its key, over the column it maps to. The indexes are built
+	// concurrently from one pass over the records, so building several
+	// costs little more than building the largest.
+	public List<Index> createIndexes(Map<String,String> columnsByIndexName)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			List<Index> newIndexes = new ArrayList<Index>();
+			Set<String> columns = new HashSet<String>();
+			
+			for (Map.Entry<String,String> m : columnsByIndexName.entrySet())
+			{
+				checkNewIndex(m.getKey(), m.getValue());
+				
+				if (!columns.add(m.getValue()))
+				{
+					throw new IllegalArgumentException
+					   ("DataFile::createIndexes(): " + m.getValue() + " is indexed twice");
+				}
+				
+				newIndexes.add(new Index(this, m.getKey(), m.getValue(), BTree.DEFAULT_ORDER, false));
+			}
+			
+			buildIndexes(newIndexes, BTree.DEFAULT_FILL_FACTOR);
+			
+			for (Index newIndex : newIndexes)
+			{
+				addIndex(newIndex, BTree.DEFAULT_ORDER, false);
+			}
+			
+			return newIndexes;
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	private void checkNewIndex(String indexName, String column)
 	{
 		if (_indexNames.contains(indexName))
 		{
@@ -43,32 +399,137 @@ public class DataFile implements Serializable
 			throw new IllegalArgumentException
 			   ("DataFile::createIndex(): index over " + column + " already exists");
 		}
-		else
+	}
+	
+	// Loads each of newIndexes from the live records. When there are several
+	// they are built concurrently on Index.BUILD_POOL; each also sorts its
+	// keys there in parallel partitions.
+	private void buildIndexes(List<Index> newIndexes, final double fillFactor)
+	{
+		if (newIndexes.isEmpty())
 		{
-			_indexNames.add(indexName);
-			Index newIndex = new Index(this, indexName, column);
-			_indexes.put(column, newIndex);
-			
-			Set<Map.Entry<Integer,DataRecord>> s = _dataRecords.entrySet();
-	        Iterator<Map.Entry<Integer,DataRecord>> recordIter = s.iterator();
-	        
-	        while (recordIter.hasNext())
-	        {
-	        	Map.Entry<Integer,DataRecord> m = recordIter.next();	        	
-	        	DataRecord record = m.getValue();
-	        	
-	        	if (!record.isDeletePending())
-	        	{
-	        		Map<String,String> values = record.getValues();
-
-	        		if (values.containsKey(column))
-	        		{
-	        			newIndex.insertRecord(values.get(column), record);
-	        		}
-	        	}
-	        }
-			
-			return newIndex;
+			return;
+		}
+		
+		final List<DataRecord> liveRecords = new ArrayList<DataRecord>(_dataRecords.size());
+		
+		Iterator<DataRecord> recordIter = _dataRecords.liveIterator();
+		
+		while (recordIter.hasNext())
+		{
+			liveRecords.add(recordIter.next());
+		}
+		
+		if (newIndexes.size() == 1)
+		{
+			newIndexes.get(0).bulkLoad(liveRecords, fillFactor);
+			return;
+		}
+		
+		List<ForkJoinTask<?>> builds = new ArrayList<ForkJoinTask<?>>();
+		
+		for (final Index newIndex : newIndexes)
+		{
+			builds.add(Index.BUILD_POOL.submit(new Runnable()
+			{
+				public void run()
+				{
+					newIndex.bulkLoad(liveRecords, fillFactor);
+				}
+			}));
+		}
+		
+		for (ForkJoinTask<?> build : builds)
+		{
+			build.join();
+		}
+	}
+	
+	private void addIndex(Index newIndex, int order, boolean snapshot)
+	{
+		_indexNames.add(newIndex.getIndexName());
+		_indexes.put(newIndex.getColumnName(), newIndex);
+		
+		logCreateIndex(newIndex.getIndexName(), newIndex.getColumnName(), order, 0, snapshot);
+	}
+	
+	// Creates an index stored in a paged file named indexName, with at most
+	// bufferPages of it cached in memory at a time
+	public Index createPagedIndex(String indexName, String column)
+	{
+		return createPagedIndex(indexName, column, BufferPool.DEFAULT_CAPACITY);
+	}
+	
+	public Index createPagedIndex(String indexName, String column, int bufferPages)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			if (_indexNames.contains(indexName))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::createPagedIndex(): " + indexName + " already exists");
+			}
+			else if (_indexes.containsKey(column))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::createPagedIndex(): index over " + column + " already exists");
+			}
+			else
+			{
+				String keys[] = new String[_dataRecords.size()];
+				int recordIds[] = new int[_dataRecords.size()];
+				int count = 0;
+				
+				String columns[] = Index.columns(column);
+				ColumnType types[] = getColumnTypes(columns);
+				int numIndexedColumns = Index.indexedColumnCount(column);
+				Iterator<DataRecord> recordIter = _dataRecords.liveIterator();
+				
+				while (recordIter.hasNext())
+				{
+					DataRecord record = recordIter.next();
+					String key = Index.keyFor(columns, types, numIndexedColumns, record.getValues());
+					
+					if (key != null)
+					{
+						keys[count] = key;
+						recordIds[count] = record.getRecordId();
+						count++;
+					}
+				}
+				
+				Index newIndex = null;
+				
+				try
+				{
+					PagedBTree tree = PagedBTree.create(indexName, column, keys, recordIds, count,
+					                                    PagedBTree.DEFAULT_PAGE_SIZE,
+					                                    BTree.DEFAULT_FILL_FACTOR, bufferPages);
+					
+					newIndex = new Index(this, indexName, tree);
+				}
+				catch (IOException ex)
+				{
+					ex.printStackTrace();
+					newIndex = null;
+				}
+				
+				if (newIndex != null)
+				{
+					_indexNames.add(indexName);
+					_indexes.put(column, newIndex);
+					
+					logCreateIndex(indexName, column, 0, bufferPages, false);
+				}
+				
+				return newIndex;
+			}
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
 		}
 	}
 	
@@ -76,7 +537,7 @@ public class DataFile implements Serializable
 	{
 		Map<String,String> returnRecord = null;
 		
-		DataRecord record = _dataRecords.get(new Integer(recordId));
+		DataRecord record = _dataRecords.get(recordId);
 		
 		if (record != null)
 		{
@@ -93,333 +554,1475 @@ public class DataFile implements Serializable
 	{
 		// First, validate record:
 		
-		Iterator<Map.Entry<String,String>> valuesIter = record.entrySet().iterator();
+		validate(record, "insertRecord");
 		
-		while(valuesIter.hasNext())
+		// Open the log before taking the lock, since replaying it may need
+		// the write lock
+		RecordLog log = logging() ? log() : null;
+		long seq = 0;
+		int recordId;
+		
+		_lock.readLock().lock();
+		
+		try
 		{
-			Map.Entry<String,String> m = valuesIter.next();
+			recordId = _nextRecordId.getAndIncrement();
 			
-			if (!_fields.containsKey((m.getKey())))
-			{
-				throw new IllegalArgumentException("DataFile::insertRecord(): " + m.getKey() + " is invalid");
-			}
-			else if (m.getValue().length() > _fields.get(m.getKey()))
+			DataRecord newRecord = newRecord(recordId, record);
+			
+			if (log != null)
 			{
-				throw new IllegalArgumentException("DataFile::insertRecord(): " + m.getKey() + " has value whose length exceeds allowable maximum");
+				try
+				{
+					seq = log.appendInsert(recordId, record);
+				}
+				catch (IOException ex)
+				{
+					throw new IllegalStateException("DataFile::insertRecord(): failed to log record", ex);
+				}
 			}
+			
+			_dataRecords.put(newRecord);
+			
+			updateIndexes(recordId, newRecord);
+			
+			_modCount.incrementAndGet();
+		}
+		finally
+		{
+			_lock.readLock().unlock();
 		}
 		
-		DataRecord newRecord = new DataRecord(new Integer(_nextRecordId), record);
-		
-		_dataRecords.put(new Integer(_nextRecordId), newRecord);
-		
-		updateIndexes(_nextRecordId, newRecord);
-
-		_nextRecordId++;
+		// Wait for the log outside the lock, so that concurrent inserts can
+		// share one sync
+		commit(log, seq);
 		
-		_modCount++;
+		checkpointIfDue();
 		
-		return _nextRecordId - 1;
+		return recordId;
 	}
 	
-	private void updateIndexes(int recordId, DataRecord record)
+	// Inserts a batch of records and returns the id given to the first, or
+	// -1 if there are none; the others get the ids that follow it, in
+	// order. Every record is validated before any is inserted, so an invalid
+	// one leaves the file as it was. Each index then takes the batch's keys
+	// sorted, in one ordered pass, rather than a descent for each record.
+	public int insertAll(Iterable<Map<String,String>> records)
 	{
-		Map<String,String> recordValues = record.getValues();
+		List<Map<String,String>> batch = new ArrayList<Map<String,String>>();
 		
-		Iterator<Map.Entry<String,Index>> indexIter = _indexes.entrySet().iterator();
-
-		while(indexIter.hasNext())
+		for (Map<String,String> record : records)
+		{
+			validate(record, "insertAll");
+			batch.add(record);
+		}
+		
+		if (batch.isEmpty())
+		{
+			return -1;
+		}
+		
+		RecordLog log = logging() ? log() : null;
+		long seq = 0;
+		int firstId;
+		
+		// Index trees take sorted batches with no other writers about
+		_lock.writeLock().lock();
+		
+		try
 		{
-			Map.Entry<String,Index> m = indexIter.next();
+			firstId = _nextRecordId.getAndAdd(batch.size());
 			
-			String indexColumn = m.getKey();
+			List<DataRecord> newRecords = new ArrayList<DataRecord>(batch.size());
 			
-			if (recordValues.containsKey(indexColumn))
+			for (int i = 0; i < batch.size(); i++)
 			{
-				m.getValue().insertRecord(recordValues.get(indexColumn), record);
+				DataRecord newRecord = newRecord(firstId + i, batch.get(i));
+				
+				if (log != null)
+				{
+					try
+					{
+						seq = log.appendInsert(firstId + i, batch.get(i));
+					}
+					catch (IOException ex)
+					{
+						throw new IllegalStateException("DataFile::insertAll(): failed to log record", ex);
+					}
+				}
+				
+				_dataRecords.put(newRecord);
+				newRecords.add(newRecord);
 			}
-		}
+			
+			for (Index index : _indexes.values())
+			{
+				index.insertAll(newRecords);
+			}
+			
+			for (IndexBuild build : _builds)
+			{
+				for (DataRecord newRecord : newRecords)
+				{
+					build.inserted(newRecord);
+				}
+			}
+			
+			_modCount.addAndGet(batch.size());
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+		
+		// One sync covers the whole batch
+		commit(log, seq);
+		
+		checkpointIfDue();
+		
+		return firstId;
+	}
+	
+	// Inserts the records of a stream as one batch, as insertAll() above
+	public int insertAll(Stream<Map<String,String>> records)
+	{
+		return insertAll(records::iterator);
+	}
+	
+	// Throws if record names a field outside the descriptor or has a value
+	// that is too long or not of its column's type
+	private void validate(Map<String,String> record, String method)
+	{
+		Iterator<Map.Entry<String,String>> valuesIter = record.entrySet().iterator();
+		
+		while(valuesIter.hasNext())
+		{
+			Map.Entry<String,String> m = valuesIter.next();
+			
+			if (!_fields.containsKey((m.getKey())))
+			{
+				throw new IllegalArgumentException("DataFile::" + method + "(): " + m.getKey() + " is invalid");
+			}
+			else if (m.getValue().length() > _fields.get(m.getKey()))
+			{
+				throw new IllegalArgumentException("DataFile::" + method + "(): " + m.getKey() + " has value whose length exceeds allowable maximum");
+			}
+			else if (!getColumnType(m.getKey()).isValid(m.getValue()))
+			{
+				throw new IllegalArgumentException("DataFile::" + method + "(): " + m.getKey() + " has value that is not a valid " + getColumnType(m.getKey()).name().toLowerCase());
+			}
+		}
+	}
+	
+	private void updateIndexes(int recordId, DataRecord record)
+	{
+		Iterator<Index> indexIter = _indexes.values().iterator();
+
+		while(indexIter.hasNext())
+		{
+			indexIter.next().insertRecord(record);
+		}
+		
+		for (IndexBuild build : _builds)
+		{
+			build.inserted(record);
+		}
+	}
+	
+	DataRecord getDataRecord(int recordId)
+	{
+		return _dataRecords.get(recordId);
+	}
+	
+	// Marks record as deleted and takes it out of every index. The record
+	// itself stays in the file until rebuildFile() is called.
+	void deleteRecord(DataRecord record)
+	{
+		RecordLog log = logging() ? log() : null;
+		long seq = 0;
+		
+		_lock.readLock().lock();
+		
+		try
+		{
+			if (log != null)
+			{
+				try
+				{
+					seq = log.appendDelete(record.getRecordId());
+				}
+				catch (IOException ex)
+				{
+					throw new IllegalStateException("DataFile::deleteRecord(): failed to log delete", ex);
+				}
+			}
+			
+			applyDelete(record);
+		}
+		finally
+		{
+			_lock.readLock().unlock();
+		}
+		
+		commit(log, seq);
+		
+		checkpointIfDue();
+	}
+	
+	private void applyDelete(DataRecord record)
+	{
+		_dataRecords.markDeleted(record);
+		
+		Iterator<Index> indexIter = _indexes.values().iterator();
+		
+		while (indexIter.hasNext())
+		{
+			indexIter.next().deleteRecord(record);
+		}
+		
+		for (IndexBuild build : _builds)
+		{
+			build.deleted(record);
+		}
+		
+		_modCount.incrementAndGet();
+	}
+	
+	// Makes the record for values; in a columnar file the values are copied
+	// into the columns and the record gets a view over them
+	private DataRecord newRecord(int recordId, Map<String,String> values)
+	{
+		if (_columns != null)
+		{
+			_columns.put(recordId, values);
+			values = _columns.view(recordId);
+		}
+		
+		return new DataRecord(recordId, values);
+	}
+	
+	// Replays an insert read back from the log. Records already in the last
+	// checkpoint are skipped, so a log that outlived its checkpoint is safe
+	// to replay.
+	void replayInsert(int recordId, Map<String,String> values)
+	{
+		if (!_dataRecords.contains(recordId))
+		{
+			DataRecord newRecord = newRecord(recordId, values);
+			
+			_dataRecords.put(newRecord);
+			
+			updateIndexes(recordId, newRecord);
+			
+			_modCount.incrementAndGet();
+		}
+		
+		if (_nextRecordId.get() <= recordId)
+		{
+			_nextRecordId.set(recordId + 1);
+		}
+	}
+	
+	void replayDelete(int recordId)
+	{
+		DataRecord record = _dataRecords.get(recordId);
+		
+		if ((record != null) && !record.isDeletePending())
+		{
+			applyDelete(record);
+		}
+	}
+	
+	void replayCreateIndex(String indexName, String column, int order, int bufferPages,
+	                       boolean snapshot)
+	{
+		if (!_indexNames.contains(indexName) && !_indexes.containsKey(column))
+		{
+			if (bufferPages > 0)
+			{
+				createPagedIndex(indexName, column, bufferPages);
+			}
+			else
+			{
+				createIndex(indexName, column, order, BTree.DEFAULT_FILL_FACTOR, snapshot);
+			}
+		}
+	}
+	
+	void replayAttachIndex(String indexName, boolean mapped)
+	{
+		if (!_indexNames.contains(indexName) && new File(indexName).exists())
+		{
+			if (mapped)
+			{
+				mapIndex(indexName);
+			}
+			else
+			{
+				restoreIndex(indexName);
+			}
+		}
+	}
+	
+	void replayDropIndex(String indexName)
+	{
+		if (_indexNames.contains(indexName))
+		{
+			dropIndex(indexName);
+		}
+	}
+	
+	public boolean isLogged()
+	{
+		return _logged;
+	}
+	
+	public boolean isColumnar()
+	{
+		return _columns != null;
+	}
+	
+	public ColumnType getColumnType(String field)
+	{
+		ColumnType type = (_types != null) ? _types.get(field) : null;
+		
+		return (type != null) ? type : ColumnType.STRING;
+	}
+	
+	ColumnType[] getColumnTypes(String fields[])
+	{
+		ColumnType types[] = new ColumnType[fields.length];
+		
+		for (int i = 0; i < fields.length; i++)
+		{
+			types[i] = getColumnType(fields[i]);
+		}
+		
+		return types;
+	}
+	
+	// Lets concurrent changes to a logged file share one sync of the log.
+	// A change waits up to commitInterval milliseconds for others to join
+	// it, or until batchSize changes are waiting. A batch size of 1, the
+	// default, syncs the log once per change.
+	public void setGroupCommit(int commitInterval, int batchSize)
+	{
+		if ((commitInterval < 0) || (batchSize < 1))
+		{
+			throw new IllegalArgumentException
+			   ("DataFile::setGroupCommit(): interval must not be negative and batch size must be positive");
+		}
+		
+		_commitInterval = commitInterval;
+		_commitBatchSize = batchSize;
+		
+		if (_log != null)
+		{
+			_log.setGroupCommit(_commitInterval, _commitBatchSize);
+		}
+	}
+	
+	// Number of logged changes after which the file is checkpointed
+	public void setCheckpointInterval(int entries)
+	{
+		if (entries < 1)
+		{
+			throw new IllegalArgumentException
+			   ("DataFile::setCheckpointInterval(): interval must be positive");
+		}
+		
+		_checkpointInterval = entries;
+	}
+	
+	// Compacts the file in the background instead of through rebuildFile()
+	// and rebuildIndex(): delete-pending records are dropped once they make
+	// up ratio of the file, and the leaves of a paged index are merged once
+	// deleted entries make up ratio of it. The work is done a bounded step at
+	// a time and rate-limited; see Compactor. A ratio of 0 turns it off.
+	public void setCompactionRatio(double ratio)
+	{
+		if ((ratio < 0) || (ratio > 1))
+		{
+			throw new IllegalArgumentException
+			   ("DataFile::setCompactionRatio(): ratio must be between 0 and 1");
+		}
+		
+		_compactionRatio = ratio;
+		
+		if (ratio > 0)
+		{
+			Compactor.register(this);
+		}
+		else
+		{
+			Compactor.unregister(this);
+		}
+	}
+	
+	// Number of delete-pending records not yet compacted away
+	public int getDeletedCount()
+	{
+		return _dataRecords.deletedCount();
+	}
+	
+	// A logged file is only rewritten when no checkpoint exists yet;
+	// otherwise every change is already in the log.
+	public void dumpFile()
+	{
+		if (_logged && new File(_fileName).exists())
+		{
+			flushPagedIndexes();
+			
+			try
+			{
+				log().commitAll();
+			}
+			catch (IOException ex)
+			{
+				ex.printStackTrace();
+			}
+		}
+		else
+		{
+			checkpoint();
+		}
+	}
+	
+	// Writes the whole file and, for a logged file, empties the log. The
+	// file is written to <fileName>.tmp, synced, and renamed over the old
+	// one, so that a crash part way leaves the last checkpoint whole; the
+	// log still holds every change since it.
+	public void checkpoint()
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			flushPagedIndexes();
+			
+			File file = new File(_fileName);
+			File temp = new File(_fileName + ".tmp");
+			
+			FileOutputStream fos = null;
+	        ObjectOutputStream out = null;
+       
+	        try
+	        {
+	            fos = new FileOutputStream(temp);
+	            out = new ObjectOutputStream(fos);
+	            out.writeObject(this);
+	            out.flush();
+	            fos.getFD().sync();
+	            out.close();
+	            
+	            Files.move(temp.toPath(), file.toPath(),
+	                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	            syncDirectory(file);
+            
+	            if (_logged)
+	            {
+	            	// The log may only be emptied once the checkpoint is on disk
+	            	if (_log == null)
+	            	{
+	            		_log = RecordLog.create(_fileName + ".log", logFields());
+	            		_log.setGroupCommit(_commitInterval, _commitBatchSize);
+	            		_logReplayed = true;
+	            	}
+	            	else
+	            	{
+	            		_log.truncate();
+	            	}
+	            }
+	        }
+	        catch(IOException ex)
+	        {
+	            ex.printStackTrace();
+	        }
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Syncs the directory holding file, so that a rename into it survives a
+	// crash. Some platforms cannot open a directory; there the rename is
+	// left to the file system.
+	private static void syncDirectory(File file)
+	{
+		File dir = file.getAbsoluteFile().getParentFile();
+		
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException ex)
+		{
+			// Not supported here
+		}
+	}
+	
+	// Replays the log over a file just read back from its last checkpoint,
+	// and picks up background compaction where it was turned on
+	void recoverLog()
+	{
+		if (_logged)
+		{
+			log();
+		}
+		
+		if (_compactionRatio > 0)
+		{
+			Compactor.register(this);
+		}
+	}
+	
+	private boolean logging()
+	{
+		return _logged && !_replaying;
+	}
+	
+	private RecordLog log()
+	{
+		RecordLog log = _log;
+		
+		if (log == null)
+		{
+			_lock.writeLock().lock();
+			
+			try
+			{
+				if (_log == null)
+				{
+					_replaying = true;
+					
+					// Once replayed, the log only holds changes already in memory
+					RecordLog newLog = RecordLog.open(_fileName + ".log", logFields(),
+					                                  _logReplayed ? null : this);
+					newLog.setGroupCommit(_commitInterval, _commitBatchSize);
+					
+					_log = newLog;
+					_logReplayed = true;
+				}
+				
+				log = _log;
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException
+				   ("DataFile::log(): " + _fileName + ".log could not be opened", ex);
+			}
+			finally
+			{
+				_replaying = false;
+				_lock.writeLock().unlock();
+			}
+		}
+		
+		return log;
+	}
+	
+	// Blocks until the change logged as seq is on disk
+	private void commit(RecordLog log, long seq)
+	{
+		if (log != null)
+		{
+			try
+			{
+				log.commit(seq);
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException("DataFile::commit(): failed to sync log", ex);
+			}
+		}
+	}
+	
+	private void logCreateIndex(String indexName, String column, int order, int bufferPages,
+	                            boolean snapshot)
+	{
+		if (logging())
+		{
+			try
+			{
+				RecordLog log = log();
+				commit(log, log.appendCreateIndex(indexName, column, order, bufferPages, snapshot));
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException
+				   ("DataFile::logCreateIndex(): failed to log " + indexName, ex);
+			}
+		}
+	}
+	
+	private void logAttachIndex(String indexName, boolean mapped)
+	{
+		if (logging())
+		{
+			try
+			{
+				RecordLog log = log();
+				commit(log, log.appendAttachIndex(indexName, mapped));
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException
+				   ("DataFile::logAttachIndex(): failed to log " + indexName, ex);
+			}
+		}
+	}
+	
+	private void logDropIndex(String indexName)
+	{
+		if (logging())
+		{
+			try
+			{
+				RecordLog log = log();
+				commit(log, log.appendDropIndex(indexName));
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException
+				   ("DataFile::logDropIndex(): failed to log " + indexName, ex);
+			}
+		}
+	}
+	
+	// The log stores values in the descriptor's fields sorted by name
+	private List<String> logFields()
+	{
+		List<String> fields = new ArrayList<String>(_fields.keySet());
+		Collections.sort(fields);
+		
+		return fields;
+	}
+	
+	private void checkpointIfDue()
+	{
+		if (logging() && (log().getEntryCount() >= _checkpointInterval))
+		{
+			checkpoint();
+		}
+	}
+	
+	// Releases the log file; it is reopened on the next change
+	void closeLog()
+	{
+		if (_log != null)
+		{
+			try
+			{
+				_log.close();
+			}
+			catch (IOException ex)
+			{
+				ex.printStackTrace();
+			}
+			
+			_log = null;
+		}
+	}
+	
+	// Paged indexes are kept in their own files; make sure those are
+	// current before the file that refers to them is written
+	private void flushPagedIndexes()
+	{
+		Iterator<Index> indexIter = _indexes.values().iterator();
+		
+		while (indexIter.hasNext())
+		{
+			Index index = indexIter.next();
+			
+			if (index.isPaged())
+			{
+				index.dumpIndex();
+			}
+		}
+	}
+	
+	public String viewFile()
+	{
+		String returnString = "";
+		
+        Iterator<DataRecord> recordIter = _dataRecords.iterator();
+		
+		while (recordIter.hasNext())
+		{
+			DataRecord record = recordIter.next();
+			
+			if (!record.isDeletePending())
+			{
+				returnString += String.format("%d:\n", record.getRecordId());//Key of the DataRecord
+				
+				Map<String,String> values = record.getValues();  //Value of the DataRecord
+
+				Iterator<Map.Entry<String,Integer>> fieldIter = _fields.entrySet().iterator(); //Descriptor
+
+				while (fieldIter.hasNext())
+				{
+					Map.Entry<String,Integer> m2 = fieldIter.next();
+
+					if (values.containsKey(m2.getKey()))
+					{
+						returnString += "\t" + m2.getKey() + ": " + values.get(m2.getKey()) + "\n";//Retrieve the key and the value of the DataRecord
+					}
+				}
+			}
+		}
+		
+		System.out.print(returnString);
+		
+		return returnString;
+	}
+	
+	public void dropFile()
+	{
+		Compactor.unregister(this);
+		
+		_lock.writeLock().lock();
+		
+		try
+		{
+			Iterator<Index> indexIter = _indexes.values().iterator();
+			
+			while (indexIter.hasNext())
+			{
+				indexIter.next().close();
+			}
+			
+			// Delete all index files
+			Iterator<String> it = _indexNames.iterator();
+        
+	        while(it.hasNext())
+	        {
+	            String indexName = it.next();
+            
+	            File f = new File(indexName);
+            
+	            if (f.exists())
+	            {
+	            	try
+	            	{
+	            		boolean success = f.delete();
+            		
+	            		if (!success)
+	            		{
+	            			System.out.println("Failed to delete index file: " + indexName);
+	            		}
+	            	}
+	            	catch (Exception e)
+	            	{
+	            		System.out.println("Error occurred while trying to delete index file: " + indexName);
+	            	}
+	            }
+	        }
+        
+	        closeLog();
+        
+	        File log = new File(_fileName + ".log");
+        
+	        if (log.exists() && !log.delete())
+	        {
+	        	System.out.println("Failed to delete log file: " + _fileName + ".log");
+	        }
+        
+	        // Delete data file if it exists
+        
+	        File f = new File(_fileName);
+        
+	        if (f.exists())
+	        {
+	        	try
+	        	{
+	        		boolean success = f.delete();
+        		
+	        		if (!success)
+	        		{
+	        			System.out.println("Failed to delete data file: " + _fileName);
+	        		}
+	        	}
+	        	catch (Exception e)
+	        	{
+	        		System.out.println("Error occurred while trying to delete data file: " + _fileName);
+	        	}
+	        }
+        
+	        clear();
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	private void clear()
+	{
+		_dataRecords.clear();
+		
+		if (_columns != null)
+		{
+			_columns.clear();
+		}
+		_nextRecordId.set(0);
+		
+		_indexNames.clear();
+		_indexes.clear();
+		
+		_modCount.set(0);
 	}
 	
-	public void dumpFile()
+	public int getModCount()
 	{
-		FileOutputStream fos = null;
-        ObjectOutputStream out = null;
-       
-        try
-        {
-            fos = new FileOutputStream(_fileName);
-            out = new ObjectOutputStream(fos);
-            out.writeObject(this);
-           
-        }
-        catch(IOException ex)
-        {
-            ex.printStackTrace();
-        }
+		return _modCount.get();
 	}
 	
-	public String viewFile()
+	public void incrementModCount()
 	{
-		String returnString = "";
+		_modCount.incrementAndGet();
+	}
+	
+	public Index restoreIndex(String indexName)
+	{
+		return restoreIndex(indexName, BufferPool.DEFAULT_CAPACITY);
+	}
+	
+	// Index files written by dumpIndex() are opened in place: only their
+	// header is read, and at most bufferPages pages are cached at a time.
+	public Index restoreIndex(String indexName, int bufferPages)
+	{
+		_lock.writeLock().lock();
 		
-		Set<Map.Entry<Integer,DataRecord>> s = _dataRecords.entrySet();
+		try
+		{
+			if (_indexNames.contains(indexName))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::restoreIndex(): " + indexName + " already exists in memory");
+			}
+			else
+			{
+				File f = new File(indexName);
+				
+				if (!f.exists())
+				{
+					throw new IllegalArgumentException
+					   ("DataFile::restoreIndex(): " + indexName + " not found");
+				}
+				else
+				{
+					Index index = null;
+					
+					try
+					{
+						if (PagedBTree.isPagedFile(indexName))
+						{
+							index = new Index(this, indexName, PagedBTree.open(indexName, bufferPages));
+						}
+						else
+						{
+							// Written by dumpIndex() before indexes were paged
+							FileInputStream fis = new FileInputStream(indexName);
+							ObjectInputStream in = new ObjectInputStream(fis);
+							index = (Index)in.readObject();
+							in.close();
+							
+							index.setFile(this);
+						}
+					}
+					catch (IOException ex)
+					{
+						ex.printStackTrace();
+						index = null;
+					}
+					catch (ClassNotFoundException ex)
+					{
+						ex.printStackTrace();
+						index = null;
+					}
 
-        Iterator<Map.Entry<Integer,DataRecord>> recordIter = s.iterator();
+					if (index != null)
+					{
+						_indexNames.add(indexName);
+						_indexes.put(new String(index.getColumnName()), index);
+						
+						logAttachIndex(indexName, false);
+					}
+					
+					return index;
+				}
+			}
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Opens an index file written by dumpIndex() read-only through a memory
+	// mapping, so lookups read the file's pages in place. The index is
+	// reopened for writing the first time an insert or delete reaches it.
+	public Index mapIndex(String indexName)
+	{
+		_lock.writeLock().lock();
 		
-		while (recordIter.hasNext())
+		try
+		{
+			if (_indexNames.contains(indexName))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::mapIndex(): " + indexName + " already exists in memory");
+			}
+			else if (!PagedBTree.isPagedFile(indexName))
+			{
+				throw new IllegalArgumentException
+				   ("DataFile::mapIndex(): " + indexName + " is not a paged index file");
+			}
+			else
+			{
+				Index index = null;
+				
+				try
+				{
+					index = new Index(this, indexName, MappedBTree.open(indexName));
+				}
+				catch (IOException ex)
+				{
+					ex.printStackTrace();
+					index = null;
+				}
+				
+				if (index != null)
+				{
+					_indexNames.add(indexName);
+					_indexes.put(new String(index.getColumnName()), index);
+					
+					logAttachIndex(indexName, true);
+				}
+				
+				return index;
+			}
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	public void dropIndex(String indexName)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			if (_indexNames.contains(indexName))
+			{
+				_indexNames.remove(indexName);
+				
+				Iterator<Map.Entry<String,Index>> indexIter = _indexes.entrySet().iterator();
+
+				String key = null;
+				
+				while(indexIter.hasNext())
+				{
+					Map.Entry<String,Index> m = indexIter.next();
+					
+					if (indexName.compareTo(m.getValue().getIndexName()) == 0)
+					{
+						key = m.getKey();
+						break;
+					}
+				}
+				
+				if (key != null)
+				{
+					_indexes.remove(key).close();
+				}
+				
+				logDropIndex(indexName);
+			}
+			
+			File f = new File(indexName);
+			if (f.exists())
+			{
+				try
+	        	{
+	        		boolean success = f.delete();
+        		
+	        		if (!success)
+	        		{
+	        			System.out.println("Failed to delete index file: " + indexName);
+	        		}
+	        	}
+	        	catch (Exception e)
+	        	{
+	        		System.out.println("Error occurred while trying to delete index file: " + indexName);
+	        	}
+			}
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	public void rebuildFile()
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			// Drop every record that is marked as deleted
+			if (_columns != null)
+			{
+				Iterator<DataRecord> recordIter = _dataRecords.iterator();
+				
+				while (recordIter.hasNext())
+				{
+					DataRecord record = recordIter.next();
+					
+					if (record.isDeletePending())
+					{
+						_columns.remove(record.getRecordId());
+					}
+				}
+				
+				_columns.compact();
+			}
+			
+			_dataRecords.removeDeleted();
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Takes one step of background compaction, if any is due, and returns
+	// whether it did. The records are compacted first, a range of ids at a
+	// time under the write lock, and then any paged index over the ratio, a
+	// few parents of leaves at a time.
+	boolean compactStep()
+	{
+		double ratio = _compactionRatio;
+		
+		if (ratio <= 0)
+		{
+			return false;
+		}
+		
+		int numDeleted = _dataRecords.deletedCount();
+		
+		if ((_compactFrom > 0) ||
+		    ((numDeleted > 0) && (numDeleted >= ratio * _dataRecords.size())))
 		{
-			Map.Entry<Integer,DataRecord> m1 = recordIter.next();
+			_lock.writeLock().lock();
 			
-			DataRecord record = m1.getValue();
+			try
+			{
+				int fromId = _compactFrom;
+				int toId = (int)Math.min((long)fromId + COMPACTION_STEP_RECORDS, Integer.MAX_VALUE);
+				
+				if (_columns != null)
+				{
+					for (int id = fromId; id < toId; id++)
+					{
+						if (_dataRecords.isDeleted(id))
+						{
+							_columns.remove(id);
+						}
+					}
+				}
+				
+				_dataRecords.removeDeleted(fromId, toId);
+				
+				if (_columns != null)
+				{
+					_columns.compact(fromId, toId);
+				}
+				
+				_compactFrom = (toId < _nextRecordId.get()) ? toId : 0;
+			}
+			finally
+			{
+				_lock.writeLock().unlock();
+			}
 			
-			if (!record.isDeletePending())
+			return true;
+		}
+		
+		_lock.readLock().lock();
+		
+		try
+		{
+			if ((_compactingIndex != null) && !_indexes.containsValue(_compactingIndex))
 			{
-				returnString += String.format("%d:\n", m1.getKey().intValue());//Key of the DataRecord
+				_compactingIndex = null;
+			}
+			
+			if (_compactingIndex == null)
+			{
+				for (Index index : _indexes.values())
+				{
+					if ((index.getDeleteCount() > 0) && (index.deletedRatio() >= ratio))
+					{
+						_compactingIndex = index;
+						break;
+					}
+				}
 				
-				Map<String,String> values = record.getValues();  //Value of the DataRecord
-
-				Iterator<Map.Entry<String,Integer>> fieldIter = _fields.entrySet().iterator(); //Descriptor
-
-				while (fieldIter.hasNext())
+				if (_compactingIndex == null)
 				{
-					Map.Entry<String,Integer> m2 = fieldIter.next();
+					return false;
+				}
+			}
+			
+			if (_compactingIndex.compact(COMPACTION_STEP_PARENTS))
+			{
+				_compactingIndex = null;
+			}
+			
+			return true;
+		}
+		finally
+		{
+			_lock.readLock().unlock();
+		}
+	}
+	
+	public void rebuildIndex(String indexName)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			if (_indexNames.contains(indexName))
+			{
+				String column = null;
+				int order = BTree.DEFAULT_ORDER;
+				boolean paged = false;
+				boolean snapshot = false;
+				int bufferPages = BufferPool.DEFAULT_CAPACITY;
+				
+				boolean indexFound = false;
+				
+				Iterator<Map.Entry<String,Index>> indexIter = _indexes.entrySet().iterator();
+				
+				// Remove old index
+				while(indexIter.hasNext())
+				{
+					Map.Entry<String,Index> m = indexIter.next();
+					
+					if (indexName.compareTo(m.getValue().getIndexName()) == 0)
+					{
+						indexFound = true;
+						column = m.getValue().getColumnName();
+						order = m.getValue().getOrder();
+						paged = m.getValue().isPaged();
+						snapshot = m.getValue().isSnapshot();
+						bufferPages = m.getValue().getBufferPages();
+						m.getValue().close();
+						indexIter.remove();
+						break;
+					}
+				}
+				
+				if (indexFound)
+				{
+					// Remove index name from list of indexes, createIndex will add it back in.
+					_indexNames.remove(indexName);
 
-					if (values.containsKey(m2.getKey()))
+					// Rebuild index - this will only add records not tagged as delete
+					if (paged)
+					{
+						createPagedIndex(indexName, column, bufferPages);
+					}
+					else
+					{
+						createIndex(indexName, column, order, BTree.DEFAULT_FILL_FACTOR, snapshot);
+					}
+				}
+			}
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Rebuilds every index as rebuildIndex() does, and returns the new ones.
+	// The in-memory ones are built concurrently; paged ones, one after
+	// another.
+	public List<Index> rebuildIndexes()
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			List<Index> allIndexes = new ArrayList<Index>(_indexes.values());
+			List<Index> oldIndexes = new ArrayList<Index>();
+			List<Index> newIndexes = new ArrayList<Index>();
+			
+			for (Index oldIndex : allIndexes)
+			{
+				if (oldIndex.isPaged())
+				{
+					rebuildIndex(oldIndex.getIndexName());
+				}
+				else
+				{
+					oldIndexes.add(oldIndex);
+					newIndexes.add(new Index(this, oldIndex.getIndexName(), oldIndex.getColumnName(),
+					                         oldIndex.getOrder(), oldIndex.isSnapshot()));
+				}
+			}
+			
+			buildIndexes(newIndexes, BTree.DEFAULT_FILL_FACTOR);
+			
+			for (int i = 0; i < oldIndexes.size(); i++)
+			{
+				Index oldIndex = oldIndexes.get(i);
+				
+				oldIndex.close();
+				_indexes.remove(oldIndex.getColumnName());
+				_indexNames.remove(oldIndex.getIndexName());
+				
+				addIndex(newIndexes.get(i), oldIndex.getOrder(), oldIndex.isSnapshot());
+			}
+			
+			for (int i = 0; i < allIndexes.size(); i++)
+			{
+				allIndexes.set(i, _indexes.get(allIndexes.get(i).getColumnName()));
+			}
+			
+			return allIndexes;
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Builds an in-memory index over column in the background and returns
+	// its result, the new index, which is in place by the time it is done.
+	// Inserts and deletes go on while it is built and are applied to it
+	// before it is put in place; only that last step takes the write lock.
+	public Future<Index> createIndexOnline(String indexName, String column)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			checkNewIndex(indexName, column);
+			
+			return startBuild(new Index(this, indexName, column), null);
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	// Rebuilds an in-memory index in the background as createIndexOnline()
+	// builds one. The old index serves lookups and takes changes until the
+	// new one replaces it.
+	public Future<Index> rebuildIndexOnline(String indexName)
+	{
+		_lock.writeLock().lock();
+		
+		try
+		{
+			for (Index oldIndex : _indexes.values())
+			{
+				if (oldIndex.getIndexName().equals(indexName))
+				{
+					if (oldIndex.isPaged())
 					{
-						returnString += "\t" + m2.getKey() + ": " + values.get(m2.getKey()) + "\n";//Retrieve the key and the value of the DataRecord
+						throw new IllegalArgumentException
+						   ("DataFile::rebuildIndexOnline(): " + indexName + " is a paged index");
 					}
+					
+					return startBuild(new Index(this, indexName, oldIndex.getColumnName(), oldIndex.getOrder(),
+					                            oldIndex.isSnapshot()), oldIndex);
 				}
 			}
+			
+			throw new IllegalArgumentException
+			   ("DataFile::rebuildIndexOnline(): " + indexName + " does not exist");
+		}
+		finally
+		{
+			_lock.writeLock().unlock();
 		}
-		
-		System.out.print(returnString);
-		
-		return returnString;
-	}
-	
-	public void dropFile()
-	{
-		// Delete all index files
-		Iterator<String> it = _indexNames.iterator();
-        
-        while(it.hasNext())
-        {
-            String indexName = it.next();
-            
-            File f = new File(indexName);
-            
-            if (f.exists())
-            {
-            	try
-            	{
-            		boolean success = f.delete();
-            		
-            		if (!success)
-            		{
-            			System.out.println("Failed to delete index file: " + indexName);
-            		}
-            	}
-            	catch (Exception e)
-            	{
-            		System.out.println("Error occurred while trying to delete index file: " + indexName);
-            	}
-            }
-        }
-        
-        // Delete data file if it exists
-        
-        File f = new File(_fileName);
-        
-        if (f.exists())
-        {
-        	try
-        	{
-        		boolean success = f.delete();
-        		
-        		if (!success)
-        		{
-        			System.out.println("Failed to delete data file: " + _fileName);
-        		}
-        	}
-        	catch (Exception e)
-        	{
-        		System.out.println("Error occurred while trying to delete data file: " + _fileName);
-        	}
-        }
-        
-        clear();
 	}
 	
-	private void clear()
+	// Called with the write lock held, so that every record below the
+	// build's end id is in the store and every later change reaches it
+	private Future<Index> startBuild(Index newIndex, Index oldIndex)
 	{
-		_dataRecords.clear();
-		_nextRecordId = 0;
+		IndexBuild build = new IndexBuild(newIndex, oldIndex, _nextRecordId.get());
+		_builds.add(build);
 		
-		_indexNames.clear();
-		_indexes.clear();
+		FutureTask<Index> task = new FutureTask<Index>(build);
 		
-		_modCount = 0;
-	}
-	
-	public int getModCount()
-	{
-		return _modCount;
+		Thread builder = new Thread(task, "Index build: " + newIndex.getIndexName());
+		builder.setDaemon(true);
+		builder.start();
+		
+		return task;
 	}
 	
-	public void incrementModCount()
+	// A record inserted into or deleted from the file while an index was
+	// being built
+	private static class IndexChange
 	{
-		_modCount++;
+		final DataRecord _record;
+		final boolean _delete;
+		
+		IndexChange(DataRecord record, boolean delete)
+		{
+			_record = record;
+			_delete = delete;
+		}
 	}
 	
-	public Index restoreIndex(String indexName)
+	// An index being built in the background. It is loaded from the records
+	// below _endRecordId, which were in the file when it started; inserts and
+	// deletes made since are queued in _changes, in order, and applied to it
+	// before it takes oldIndex's place, or its own.
+	private class IndexBuild implements Callable<Index>
 	{
-		if (_indexNames.contains(indexName))
+		final Index _newIndex;
+		final Index _oldIndex;
+		final int _endRecordId;
+		
+		final ConcurrentLinkedQueue<IndexChange> _changes;
+		final AtomicInteger _numChanges;
+		
+		IndexBuild(Index newIndex, Index oldIndex, int endRecordId)
 		{
-			throw new IllegalArgumentException
-			   ("DataFile::restoreIndex(): " + indexName + " already exists in memory");
+			_newIndex    = newIndex;
+			_oldIndex    = oldIndex;
+			_endRecordId = endRecordId;
+			_changes     = new ConcurrentLinkedQueue<IndexChange>();
+			_numChanges  = new AtomicInteger();
 		}
-		else
+		
+		void inserted(DataRecord record)
 		{
-			File f = new File(indexName);
+			_changes.add(new IndexChange(record, false));
+			_numChanges.incrementAndGet();
+		}
+		
+		void deleted(DataRecord record)
+		{
+			_changes.add(new IndexChange(record, true));
+			_numChanges.incrementAndGet();
+		}
+		
+		public Index call()
+		{
+			boolean loaded = false;
 			
-			if (!f.exists())
-			{
-				throw new IllegalArgumentException
-				   ("DataFile::restoreIndex(): " + indexName + " not found");
-			}
-			else
+			try
 			{
-				Index index = null;
+				List<DataRecord> records = new ArrayList<DataRecord>();
+				Iterator<DataRecord> recordIter = _dataRecords.liveIterator();
 				
-				try
+				while (recordIter.hasNext())
 				{
-					FileInputStream fis = new FileInputStream(indexName);
-					ObjectInputStream in = new ObjectInputStream(fis);
-					index = (Index)in.readObject();
-					in.close();
+					DataRecord record = recordIter.next();
+					
+					if (record.getRecordId() < _endRecordId)
+					{
+						records.add(record);
+					}
 				}
-				catch (IOException ex)
+				
+				_newIndex.bulkLoad(records, BTree.DEFAULT_FILL_FACTOR);
+				
+				// Catch up with writers while they carry on, for as long as
+				// the backlog keeps shrinking
+				int backlog = Integer.MAX_VALUE;
+				int applied;
+				
+				while (((applied = applyChanges()) >= ONLINE_BUILD_CATCH_UP) && (applied < backlog))
 				{
-					ex.printStackTrace();
-					index = null;
+					backlog = applied;
 				}
-				catch (ClassNotFoundException ex)
+				
+				loaded = true;
+			}
+			finally
+			{
+				_lock.writeLock().lock();
+				
+				try
 				{
-					ex.printStackTrace();
-					index = null;
+					_builds.remove(this);
+					
+					if (loaded)
+					{
+						applyChanges();
+						install();
+					}
 				}
-
-				if (index != null)
+				finally
 				{
-					_indexNames.add(indexName);
-					_indexes.put(new String(index.getColumnName()), index);
+					_lock.writeLock().unlock();
 				}
-				
-				return index;
 			}
+			
+			return _newIndex;
 		}
-	}
-	
-	public void dropIndex(String indexName)
-	{
-		if (_indexNames.contains(indexName))
+		
+		// Applies the changes queued so far, but none queued meanwhile, and
+		// returns how many there were
+		private int applyChanges()
 		{
-			_indexNames.remove(indexName);
-			
-			Iterator<Map.Entry<String,Index>> indexIter = _indexes.entrySet().iterator();
-
-			String key = null;
+			int count = _numChanges.get();
 			
-			while(indexIter.hasNext())
+			for (int i = 0; i < count; i++)
 			{
-				Map.Entry<String,Index> m = indexIter.next();
+				IndexChange change = _changes.poll();
 				
-				if (indexName.compareTo(m.getValue().getIndexName()) == 0)
+				if (change._delete)
 				{
-					key = m.getKey();
-					break;
+					_newIndex.deleteRecord(change._record);
+				}
+				else
+				{
+					_newIndex.insertRecord(change._record);
 				}
 			}
 			
-			if (key != null)
-			{
-				_indexes.remove(key);
-			}
-		}
-		
-		File f = new File(indexName);
-		if (f.exists())
-		{
-			try
-        	{
-        		boolean success = f.delete();
-        		
-        		if (!success)
-        		{
-        			System.out.println("Failed to delete index file: " + indexName);
-        		}
-        	}
-        	catch (Exception e)
-        	{
-        		System.out.println("Error occurred while trying to delete index file: " + indexName);
-        	}
+			_numChanges.addAndGet(-count);
+			
+			return count;
 		}
-	}
-	
-	public void rebuildFile()
-	{
-		// Here, we simply iterate through all data records and remove those
-		// that are marked as deleted:
-		Set<Map.Entry<Integer,DataRecord>> s = _dataRecords.entrySet();
-
-        Iterator<Map.Entry<Integer,DataRecord>> recordIter = s.iterator();
 		
-		while (recordIter.hasNext())
+		private void install()
 		{
-			Map.Entry<Integer,DataRecord> m1 = recordIter.next();
-			
-			DataRecord record = m1.getValue();
+			String indexName = _newIndex.getIndexName();
 			
-			if (record.isDeletePending())
+			if (_oldIndex == null)
 			{
-				recordIter.remove();
+				checkNewIndex(indexName, _newIndex.getColumnName());
 			}
-		}
-	}
-	
-	public void rebuildIndex(String indexName)
-	{
-		if (_indexNames.contains(indexName))
-		{
-			String column = null;
-			
-			boolean indexFound = false;
-			
-			Iterator<Map.Entry<String,Index>> indexIter = _indexes.entrySet().iterator();
-			
-			// Remove old index
-			while(indexIter.hasNext())
+			else if (_indexes.get(_oldIndex.getColumnName()) != _oldIndex)
 			{
-				Map.Entry<String,Index> m = indexIter.next();
-				
-				if (indexName.compareTo(m.getValue().getIndexName()) == 0)
-				{
-					indexFound = true;
-					column = m.getValue().getColumnName();
-					indexIter.remove();
-					break;
-				}
+				throw new IllegalStateException
+				   ("DataFile::rebuildIndexOnline(): " + indexName + " was dropped during the build");
 			}
-			
-			if (indexFound)
+			else
 			{
-				// Remove index name from list of indexes, createIndex will add it back in.
+				_oldIndex.close();
+				_indexes.remove(_oldIndex.getColumnName());
 				_indexNames.remove(indexName);
-
-				// Rebuild index - this will only add records not tagged as delete
-				createIndex(indexName, column);
 			}
+			
+			addIndex(_newIndex, _newIndex.getOrder(), _newIndex.isSnapshot());
 		}
 	}
 	
@@ -428,22 +2031,35 @@ public class DataFile implements Serializable
 		DataRecord _lastReturnedRecord;
 		DataRecord _nextRecordToReturn;
 		
-		Iterator<Map.Entry<Integer,DataRecord>> _iter;
+		Iterator<DataRecord> _iter;
 		
 		int _expectedModCount;
 		
-		public FileIterator()
+		// A snapshot iterator stops at the records inserted after it was
+		// created and skips those deleted since, instead of failing
+		boolean _snapshot;
+		int _endRecordId;
+		
+		public FileIterator(boolean snapshot)
 		{
-			_iter = _dataRecords.entrySet().iterator();
+			_iter = _dataRecords.iterator();
 			
 			_lastReturnedRecord = null;
 			_nextRecordToReturn = null;
 			
-			_expectedModCount = _modCount;
+			_expectedModCount = _modCount.get();
+			
+			_snapshot = snapshot;
+			_endRecordId = _nextRecordId.get();
 		}
 		
 		public boolean hasNext()
 		{	
+			if (_snapshot && (_nextRecordToReturn != null) && _nextRecordToReturn.isDeletePending())
+			{
+				_nextRecordToReturn = null;
+			}
+			
 			if (_nextRecordToReturn != null)
 			{
 				if (!_nextRecordToReturn.isDeletePending())
@@ -461,9 +2077,13 @@ public class DataFile implements Serializable
 
 				while (_iter.hasNext())
 				{
-					Map.Entry<Integer,DataRecord> m = _iter.next();
-
-					_nextRecordToReturn = (DataRecord)m.getValue();
+					_nextRecordToReturn = _iter.next();
+					
+					if (_snapshot && (_nextRecordToReturn.getRecordId() >= _endRecordId))
+					{
+						// Record ids are handed out in increasing order
+						break;
+					}
 
 					if (!_nextRecordToReturn.isDeletePending())
 					{
@@ -485,7 +2105,7 @@ public class DataFile implements Serializable
 		{
 			checkConcurrentModification();
 			
-			if (_nextRecordToReturn != null)
+			if ((_nextRecordToReturn != null) && !_snapshot)
 			{
 				if (!_nextRecordToReturn.isDeletePending())
 				{
@@ -521,11 +2141,10 @@ public class DataFile implements Serializable
 			{
 				if (!_lastReturnedRecord.isDeletePending())
 				{
-					_lastReturnedRecord.setDeletePending(true);
+					deleteRecord(_lastReturnedRecord);
 					_lastReturnedRecord = null;
 					
 					_expectedModCount++;
-					_modCount++;
 				}
 			}
 			else
@@ -536,7 +2155,7 @@ public class DataFile implements Serializable
 		
 		private void checkConcurrentModification()
 		{
-			if (_expectedModCount != _modCount)
+			if (!_snapshot && (_expectedModCount != _modCount.get()))
 			{
 				throw new java.util.ConcurrentModificationException();
 			}
@@ -545,6 +2164,243 @@ public class DataFile implements Serializable
 	
 	public Iterator<Integer> iterator()
 	{
-		return new FileIterator();
+		return new FileIterator(false);
+	}
+	
+	// Iterates over the records present when it was created, alongside any
+	// concurrent inserts and deletes. Records deleted before the iterator
+	// reaches them are skipped.
+	public Iterator<Integer> snapshotIterator()
+	{
+		return new FileIterator(true);
+	}
+	
+	// Iterates, in id order, over the records that match predicate. How they
+	// are found is planned from the file's indexes and how many entries each
+	// condition reads in them, counted or estimated from their statistics: a
+	// lookup or range scan of one index, an intersection or union of the ids
+	// of several, or a scan of the whole file, whichever reads the least; see
+	// QueryPlan and explain(). An index serves conditions on its first
+	// column. Records deleted before the iterator reaches them are skipped.
+	public Iterator<Integer> query(Predicate predicate)
+	{
+		_lock.readLock().lock();
+		
+		try
+		{
+			QueryPlan plan = plan(predicate, "query");
+			
+			return new QueryIterator(predicate, (plan != null) ? plan.recordIds() : null, _nextRecordId.get());
+		}
+		finally
+		{
+			_lock.readLock().unlock();
+		}
+	}
+	
+	// Describes how query() would find the records that match predicate
+	public String explain(Predicate predicate)
+	{
+		_lock.readLock().lock();
+		
+		try
+		{
+			QueryPlan plan = plan(predicate, "explain");
+			
+			return (plan != null) ? plan.toString() : "full scan";
+		}
+		finally
+		{
+			_lock.readLock().unlock();
+		}
+	}
+	
+	private QueryPlan plan(Predicate predicate, String method)
+	{
+		checkPredicate(predicate, method);
+		
+		return QueryPlan.plan(predicate, this, _dataRecords.size() - _dataRecords.deletedCount());
+	}
+	
+	private void checkPredicate(Predicate predicate, String method)
+	{
+		if (predicate._kind != Predicate.Kind.RANGE)
+		{
+			for (Predicate operand : predicate._operands)
+			{
+				checkPredicate(operand, method);
+			}
+			
+			return;
+		}
+		
+		if (!_fields.containsKey(predicate._column))
+		{
+			throw new IllegalArgumentException
+			   ("DataFile::" + method + "(): " + predicate._column + " is not in the descriptor");
+		}
+		
+		// Bounds must be valid for the column's type
+		ColumnType type = getColumnType(predicate._column);
+		
+		if (predicate._from != null)
+		{
+			type.key(predicate._from);
+		}
+		
+		if (predicate._to != null)
+		{
+			type.key(predicate._to);
+		}
+	}
+	
+	// Returns the index to serve conditions on column: one over the column
+	// alone if there is one, or else one whose first column it is
+	Index indexFor(String column)
+	{
+		Index found = null;
+		
+		for (Index index : _indexes.values())
+		{
+			List<String> columns = index.getColumnNames();
+			
+			if (columns.get(0).equals(column))
+			{
+				if ((columns.size() == 1) && !index.isCovering())
+				{
+					return index;
+				}
+				else if (found == null)
+				{
+					found = index;
+				}
+			}
+		}
+		
+		return found;
+	}
+	
+	// Returns the ids of the records that match a predicate, out of the
+	// candidate ids of a plan or, without a plan, every id below endId
+	private class QueryIterator implements Iterator<Integer>
+	{
+		Predicate _predicate;
+		int _candidates[];
+		
+		// The next candidate or id to try, and where they end
+		int _position;
+		int _end;
+		
+		int _nextId;
+		
+		private QueryIterator(Predicate predicate, int candidates[], int endId)
+		{
+			_predicate  = predicate;
+			_candidates = candidates;
+			_end        = (candidates != null) ? candidates.length : endId;
+			_position   = 0;
+			_nextId     = -1;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while ((_nextId < 0) && (_position < _end))
+			{
+				int recordId = (_candidates != null) ? _candidates[_position] : _position;
+				_position++;
+				
+				Map<String,String> record = getRecord(recordId);
+				
+				if ((record != null) && _predicate.matches(record, DataFile.this))
+				{
+					_nextId = recordId;
+				}
+			}
+			
+			return _nextId >= 0;
+		}
+		
+		@Override
+		public Integer next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			
+			int recordId = _nextId;
+			_nextId = -1;
+			
+			return recordId;
+		}
+	}
+	
+	// Streams the records present when it was created, in id order,
+	// skipping those deleted before the stream reaches them. The stream
+	// splits into ranges of record ids, so that it can run in parallel().
+	public Stream<Map<String,String>> stream()
+	{
+		return StreamSupport.stream(new RecordSpliterator(0, _nextRecordId.get()), false);
+	}
+	
+	// Reads the records with ids from _nextId up to _endId. A range splits
+	// in half at a multiple of RECORD_SPLIT_SIZE, until it is no longer than
+	// that.
+	private class RecordSpliterator implements Spliterator<Map<String,String>>
+	{
+		int _nextId;
+		int _endId;
+		
+		private RecordSpliterator(int fromId, int toId)
+		{
+			_nextId = fromId;
+			_endId  = toId;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Map<String,String>> action)
+		{
+			while (_nextId < _endId)
+			{
+				Map<String,String> record = getRecord(_nextId++);
+				
+				if (record != null)
+				{
+					action.accept(record);
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public Spliterator<Map<String,String>> trySplit()
+		{
+			int mid = (_nextId + (_endId - _nextId) / 2) & -RECORD_SPLIT_SIZE;
+			
+			if (mid <= _nextId)
+			{
+				return null;
+			}
+			
+			RecordSpliterator prefix = new RecordSpliterator(_nextId, mid);
+			_nextId = mid;
+			
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize()
+		{
+			return _endId - _nextId;
+		}
+		
+		@Override
+		public int characteristics()
+		{
+			return ORDERED | NONNULL;
+		}
 	}
 }
@@ -13,6 +13,37 @@ public abstract class DataManager
 	}
 
 	public static DataFile createFile(String fileName, Map<String,Integer> descriptor)
+	{
+		return createFile(fileName, descriptor, false);
+	}
+	
+	// A logged file appends each change to a log instead of being rewritten
+	// in full by exit()
+	public static DataFile createFile(String fileName, Map<String,Integer> descriptor, boolean logged)
+	{
+		return createFile(fileName, descriptor, logged, false);
+	}
+	
+	// A columnar file stores its values column by column, which takes far
+	// less memory than a map per record; its records cannot be changed
+	// through the maps getRecord() returns
+	public static DataFile createFile(String fileName, Map<String,Integer> descriptor,
+	                                  boolean logged, boolean columnar)
+	{
+		return createFile(fileName, descriptor, Collections.<String,ColumnType>emptyMap(), logged, columnar);
+	}
+	
+	// Fields given a type in types are validated and indexed by value as
+	// that type; the other fields are plain strings
+	public static DataFile createFile(String fileName, Map<String,Integer> descriptor,
+	                                  Map<String,ColumnType> types)
+	{
+		return createFile(fileName, descriptor, types, false, false);
+	}
+	
+	public static synchronized DataFile createFile(String fileName, Map<String,Integer> descriptor,
+	                                               Map<String,ColumnType> types,
+	                                               boolean logged, boolean columnar)
 	{
 		if (_dataFiles.containsKey(fileName) ||
 			fileExistsOnDisk(fileName))
@@ -22,13 +53,13 @@ public abstract class DataManager
 		}
 		else
 		{
-			DataFile newFile = new DataFile(fileName, descriptor);
+			DataFile newFile = new DataFile(fileName, descriptor, types, logged, columnar);
 			_dataFiles.put(fileName, newFile);
 			return newFile;
 		}
 	}
 	
-	public static void exit()
+	public static synchronized void exit()
 	{
 		Set<Map.Entry<String,DataFile>> s = _dataFiles.entrySet();
 
@@ -39,6 +70,7 @@ public abstract class DataManager
             Map.Entry<String,DataFile> m = it.next();
 
             m.getValue().dumpFile();
+            m.getValue().closeLog();
         }
         
         _dataFiles.clear();
@@ -69,7 +101,7 @@ public abstract class DataManager
         return returnString;
 	}
 	
-	public static DataFile restoreFile(String fileName)
+	public static synchronized DataFile restoreFile(String fileName)
 	{
 		if (_dataFiles.containsKey(fileName))
 		{
@@ -104,6 +136,7 @@ public abstract class DataManager
 			
 			if (dataFile != null)
 			{
+				dataFile.recoverLog();
 				_dataFiles.put(fileName, dataFile);
 			}
 			
@@ -1,5 +1,9 @@
 package database;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Map;
 
@@ -7,18 +11,44 @@ public class DataRecord implements Serializable
 {
 	private static final long serialVersionUID = -6429224810900461803L;
 
-	private Integer _recordId;
+	private int _recordId;
 	private Map<String,String> _values;
-	private boolean _deleteFlag;
+	private volatile boolean _deleteFlag;
 	
-	public DataRecord(Integer recordId, Map<String,String> values)
+	// Records are written as they always were, with the id boxed, so that
+	// files written before ids were ints can still be read
+	private static final ObjectStreamField serialPersistentFields[] =
+	{
+		new ObjectStreamField("_recordId", Integer.class),
+		new ObjectStreamField("_values", Map.class),
+		new ObjectStreamField("_deleteFlag", boolean.class)
+	};
+	
+	public DataRecord(int recordId, Map<String,String> values)
 	{
 		_recordId = recordId;
 		_values = values;
 		_deleteFlag = false;
 	}
 	
-	public Integer getRecordId()
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("_recordId", Integer.valueOf(_recordId));
+		fields.put("_values", _values);
+		fields.put("_deleteFlag", _deleteFlag);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		_recordId   = (Integer)fields.get("_recordId", null);
+		_values     = (Map<String,String>)fields.get("_values", null);
+		_deleteFlag = fields.get("_deleteFlag", false);
+	}
+	
+	public int getRecordId()
 	{
 		return _recordId;
 	}
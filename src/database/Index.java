@@ -2,6 +2,13 @@ package database;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Index implements Serializable
 {
@@ -10,106 +17,1202 @@ public class Index implements Serializable
 	private String _indexName;
 	private String _column;
 	
+	// A composite index is keyed on several columns, which _column lists in
+	// order, separated by COLUMN_SEPARATOR. Its keys join the values of the
+	// columns so that they sort column by column; see compositeKey(). A
+	// covering index also keeps the values of the columns listed after
+	// INCLUDE_SEPARATOR in its keys, following those of the indexed columns,
+	// so that projectionIterator() can read them without the file.
+	public static final String COLUMN_SEPARATOR = ",";
+	public static final String INCLUDE_SEPARATOR = ";";
+	
+	// Runs the parts of index builds that go in parallel, with a thread per
+	// core
+	static final ForkJoinPool BUILD_POOL = new ForkJoinPool();
+	
+	// Builds sort their records in partitions of at most this many, each on
+	// one thread, and then merge them
+	private static final int SORT_PARTITION_SIZE = 8192;
+	
+	// Every column with a value in the key, of which the first
+	// _numIndexedColumns are indexed and the rest included
+	private transient String _keyColumns[];
+	private transient int _numIndexedColumns;
+	
+	// The type of each column in the key, which decides how its values are
+	// encoded there; see ColumnType
+	private ColumnType _keyTypes[];
+	
+	// Set instead of _bTree when the index lives in a paged file. The tree
+	// is reopened from the file on first use after deserialization. A mapped
+	// index is read through MappedBTree until it is first written to.
+	private transient PagedBTree _pagedTree;
+	private transient MappedBTree _mappedTree;
+	private int _bufferPages;
+	private volatile boolean _mapped;
+	
 	private DataFile _file;
 	
+	// The statistics getStatistics() returns, and the records inserted or
+	// deleted since they were taken. They are taken again once the changes
+	// reach a tenth of the records they counted.
+	private transient volatile IndexStatistics _statistics;
+	private transient AtomicInteger _numChanges;
+	
 	public Index(DataFile file, String indexName, String column)
+	{
+		this(file, indexName, column, BTree.DEFAULT_ORDER);
+	}
+	
+	public Index(DataFile file, String indexName, String column, int order)
+	{
+		this(file, indexName, column, order, false);
+	}
+	
+	// A snapshot index keeps its tree in copy-on-write mode. Its iterators
+	// read the index as it stood when they were created and never throw
+	// ConcurrentModificationException; records deleted since are skipped.
+	public Index(DataFile file, String indexName, String column, int order, boolean snapshot)
 	{
 		_file = file;
 		_indexName = indexName;
 		_column = column;	
-		_bTree = new BTree();
+		_bTree = new BTree(order, snapshot);
+		
+		initColumns();
+		_keyTypes = file.getColumnTypes(_keyColumns);
+		_numChanges = new AtomicInteger();
 	}
-
 	
-	public void dumpIndex()
+	Index(DataFile file, String indexName, PagedBTree pagedTree)
 	{
-		File indexFile = new File(_indexName);
-
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
+		_file = file;
+		_indexName = indexName;
+		_column = pagedTree.getColumnName();
+		_bTree = null;
+		_pagedTree = pagedTree;
+		_bufferPages = pagedTree.getBufferPoolSize();
+		_mapped = false;
+		
+		initColumns();
+		_keyTypes = file.getColumnTypes(_keyColumns);
+		_numChanges = new AtomicInteger();
+	}
+	
+	Index(DataFile file, String indexName, MappedBTree mappedTree)
+	{
+		_file = file;
+		_indexName = indexName;
+		_column = mappedTree.getColumnName();
+		_bTree = null;
+		_mappedTree = mappedTree;
+		_bufferPages = BufferPool.DEFAULT_CAPACITY;
+		_mapped = true;
+		
+		initColumns();
+		_keyTypes = file.getColumnTypes(_keyColumns);
+		_numChanges = new AtomicInteger();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		initColumns();
+		_numChanges = new AtomicInteger();
+		
+		if (_keyTypes == null)
+		{
+			// Written before columns had types
+			_keyTypes = new ColumnType[_keyColumns.length];
+			Arrays.fill(_keyTypes, ColumnType.STRING);
+		}
+	}
+	
+	private void initColumns()
+	{
+		_keyColumns = columns(_column);
+		_numIndexedColumns = indexedColumnCount(_column);
+	}
 
+	// Saves the index in the paged format read by DataFile.restoreIndex().
+	// A paged index only has its dirty pages written back, and a mapped index
+	// is already on disk unchanged.
+	public void dumpIndex()
+	{
 		try
 		{
-			fos = new FileOutputStream(indexFile);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(this);
-
+			if (isPaged())
+			{
+				if (!_mapped)
+				{
+					pagedTree().flush();
+				}
+			}
+			else
+			{
+				String keys[] = new String[_bTree.size()];
+				int recordIds[] = new int[_bTree.size()];
+				int count = 0;
+				
+				Iterator<Integer> recordIdIter = _bTree.range(null, false, null, false);
+				
+				while (recordIdIter.hasNext())
+				{
+					DataRecord record = _file.getDataRecord(recordIdIter.next());
+					
+					if ((record != null) && !record.isDeletePending())
+					{
+						keys[count] = keyFor(record.getValues());
+						recordIds[count] = record.getRecordId();
+						count++;
+					}
+				}
+				
+				PagedBTree.create(_indexName, _column, keys, recordIds, count,
+				                  PagedBTree.DEFAULT_PAGE_SIZE, BTree.DEFAULT_FILL_FACTOR,
+				                  BufferPool.DEFAULT_CAPACITY).close();
+			}
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+	
+	public boolean isComposite()
+	{
+		return _numIndexedColumns > 1;
+	}
+	
+	public boolean isCovering()
+	{
+		return _keyColumns.length > _numIndexedColumns;
+	}
+	
+	public boolean isPaged()
+	{
+		return _bTree == null;
+	}
+	
+	// True if the index is a copy-on-write snapshot tree
+	public boolean isSnapshot()
+	{
+		return (_bTree != null) && _bTree.isCopyOnWrite();
+	}
+	
+	// True while the index is served read-only from a memory-mapped file
+	public boolean isMapped()
+	{
+		return _mapped;
+	}
+	
+	// Releases the file held open by a paged index
+	public synchronized void close()
+	{
+		try
+		{
+			if (_pagedTree != null)
+			{
+				_pagedTree.close();
+			}
+			
+			if (_mappedTree != null)
+			{
+				_mappedTree.close();
+			}
 		}
 		catch(IOException ex)
 		{
 			ex.printStackTrace();
 		}
+		
+		_pagedTree = null;
+		_mappedTree = null;
+	}
+	
+	private synchronized MappedBTree mappedTree()
+	{
+		if (_mappedTree == null)
+		{
+			try
+			{
+				_mappedTree = MappedBTree.open(_indexName);
+			}
+			catch(IOException ex)
+			{
+				throw new IllegalStateException
+				   ("Index::mappedTree(): " + _indexName + " could not be mapped", ex);
+			}
+		}
+		
+		return _mappedTree;
+	}
+	
+	// Returns the paged tree to apply a change to, reopening a mapped index
+	// for writing first
+	private synchronized PagedBTree writableTree()
+	{
+		if (_mapped)
+		{
+			close();
+			_mapped = false;
+		}
+		
+		return pagedTree();
+	}
+	
+	// Entries deleted from a paged index whose space has yet to be
+	// compacted; an in-memory index rebalances as it deletes and has none
+	public synchronized int getDeleteCount()
+	{
+		return (_pagedTree != null) ? _pagedTree.getDeleteCount() : 0;
+	}
+	
+	// Deleted entries as a fraction of the entries the index held
+	synchronized double deletedRatio()
+	{
+		if (_pagedTree == null)
+		{
+			return 0;
+		}
+		
+		int numDeletes = _pagedTree.getDeleteCount();
+		
+		return (numDeletes == 0) ? 0 : (double)numDeletes / (numDeletes + _pagedTree.getEntryCount());
+	}
+	
+	// Takes one bounded step of compacting a paged index; see
+	// PagedBTree.compact(). Returns true once a pass over the index is done.
+	synchronized boolean compact(int maxParents)
+	{
+		return (_pagedTree == null) || _pagedTree.compact(maxParents);
+	}
+	
+	private synchronized KeyedIterator fileRange(String fromKey, boolean fromInclusive,
+	                                             String toKey, boolean toInclusive)
+	{
+		if (_mapped)
+		{
+			return mappedTree().keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+		}
+		
+		return pagedTree().keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	private synchronized PagedBTree pagedTree()
+	{
+		if (_pagedTree == null)
+		{
+			try
+			{
+				_pagedTree = PagedBTree.open(_indexName, _bufferPages);
+			}
+			catch(IOException ex)
+			{
+				throw new IllegalStateException
+				   ("Index::pagedTree(): " + _indexName + " could not be opened", ex);
+			}
+		}
+		
+		return _pagedTree;
 	}
 
 	public String viewIndex()
 	{
 		StringBuilder sb = new StringBuilder();
-		sb.append("Index " + _indexName + " over column " + _column );
+		sb.append("Index " + _indexName + ((_keyColumns.length > 1) ? " over columns " : " over column ") + _column);
 		sb.append("\n\n");
-		sb.append(_bTree.printTree());
+		if (!isPaged())
+		{
+			sb.append(_bTree.printTree());
+		}
+		else
+		{
+			sb.append(_mapped ? mappedTree().printTree() : pagedTree().printTree());
+		}
 
 		System.out.println(new String(sb.toString()));
 		
 		return new String(sb.toString());
 	}
 
+	// Adds record under its values of the indexed columns, unless it lacks
+	// one of them
+	void insertRecord(DataRecord record)
+	{
+		String key = keyFor(record.getValues());
+		
+		if (key != null)
+		{
+			insertRecord(key, record);
+		}
+	}
+	
 	public void insertRecord(String key, DataRecord record)
 	{
-		_bTree.insert(key, record);
+		_numChanges.incrementAndGet();
+		
+		if (isPaged())
+		{
+			writableTree().insert(key, record.getRecordId());
+		}
+		else
+		{
+			_bTree.insert(key, record.getRecordId());
+		}
 	}
-
-	public String getColumnName()
+	
+	// Removes record from the entry for its values of the indexed columns
+	public void deleteRecord(DataRecord record)
 	{
-		return _column;
+		String key = keyFor(record.getValues());
+		
+		if (key != null)
+		{
+			_numChanges.incrementAndGet();
+			
+			if (isPaged())
+			{
+				writableTree().delete(key, record.getRecordId());
+			}
+			else
+			{
+				_bTree.delete(key, record.getRecordId());
+			}
+		}
 	}
-
-	public String getIndexName()
+	
+	// Loads an empty index from records in one pass: the (key, record) pairs
+	// are sorted once and the tree is then packed bottom-up. Records that
+	// lack a value for an indexed column are skipped.
+	public void bulkLoad(Collection<DataRecord> records, double fillFactor)
 	{
-		return _indexName;
+		if (isPaged())
+		{
+			throw new IllegalStateException
+			   ("Index::bulkLoad(): " + _indexName + " is a paged index");
+		}
+		
+		String sortedKeys[] = new String[records.size()];
+		int sortedRecordIds[] = new int[records.size()];
+		int count = sortEntries(records, sortedKeys, sortedRecordIds);
+		
+		_bTree.bulkLoad(sortedKeys, sortedRecordIds, count, fillFactor);
+		_numChanges.addAndGet(count);
 	}
-
-
-	public Iterator<Integer> iterator(String key)
+	
+	// Adds a batch of new records. Their keys are sorted first, so that the
+	// tree takes them in one ordered pass instead of a descent from the root
+	// for each record at a random place.
+	void insertAll(Collection<DataRecord> records)
 	{
-		return new IndexIterator<Integer>(key);
-
+		String sortedKeys[] = new String[records.size()];
+		int sortedRecordIds[] = new int[records.size()];
+		int count = sortEntries(records, sortedKeys, sortedRecordIds);
+		_numChanges.addAndGet(count);
+		
+		if (isPaged())
+		{
+			// In key order the pages each insert reads are mostly still in
+			// the buffer pool from the one before
+			PagedBTree tree = writableTree();
+			
+			for (int i = 0; i < count; i++)
+			{
+				tree.insert(sortedKeys[i], sortedRecordIds[i]);
+			}
+		}
+		else
+		{
+			_bTree.insertAll(sortedKeys, sortedRecordIds, count);
+		}
 	}
 	
-	@SuppressWarnings("hiding")
-	private class IndexIterator<Integer> implements Iterator<Integer>
-	{ 
-		DataRecord _lastReturnedRecord;
-		DataRecord _nextRecordToReturn;
+	// Fills sortedKeys and sortedRecordIds with the key and id of each record
+	// that has every indexed column, sorted by key, and returns how many
+	// there are. Records that share a key keep their order. Partitions of a
+	// large collection are sorted on BUILD_POOL in parallel.
+	private int sortEntries(Collection<DataRecord> records, String sortedKeys[], int sortedRecordIds[])
+	{
+		SortTask task = new SortTask(records.toArray(new DataRecord[records.size()]),
+		                             sortedKeys, sortedRecordIds, 0, records.size());
 		
-		Iterator<DataRecord> _iter;
+		if (records.size() <= SORT_PARTITION_SIZE)
+		{
+			return task.sortPartition();
+		}
 		
-		int _expectedModCount;
-
-		private IndexIterator(String key)
+		return ForkJoinTask.inForkJoinPool() ? task.invoke() : BUILD_POOL.invoke(task);
+	}
+	
+	// Sorts the keys of _records[_from, _to) into _keys and _recordIds from
+	// _from on, and returns how many there are. A range larger than a
+	// partition is split in two, and the halves are sorted in parallel and
+	// merged.
+	private class SortTask extends RecursiveTask<Integer>
+	{
+		private static final long serialVersionUID = 5203398815427312208L;
+		
+		final DataRecord _records[];
+		final String _keys[];
+		final int _recordIds[];
+		final int _from;
+		final int _to;
+		
+		SortTask(DataRecord records[], String keys[], int recordIds[], int from, int to)
 		{
-			List<DataRecord> list = (List<DataRecord>) _bTree.getRecordList(key);
-			
-			if (list != null)
+			_records   = records;
+			_keys      = keys;
+			_recordIds = recordIds;
+			_from      = from;
+			_to        = to;
+		}
+		
+		@Override
+		protected Integer compute()
+		{
+			if (_to - _from <= SORT_PARTITION_SIZE)
 			{
-				_iter = list.iterator();
+				return sortPartition();
 			}
-			else
+			
+			int mid = (_from + _to) >>> 1;
+			
+			SortTask left = new SortTask(_records, _keys, _recordIds, _from, mid);
+			SortTask right = new SortTask(_records, _keys, _recordIds, mid, _to);
+			
+			right.fork();
+			int leftCount = left.compute();
+			int rightCount = right.join();
+			
+			return merge(leftCount, mid, rightCount);
+		}
+		
+		int sortPartition()
+		{
+			final String keys[] = new String[_to - _from];
+			Integer order[] = new Integer[_to - _from];
+			int recordIds[] = new int[_to - _from];
+			
+			int count = 0;
+			
+			for (int i = _from; i < _to; i++)
 			{
-				_iter = null;
+				String key = keyFor(_records[i].getValues());
+				
+				if (key != null)
+				{
+					keys[count] = key;
+					recordIds[count] = _records[i].getRecordId();
+					order[count] = count;
+					count++;
+				}
 			}
 			
-			_lastReturnedRecord = null;
-			_nextRecordToReturn = null;
+			// Sort positions by key; the sort is stable
+			Arrays.sort(order, 0, count, new Comparator<Integer>()
+			{
+				public int compare(Integer a, Integer b)
+				{
+					return keys[a].compareTo(keys[b]);
+				}
+			});
 			
-			_expectedModCount = _file.getModCount();
+			for (int i = 0; i < count; i++)
+			{
+				_keys[_from + i] = keys[order[i]];
+				_recordIds[_from + i] = recordIds[order[i]];
+			}
+			
+			return count;
 		}
-
-
-		@Override
-		public boolean hasNext() 
+		
+		// Merges the leftCount entries from _from with the rightCount from
+		// mid into place from _from; on equal keys the left one goes first
+		private int merge(int leftCount, int mid, int rightCount)
 		{
-			if (_iter != null)
+			String keys[] = Arrays.copyOfRange(_keys, _from, _from + leftCount);
+			int recordIds[] = Arrays.copyOfRange(_recordIds, _from, _from + leftCount);
+			
+			int i = 0;
+			int j = mid;
+			int out = _from;
+			
+			while (i < leftCount)
+			{
+				if ((j < mid + rightCount) && (_keys[j].compareTo(keys[i]) < 0))
+				{
+					_keys[out] = _keys[j];
+					_recordIds[out++] = _recordIds[j++];
+				}
+				else
+				{
+					_keys[out] = keys[i];
+					_recordIds[out++] = recordIds[i++];
+				}
+			}
+			
+			// What is left of the right half only moves down
+			while (j < mid + rightCount)
 			{
+				_keys[out] = _keys[j];
+				_recordIds[out++] = _recordIds[j++];
+			}
+			
+			return leftCount + rightCount;
+		}
+	}
+	
+	// An index read from a dump written by ObjectOutputStream carries its
+	// own copy of the file it was built over; it is pointed at the file
+	// restoring it instead
+	void setFile(DataFile file)
+	{
+		_file = file;
+	}
+	
+	// For a composite or covering index, the columns as listed in _column
+	public String getColumnName()
+	{
+		return _column;
+	}
+	
+	public List<String> getColumnNames()
+	{
+		return Collections.unmodifiableList(Arrays.asList(_keyColumns).subList(0, _numIndexedColumns));
+	}
+	
+	public List<String> getIncludedColumnNames()
+	{
+		return Collections.unmodifiableList(Arrays.asList(_keyColumns)
+		                                    .subList(_numIndexedColumns, _keyColumns.length));
+	}
+	
+	// Splits a list of columns as kept in _column, included ones and all
+	static String[] columns(String columnList)
+	{
+		return columnList.replace(INCLUDE_SEPARATOR, COLUMN_SEPARATOR).split(COLUMN_SEPARATOR, -1);
+	}
+	
+	static int indexedColumnCount(String columnList)
+	{
+		int end = columnList.indexOf(INCLUDE_SEPARATOR);
+		
+		return columns((end >= 0) ? columnList.substring(0, end) : columnList).length;
+	}
+	
+	// Returns the key of the record with the given values, or null if it
+	// lacks a value for one of the indexed columns
+	String keyFor(Map<String,String> values)
+	{
+		return keyFor(_keyColumns, _keyTypes, _numIndexedColumns, values);
+	}
+	
+	static String keyFor(String columns[], ColumnType types[], int numIndexedColumns,
+	                     Map<String,String> values)
+	{
+		if (columns.length == 1)
+		{
+			String value = values.get(columns[0]);
+			
+			return (value != null) ? types[0].key(value) : null;
+		}
+		
+		String columnValues[] = new String[columns.length];
+		
+		for (int i = 0; i < columns.length; i++)
+		{
+			String value = values.get(columns[i]);
+			
+			if (value != null)
+			{
+				columnValues[i] = types[i].key(value);
+			}
+			else if (i < numIndexedColumns)
+			{
+				return null;
+			}
+		}
+		
+		return compositeKey(columnValues, columnValues.length);
+	}
+	
+	// Joins the first count values into one key. Each value is followed by
+	// two '\0's and any '\0' within a value is written as '\0' '\1', so that
+	// keys compare as their values do, one column after another, and the keys
+	// that share their leading values all start with the same string. A
+	// missing value, which only an included column may have, is '\0' '\2'.
+	static String compositeKey(String values[], int count)
+	{
+		StringBuilder key = new StringBuilder();
+		
+		for (int i = 0; i < count; i++)
+		{
+			String value = values[i];
+			
+			if (value == null)
+			{
+				key.append('\0').append('\2');
+			}
+			else
+			{
+				for (int j = 0; j < value.length(); j++)
+				{
+					char c = value.charAt(j);
+					
+					key.append(c);
+					
+					if (c == '\0')
+					{
+						key.append('\1');
+					}
+				}
+			}
+			
+			key.append('\0').append('\0');
+		}
+		
+		return key.toString();
+	}
+	
+	// Splits a key made by compositeKey() back into its values
+	static String[] decodeKey(String key, int count)
+	{
+		String values[] = new String[count];
+		StringBuilder value = new StringBuilder();
+		boolean missing = false;
+		int column = 0;
+		
+		for (int i = 0; i < key.length(); i++)
+		{
+			char c = key.charAt(i);
+			
+			if (c != '\0')
+			{
+				value.append(c);
+				continue;
+			}
+			
+			char next = key.charAt(++i);
+			
+			if (next == '\1')
+			{
+				value.append('\0');
+			}
+			else if (next == '\2')
+			{
+				missing = true;
+			}
+			else
+			{
+				values[column++] = missing ? null : value.toString();
+				value.setLength(0);
+				missing = false;
+			}
+		}
+		
+		return values;
+	}
+	
+	// Returns the least string above every key that starts with prefix, a
+	// composite key; the prefix's last '\0' becomes a '\1'
+	private static String prefixLimit(String prefix)
+	{
+		return prefix.substring(0, prefix.length() - 1) + '\1';
+	}
+	
+	// Returns the key, or for a composite or covering index the start of the
+	// keys, of the records whose leading indexed columns hold values
+	private String lookupKey(String values[])
+	{
+		if ((values.length == 0) || (values.length > _numIndexedColumns))
+		{
+			throw new IllegalArgumentException
+			   ("Index::lookupKey(): " + _indexName + " takes 1 to " + _numIndexedColumns + " values");
+		}
+		
+		if (_keyColumns.length == 1)
+		{
+			return _keyTypes[0].key(values[0]);
+		}
+		
+		String keys[] = new String[values.length];
+		
+		for (int i = 0; i < values.length; i++)
+		{
+			keys[i] = _keyTypes[i].key(values[i]);
+		}
+		
+		return compositeKey(keys, keys.length);
+	}
+
+	public String getIndexName()
+	{
+		return _indexName;
+	}
+	
+	// Returns the node order of an in-memory index. The fanout of a paged
+	// index depends on its page size, so 0 is returned for it.
+	public int getOrder()
+	{
+		return isPaged() ? 0 : _bTree.getOrder();
+	}
+	
+	int getBufferPages()
+	{
+		return _bufferPages;
+	}
+
+
+	public Iterator<Integer> iterator(String key)
+	{
+		return iterator(new String[] { key });
+	}
+	
+	// Iterates over the records whose values equal values in as many of the
+	// indexed columns, taken in order. On a composite index the records that
+	// match some leading columns are one range of keys, and are read with a
+	// single scan of the tree.
+	public Iterator<Integer> iterator(String... values)
+	{
+		String key = lookupKey(values);
+		
+		if (values.length < _keyColumns.length)
+		{
+			return new IndexIterator(new BoxedCursor(treeRange(key, true, prefixLimit(key), false)));
+		}
+		else if (isPaged())
+		{
+			return new IndexIterator(new BoxedCursor(fileRange(key, true, key, true)));
+		}
+		
+		// The ids under one key are scanned straight from their array or
+		// bitmap
+		Postings recordIds = _bTree.getRecordIds(key);
+		
+		return new IndexIterator((recordIds != null) ? recordIds.cursor() : null);
+
+	}
+	
+	// Iterates over the records whose keys fall between fromKey and toKey.
+	// A null bound leaves that end of the range open. The bounds of a
+	// composite or covering index apply to its first column.
+	public Iterator<Integer> rangeIterator(String fromKey, boolean fromInclusive,
+	                                       String toKey, boolean toInclusive)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		
+		return new IndexIterator(new BoxedCursor(treeRange(range._fromKey, range._fromInclusive,
+		                                                   range._toKey, range._toInclusive)));
+	}
+	
+	// Streams the records whose keys fall between fromKey and toKey, bounded
+	// as for rangeIterator(), in key order. An in-memory index splits the
+	// range at the keys of its upper nodes, a run of whole subtrees to each
+	// part, so that the stream can run in parallel(); a paged index is read
+	// in one pass. Records deleted before the stream reaches them are
+	// skipped.
+	public Stream<Map<String,String>> stream(String fromKey, boolean fromInclusive,
+	                                         String toKey, boolean toInclusive)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		long estimate = isPaged() ? Long.MAX_VALUE : _bTree.size();
+		
+		return StreamSupport.stream(new RangeSpliterator(range, estimate), false);
+	}
+	
+	// Returns statistics on the index, with a histogram of
+	// IndexStatistics.DEFAULT_BUCKETS buckets. They are kept from one call to
+	// the next until a tenth of the records they counted have been inserted
+	// or deleted since, and then taken again.
+	public IndexStatistics getStatistics()
+	{
+		IndexStatistics statistics = _statistics;
+		
+		if ((statistics == null) || (_numChanges.get() > statistics.getRecordCount() / 10))
+		{
+			statistics = computeStatistics(IndexStatistics.DEFAULT_BUCKETS);
+			_statistics = statistics;
+		}
+		
+		return statistics;
+	}
+	
+	// Takes statistics on the index in one walk of its tree, with a
+	// histogram of numBuckets buckets
+	public IndexStatistics computeStatistics(int numBuckets)
+	{
+		_numChanges.set(0);
+		
+		if (!isPaged())
+		{
+			IndexStatistics.Builder builder = new IndexStatistics.Builder(this, _bTree.size(), numBuckets);
+			_bTree.addStatistics(builder);
+			
+			return builder.build(0);
+		}
+		
+		IndexStatistics.Builder builder;
+		
+		synchronized (this)
+		{
+			if (_mapped)
+			{
+				builder = new IndexStatistics.Builder(this, mappedTree().getEntryCount(), numBuckets);
+			}
+			else
+			{
+				builder = new IndexStatistics.Builder(this, pagedTree().getEntryCount(), numBuckets);
+				pagedTree().addNodeStatistics(builder);
+			}
+		}
+		
+		// Each entry of a paged tree is one record
+		KeyedIterator entries = fileRange(null, false, null, false);
+		
+		while (entries.hasNext())
+		{
+			entries.next();
+			builder.key(entries.key(), 1);
+		}
+		
+		return builder.build(getDeleteCount());
+	}
+	
+	// Estimates the records whose keys fall between fromKey and toKey,
+	// bounded as for rangeIterator(), from the histogram of getStatistics()
+	public double estimateRange(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		
+		return getStatistics().estimate(range._fromKey, range._fromInclusive, range._toKey, range._toInclusive);
+	}
+	
+	// Returns the value of the first indexed column in a key of the tree
+	String firstValue(String key)
+	{
+		return _keyTypes[0].value((_keyColumns.length == 1) ? key : decodeKey(key, _keyColumns.length)[0]);
+	}
+	
+	// Reads the ids of the entries whose keys fall between fromKey and
+	// toKey, bounded as for rangeIterator(), delete-pending records included
+	Postings.Cursor rangeCursor(String fromKey, boolean fromInclusive,
+	                            String toKey, boolean toInclusive)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		
+		return new BoxedCursor(treeRange(range._fromKey, range._fromInclusive, range._toKey, range._toInclusive));
+	}
+	
+	// Returns the ids rangeCursor() would read when the range is a single key
+	// of an in-memory index over one column, straight from the key's list,
+	// or null for any other range
+	Postings keyRecordIds(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		
+		if (isPaged() || (_keyColumns.length > 1) || (range._fromKey == null) ||
+		    !range._fromKey.equals(range._toKey) || !range._fromInclusive || !range._toInclusive)
+		{
+			return null;
+		}
+		
+		Postings recordIds = _bTree.getRecordIds(range._fromKey);
+		
+		return (recordIds != null) ? recordIds : Postings.fromSorted(new int[0], 0);
+	}
+	
+	// Counts the entries rangeCursor() would read, giving up at limit
+	int countRange(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive, int limit)
+	{
+		KeyRange range = keyRange(fromKey, fromInclusive, toKey, toInclusive);
+		Postings.Cursor recordIds = new BoxedCursor(treeRange(range._fromKey, range._fromInclusive,
+		                                                      range._toKey, range._toInclusive));
+		int count = 0;
+		
+		while ((count < limit) && recordIds.hasNext())
+		{
+			recordIds.next();
+			count++;
+		}
+		
+		return count;
+	}
+	
+	// Converts the bounds of a range of first column values into bounds on
+	// the keys of the tree
+	private KeyRange keyRange(String fromKey, boolean fromInclusive,
+	                          String toKey, boolean toInclusive)
+	{
+		fromKey = (fromKey != null) ? _keyTypes[0].key(fromKey) : null;
+		toKey   = (toKey != null) ? _keyTypes[0].key(toKey) : null;
+		
+		if (_keyColumns.length > 1)
+		{
+			// All keys for a value lie from its prefix up to the prefix's limit
+			if (fromKey != null)
+			{
+				fromKey = compositeKey(new String[] { fromKey }, 1);
+				
+				if (!fromInclusive)
+				{
+					fromKey = prefixLimit(fromKey);
+				}
+				fromInclusive = true;
+			}
+			
+			if (toKey != null)
+			{
+				toKey = compositeKey(new String[] { toKey }, 1);
+				
+				if (toInclusive)
+				{
+					toKey = prefixLimit(toKey);
+				}
+				toInclusive = false;
+			}
+		}
+		
+		return new KeyRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	// Iterates over the values that the records whose leading indexed
+	// columns hold values have in every column of the index, indexed and
+	// included, as maps from column to value. The values are read from the
+	// keys of the index, so no record is looked up in the file.
+	public Iterator<Map<String,String>> projectionIterator(String... values)
+	{
+		String key = lookupKey(values);
+		
+		if (_keyColumns.length == 1)
+		{
+			return new ProjectionIterator(treeRange(key, true, key, true));
+		}
+		
+		return new ProjectionIterator(treeRange(key, true, prefixLimit(key), false));
+	}
+	
+	private KeyedIterator treeRange(String fromKey, boolean fromInclusive,
+	                                String toKey, boolean toInclusive)
+	{
+		return isPaged() ? fileRange(fromKey, fromInclusive, toKey, toInclusive)
+		                 : _bTree.keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	// A range of keys as the tree holds them; a null bound is open
+	private static class KeyRange
+	{
+		String  _fromKey;
+		boolean _fromInclusive;
+		String  _toKey;
+		boolean _toInclusive;
+		
+		private KeyRange(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive)
+		{
+			_fromKey       = fromKey;
+			_fromInclusive = fromInclusive;
+			_toKey         = toKey;
+			_toInclusive   = toInclusive;
+		}
+	}
+	
+	// Reads the records of a range of keys. Until it starts reading, the
+	// range splits at a key from the tree into the part below the key, which
+	// is handed off, and the part from it on, which is kept. The size
+	// estimate starts at the size of the tree and halves with each split.
+	private class RangeSpliterator implements Spliterator<Map<String,String>>
+	{
+		KeyRange _range;
+		long _estimate;
+		
+		KeyedIterator _ids;
+		
+		private RangeSpliterator(KeyRange range, long estimate)
+		{
+			_range    = range;
+			_estimate = estimate;
+			_ids      = null;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Map<String,String>> action)
+		{
+			if (_ids == null)
+			{
+				_ids = treeRange(_range._fromKey, _range._fromInclusive, _range._toKey, _range._toInclusive);
+			}
+			
+			while (_ids.hasNext())
+			{
+				Map<String,String> record = _file.getRecord(_ids.next());
+				
+				if (record != null)
+				{
+					action.accept(record);
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public Spliterator<Map<String,String>> trySplit()
+		{
+			if ((_ids != null) || isPaged())
+			{
+				return null;
+			}
+			
+			String splitKey = _bTree.splitKey(_range._fromKey, _range._toKey);
+			
+			if (splitKey == null)
+			{
+				return null;
+			}
+			
+			KeyRange prefix = new KeyRange(_range._fromKey, _range._fromInclusive, splitKey, false);
+			_range = new KeyRange(splitKey, true, _range._toKey, _range._toInclusive);
+			
+			if (_estimate != Long.MAX_VALUE)
+			{
+				_estimate -= _estimate / 2;
+			}
+			
+			return new RangeSpliterator(prefix, _estimate);
+		}
+		
+		@Override
+		public long estimateSize()
+		{
+			return _estimate;
+		}
+		
+		@Override
+		public int characteristics()
+		{
+			return ORDERED | NONNULL;
+		}
+	}
+	
+	// Reads record ids from an iterator over boxed ids
+	private static class BoxedCursor extends Postings.Cursor
+	{
+		Iterator<Integer> _ids;
+		
+		private BoxedCursor(Iterator<Integer> ids)
+		{
+			_ids = ids;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			return _ids.hasNext();
+		}
+		
+		@Override
+		public int next()
+		{
+			return _ids.next();
+		}
+	}
+	
+	private class ProjectionIterator implements Iterator<Map<String,String>>
+	{
+		KeyedIterator _entries;
+		
+		int _expectedModCount;
+		boolean _snapshot;
+		
+		private ProjectionIterator(KeyedIterator entries)
+		{
+			_entries = entries;
+			
+			_expectedModCount = _file.getModCount();
+			_snapshot = isSnapshot();
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			return _entries.hasNext();
+		}
+		
+		@Override
+		public Map<String,String> next()
+		{
+			if (!_snapshot && (_expectedModCount != _file.getModCount()))
+			{
+				throw new java.util.ConcurrentModificationException();
+			}
+			
+			_entries.next();
+			
+			Map<String,String> values = new HashMap<String,String>();
+			
+			if (_keyColumns.length == 1)
+			{
+				values.put(_keyColumns[0], _keyTypes[0].value(_entries.key()));
+			}
+			else
+			{
+				String keyValues[] = decodeKey(_entries.key(), _keyColumns.length);
+				
+				for (int i = 0; i < _keyColumns.length; i++)
+				{
+					if (keyValues[i] != null)
+					{
+						values.put(_keyColumns[i], _keyTypes[i].value(keyValues[i]));
+					}
+				}
+			}
+			
+			return values;
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new java.lang.UnsupportedOperationException();
+		}
+	}
+	
+	private class IndexIterator implements Iterator<Integer>
+	{ 
+		DataRecord _lastReturnedRecord;
+		DataRecord _nextRecordToReturn;
+		
+		// Ids whose records are not in the file, or are delete-pending, are
+		// skipped
+		Postings.Cursor _iter;
+		
+		int _expectedModCount;
+		boolean _snapshot;
+
+		private IndexIterator(Postings.Cursor iter)
+		{
+			_iter = iter;
+			
+			_lastReturnedRecord = null;
+			_nextRecordToReturn = null;
+			
+			_expectedModCount = _file.getModCount();
+			_snapshot = isSnapshot();
+		}
+
+
+		@Override
+		public boolean hasNext() 
+		{
+			if (_iter != null)
+			{
+				if (_snapshot && (_nextRecordToReturn != null) && _nextRecordToReturn.isDeletePending())
+				{
+					// Deleted after it was read; a snapshot simply moves past it
+					_nextRecordToReturn = null;
+				}
+				
 				if (_nextRecordToReturn != null)
 				{
 					if (!_nextRecordToReturn.isDeletePending())
@@ -127,9 +1230,9 @@ public class Index implements Serializable
 
 					while (_iter.hasNext())
 					{
-						_nextRecordToReturn = (DataRecord)_iter.next();
+						_nextRecordToReturn = _file.getDataRecord(_iter.next());
 
-						if (!_nextRecordToReturn.isDeletePending())
+						if ((_nextRecordToReturn != null) && !_nextRecordToReturn.isDeletePending())
 						{
 							validRecordFound = true;
 							break;
@@ -155,13 +1258,13 @@ public class Index implements Serializable
 		{
 			checkConcurrentModification();
 			
-			if (_nextRecordToReturn != null)
+			if ((_nextRecordToReturn != null) && !_snapshot)
 			{
 				if (!_nextRecordToReturn.isDeletePending())
 				{
 					_lastReturnedRecord = _nextRecordToReturn;
 					_nextRecordToReturn = null;
-					return (Integer)_lastReturnedRecord.getRecordId();
+					return _lastReturnedRecord.getRecordId();
 				}
 				else
 				{
@@ -174,7 +1277,7 @@ public class Index implements Serializable
 				{
 					_lastReturnedRecord = _nextRecordToReturn;
 					_nextRecordToReturn = null;
-					return (Integer)_lastReturnedRecord.getRecordId();
+					return _lastReturnedRecord.getRecordId();
 				}
 				else
 				{
@@ -192,11 +1295,10 @@ public class Index implements Serializable
 			{
 				if (!_lastReturnedRecord.isDeletePending())
 				{
-					_lastReturnedRecord.setDeletePending(true);
+					_file.deleteRecord(_lastReturnedRecord);
 					_lastReturnedRecord = null;
 					
 					_expectedModCount++;
-					_file.incrementModCount();
 				}
 			}
 			else
@@ -207,7 +1309,7 @@ public class Index implements Serializable
 		
 		private void checkConcurrentModification()
 		{
-			if (_expectedModCount != _file.getModCount())
+			if (!_snapshot && (_expectedModCount != _file.getModCount()))
 			{
 				throw new java.util.ConcurrentModificationException();
 			}
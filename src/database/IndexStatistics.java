@@ -0,0 +1,358 @@
+package database;
+
+import java.util.*;
+
+// Figures on the shape and keys of an index, taken in one walk of its tree;
+// see Index.getStatistics(). Besides counts, it holds how many records the
+// keys have, as a distribution over powers of two, and an equi-depth
+// histogram: the keys in order are cut into buckets of about the same
+// number of records, from which the records in a range of keys can be
+// estimated without reading it.
+public final class IndexStatistics
+{
+	public static final int DEFAULT_BUCKETS = 64;
+	
+	private int _keyCount;
+	private int _recordCount;
+	private int _deleteCount;
+	
+	private int _height;
+	private int _nodeCount;
+	private int _leafCount;
+	private double _fill;
+	
+	// _recordsPerKey[i] keys have from 2^i up to 2^(i+1) - 1 records
+	private int _maxRecordsPerKey;
+	private int _recordsPerKey[];
+	
+	// Bucket i holds the keys above the last key of bucket i - 1, or from
+	// _lowKey for the first, up to _bounds[i]. The bound's own records are
+	// counted apart, since one key may hold many records.
+	private String _lowKey;
+	private String _bounds[];
+	private int _boundRecords[];
+	private int _bucketRecords[];
+	private int _bucketKeys[];
+	
+	// Decodes keys into values of the index's first column
+	private Index _index;
+	
+	private IndexStatistics()
+	{
+	}
+	
+	public int getKeyCount()
+	{
+		return _keyCount;
+	}
+	
+	public int getRecordCount()
+	{
+		return _recordCount;
+	}
+	
+	// Entries deleted from a paged index whose space has yet to be compacted
+	public int getDeleteCount()
+	{
+		return _deleteCount;
+	}
+	
+	// Number of levels of nodes, 0 for an empty tree. A mapped index reports
+	// no node figures.
+	public int getHeight()
+	{
+		return _height;
+	}
+	
+	public int getNodeCount()
+	{
+		return _nodeCount;
+	}
+	
+	public int getLeafCount()
+	{
+		return _leafCount;
+	}
+	
+	// Average fraction of a node in use: of its key slots in memory, or of
+	// its page on disk
+	public double getFill()
+	{
+		return _fill;
+	}
+	
+	public int getMaxRecordsPerKey()
+	{
+		return _maxRecordsPerKey;
+	}
+	
+	public double getAverageRecordsPerKey()
+	{
+		return (_keyCount > 0) ? (double)_recordCount / _keyCount : 0;
+	}
+	
+	// Element i is the number of keys with from 2^i up to 2^(i+1) - 1
+	// records
+	public int[] getRecordsPerKeyDistribution()
+	{
+		return _recordsPerKey.clone();
+	}
+	
+	public int getBucketCount()
+	{
+		return _bounds.length;
+	}
+	
+	// Returns the value of the first indexed column at the top of bucket i
+	public String getBucketUpperBound(int i)
+	{
+		return _index.firstValue(_bounds[i]);
+	}
+	
+	public int getBucketRecordCount(int i)
+	{
+		return _bucketRecords[i];
+	}
+	
+	public int getBucketKeyCount(int i)
+	{
+		return _bucketKeys[i];
+	}
+	
+	// Estimates the records whose keys fall between fromKey and toKey, which
+	// are keys as the tree holds them; a null bound is open. A single key
+	// is estimated from the average of its bucket, and a bucket the range
+	// only partly covers counts for half its records.
+	double estimate(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive)
+	{
+		int numBuckets = _bounds.length;
+		
+		if ((fromKey != null) && fromKey.equals(toKey))
+		{
+			if (!fromInclusive || !toInclusive)
+			{
+				return 0;
+			}
+			
+			int i = bucketOf(fromKey);
+			
+			if (i == numBuckets)
+			{
+				return 0;
+			}
+			else if (_bounds[i].equals(fromKey))
+			{
+				return _boundRecords[i];
+			}
+			
+			int otherKeys = _bucketKeys[i] - 1;
+			
+			return (otherKeys > 0) ? (double)(_bucketRecords[i] - _boundRecords[i]) / otherKeys : 0;
+		}
+		
+		double estimate = 0;
+		
+		for (int i = 0; i < numBuckets; i++)
+		{
+			// The bucket's keys are above low, or from low for the first
+			String low = (i == 0) ? _lowKey : _bounds[i-1];
+			boolean lowInclusive = (i == 0);
+			
+			int boundToFrom = (fromKey != null) ? _bounds[i].compareTo(fromKey) : 1;
+			int lowToTo = (toKey != null) ? low.compareTo(toKey) : -1;
+			
+			// Skip buckets wholly below or above the range
+			if ((boundToFrom < 0) || ((boundToFrom == 0) && !fromInclusive) ||
+			    (lowToTo > 0) || ((lowToTo == 0) && !(lowInclusive && toInclusive)))
+			{
+				continue;
+			}
+			
+			int lowToFrom = (fromKey != null) ? low.compareTo(fromKey) : 1;
+			int boundToTo = (toKey != null) ? _bounds[i].compareTo(toKey) : -1;
+			
+			boolean lowIn = (lowToFrom > 0) || ((lowToFrom == 0) && (fromInclusive || !lowInclusive));
+			boolean boundIn = (boundToTo < 0) || ((boundToTo == 0) && toInclusive);
+			
+			if (lowIn && boundIn)
+			{
+				estimate += _bucketRecords[i];
+			}
+			else
+			{
+				estimate += (_bucketRecords[i] - _boundRecords[i]) / 2.0 + (boundIn ? _boundRecords[i] : 0);
+			}
+		}
+		
+		return estimate;
+	}
+	
+	// Returns the first bucket whose bound is at or above key, or the number
+	// of buckets if there is none
+	private int bucketOf(String key)
+	{
+		int i = Arrays.binarySearch(_bounds, key);
+		
+		return (i >= 0) ? i : -(i + 1);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "keys=" + _keyCount + " records=" + _recordCount + " deletes=" + _deleteCount +
+		       " height=" + _height + " nodes=" + _nodeCount + " leaves=" + _leafCount +
+		       String.format(" fill=%.2f", _fill) + " maxRecordsPerKey=" + _maxRecordsPerKey +
+		       " buckets=" + _bounds.length;
+	}
+	
+	// Gathers the statistics from a walk of a tree, which reports each node
+	// and then each key in order with its number of records. A key reported
+	// again straight after itself adds to its records, so that a paged tree
+	// can report one entry at a time.
+	static class Builder
+	{
+		IndexStatistics _statistics;
+		
+		double _fillSum;
+		
+		// Each bucket closes once it holds this many records
+		int _bucketDepth;
+		
+		String _lastKey;
+		int _lastRecords;
+		int _openRecords;
+		int _openKeys;
+		
+		List<String>  _bounds        = new ArrayList<String>();
+		List<Integer> _boundRecords  = new ArrayList<Integer>();
+		List<Integer> _bucketRecords = new ArrayList<Integer>();
+		List<Integer> _bucketKeys    = new ArrayList<Integer>();
+		
+		// expectedRecords sizes the buckets; it need not be exact
+		Builder(Index index, int expectedRecords, int numBuckets)
+		{
+			if (numBuckets < 1)
+			{
+				throw new IllegalArgumentException
+				   ("IndexStatistics::Builder(): there must be at least one bucket");
+			}
+			
+			_statistics = new IndexStatistics();
+			_statistics._index = index;
+			_statistics._recordsPerKey = new int[32];
+			
+			_bucketDepth = Math.max(1, (expectedRecords + numBuckets - 1) / numBuckets);
+		}
+		
+		// depth counts from 0 at the root
+		void node(int depth, boolean leaf, double fill)
+		{
+			IndexStatistics s = _statistics;
+			
+			s._height = Math.max(s._height, depth + 1);
+			s._nodeCount++;
+			
+			if (leaf)
+			{
+				s._leafCount++;
+			}
+			
+			_fillSum += fill;
+		}
+		
+		void key(String key, int numRecords)
+		{
+			if ((_lastKey != null) && _lastKey.equals(key))
+			{
+				_lastRecords += numRecords;
+				return;
+			}
+			
+			endKey();
+			
+			_lastKey = key;
+			_lastRecords = numRecords;
+		}
+		
+		// Counts the last key reported, closing its bucket if it is full
+		private void endKey()
+		{
+			if (_lastKey == null)
+			{
+				return;
+			}
+			
+			IndexStatistics s = _statistics;
+			
+			if (s._lowKey == null)
+			{
+				s._lowKey = _lastKey;
+			}
+			
+			s._keyCount++;
+			s._recordCount += _lastRecords;
+			s._maxRecordsPerKey = Math.max(s._maxRecordsPerKey, _lastRecords);
+			s._recordsPerKey[31 - Integer.numberOfLeadingZeros(_lastRecords)]++;
+			
+			_openRecords += _lastRecords;
+			_openKeys++;
+			
+			if (_openRecords >= _bucketDepth)
+			{
+				closeBucket();
+			}
+			
+			_lastKey = null;
+		}
+		
+		private void closeBucket()
+		{
+			_bounds.add(_lastKey);
+			_boundRecords.add(_lastRecords);
+			_bucketRecords.add(_openRecords);
+			_bucketKeys.add(_openKeys);
+			
+			_openRecords = 0;
+			_openKeys = 0;
+		}
+		
+		IndexStatistics build(int deleteCount)
+		{
+			String lastKey = _lastKey;
+			int lastRecords = _lastRecords;
+			
+			endKey();
+			
+			if (_openKeys > 0)
+			{
+				_lastKey = lastKey;
+				_lastRecords = lastRecords;
+				closeBucket();
+			}
+			
+			IndexStatistics s = _statistics;
+			int numBuckets = _bounds.size();
+			
+			s._deleteCount = deleteCount;
+			s._fill = (s._nodeCount > 0) ? _fillSum / s._nodeCount : 0;
+			
+			// Trim the distribution after the largest count of records
+			s._recordsPerKey = Arrays.copyOf(s._recordsPerKey,
+			                                 (s._maxRecordsPerKey > 0) ? 32 - Integer.numberOfLeadingZeros(s._maxRecordsPerKey) : 0);
+			
+			s._bounds = _bounds.toArray(new String[numBuckets]);
+			s._boundRecords = new int[numBuckets];
+			s._bucketRecords = new int[numBuckets];
+			s._bucketKeys = new int[numBuckets];
+			
+			for (int i = 0; i < numBuckets; i++)
+			{
+				s._boundRecords[i] = _boundRecords.get(i);
+				s._bucketRecords[i] = _bucketRecords.get(i);
+				s._bucketKeys[i] = _bucketKeys.get(i);
+			}
+			
+			return s;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package database;
+
+import java.util.Arrays;
+
+// Encodes BTree keys as bytes that compare, unsigned and byte by byte, the
+// way the strings compare with String.compareTo(). Each char takes one byte
+// below 0x80, two bytes below 0x4000 and three bytes otherwise, and the
+// first byte of each says which, so the encoding of a prefix is a prefix of
+// the encoding.
+final class KeyBytes
+{
+	static final byte EMPTY[] = new byte[0];
+	
+	private KeyBytes()
+	{
+	}
+	
+	static byte[] encode(String key)
+	{
+		int length = 0;
+		
+		for (int i = 0; i < key.length(); i++)
+		{
+			length += encodedLength(key.charAt(i));
+		}
+		
+		byte bytes[] = new byte[length];
+		int pos = 0;
+		
+		for (int i = 0; i < key.length(); i++)
+		{
+			char c = key.charAt(i);
+			
+			if (c < 0x80)
+			{
+				bytes[pos++] = (byte)c;
+			}
+			else if (c < 0x4000)
+			{
+				bytes[pos++] = (byte)(0x80 | (c >>> 8));
+				bytes[pos++] = (byte)c;
+			}
+			else
+			{
+				bytes[pos++] = (byte)0xC0;
+				bytes[pos++] = (byte)(c >>> 8);
+				bytes[pos++] = (byte)c;
+			}
+		}
+		
+		return bytes;
+	}
+	
+	// Decodes the key made of prefix followed by suffix
+	static String decode(byte prefix[], byte suffix[])
+	{
+		StringBuilder key = new StringBuilder(prefix.length + suffix.length);
+		byte bytes[] = concat(prefix, suffix);
+		int pos = 0;
+		
+		while (pos < bytes.length)
+		{
+			int lead = bytes[pos] & 0xFF;
+			
+			if (lead < 0x80)
+			{
+				key.append((char)lead);
+			}
+			else if (lead < 0xC0)
+			{
+				key.append((char)(((lead & 0x3F) << 8) | (bytes[pos+1] & 0xFF)));
+			}
+			else
+			{
+				key.append((char)(((bytes[pos+1] & 0xFF) << 8) | (bytes[pos+2] & 0xFF)));
+			}
+			
+			pos += charLength(bytes[pos]);
+		}
+		
+		return key.toString();
+	}
+	
+	// Compares a[aFrom, aTo) with b[bFrom, bTo)
+	static int compare(byte a[], int aFrom, int aTo, byte b[], int bFrom, int bTo)
+	{
+		int length = Math.min(aTo - aFrom, bTo - bFrom);
+		
+		for (int i = 0; i < length; i++)
+		{
+			int cmp = (a[aFrom+i] & 0xFF) - (b[bFrom+i] & 0xFF);
+			
+			if (cmp != 0)
+			{
+				return cmp;
+			}
+		}
+		
+		return (aTo - aFrom) - (bTo - bFrom);
+	}
+	
+	static int compare(byte a[], byte b[])
+	{
+		return compare(a, 0, a.length, b, 0, b.length);
+	}
+	
+	static boolean startsWith(byte key[], byte prefix[])
+	{
+		return (key.length >= prefix.length) &&
+		       (compare(key, 0, prefix.length, prefix, 0, prefix.length) == 0);
+	}
+	
+	static int commonPrefixLength(byte a[], byte b[])
+	{
+		int length = Math.min(a.length, b.length);
+		
+		for (int i = 0; i < length; i++)
+		{
+			if (a[i] != b[i])
+			{
+				return i;
+			}
+		}
+		
+		return length;
+	}
+	
+	static byte[] concat(byte a[], byte b[])
+	{
+		if (a.length == 0)
+		{
+			return b;
+		}
+		
+		byte bytes[] = new byte[a.length + b.length];
+		
+		System.arraycopy(a, 0, bytes, 0, a.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		
+		return bytes;
+	}
+	
+	// Returns the shortest whole-char prefix of right that is greater than
+	// left, which must be less than right. Any key k with left < k <= right
+	// is on the same side of it as right.
+	static byte[] separator(byte left[], byte right[])
+	{
+		int pos = 0;
+		
+		while (pos < right.length)
+		{
+			int end = pos + charLength(right[pos]);
+			
+			if (compare(left, pos, Math.min(end, left.length), right, pos, end) != 0)
+			{
+				break;
+			}
+			
+			pos = end;
+		}
+		
+		int end = (pos < right.length) ? pos + charLength(right[pos]) : pos;
+		
+		return (end == right.length) ? right : Arrays.copyOf(right, end);
+	}
+	
+	private static int encodedLength(char c)
+	{
+		return (c < 0x80) ? 1 : (c < 0x4000) ? 2 : 3;
+	}
+	
+	private static int charLength(byte lead)
+	{
+		int b = lead & 0xFF;
+		
+		return (b < 0x80) ? 1 : (b < 0xC0) ? 2 : 3;
+	}
+}
@@ -0,0 +1,12 @@
+package database;
+
+import java.util.Iterator;
+
+// Iterates over the record ids in a range of an index tree and can also
+// give the key each id is stored under, which the trees read from their
+// leaves anyway
+interface KeyedIterator extends Iterator<Integer>
+{
+	// Returns the key of the id last returned by next()
+	String key();
+}
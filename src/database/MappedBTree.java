@@ -0,0 +1,292 @@
+package database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// Read-only view of a file written by PagedBTree, mapped into memory with
+// FileChannel.map(). Searches run directly over the serialized nodes in the
+// mapping, so opening the tree and descending it allocate no node objects.
+public class MappedBTree
+{
+	// Files larger than this are mapped in several segments; each segment
+	// holds a whole number of pages
+	private static final long MAX_SEGMENT_SIZE = 1L << 30;
+	
+	private String _column;
+	private int _pageSize;
+	private int _rootPageId;
+	private int _entryCount;
+	
+	private RandomAccessFile _file;
+	private MappedByteBuffer _segments[];
+	private int _pagesPerSegment;
+	
+	private MappedBTree(RandomAccessFile file) throws IOException
+	{
+		_file = file;
+		
+		FileChannel channel = file.getChannel();
+		long fileSize = channel.size();
+		
+		ByteBuffer header = ByteBuffer.allocate(PagedBTree.COLUMN_OFFSET + 2);
+		
+		int bytesRead = 0;
+		
+		while (header.hasRemaining() && (bytesRead >= 0))
+		{
+			bytesRead = channel.read(header, header.position());
+		}
+		
+		if (header.hasRemaining() || (header.getInt(0) != PagedBTree.MAGIC))
+		{
+			throw new IOException("MappedBTree::open(): not a paged index");
+		}
+		else if (header.getInt(4) != PagedBTree.VERSION)
+		{
+			throw new IOException("MappedBTree::open(): a version " + header.getInt(4) +
+			                      " paged index; rebuild it from its data file");
+		}
+		
+		_pageSize   = header.getInt(PagedBTree.PAGE_SIZE_OFFSET);
+		_rootPageId = header.getInt(PagedBTree.ROOT_OFFSET);
+		_entryCount = header.getInt(PagedBTree.ENTRY_COUNT_OFFSET);
+		
+		_pagesPerSegment = (int)(MAX_SEGMENT_SIZE / _pageSize);
+		
+		long segmentSize = (long)_pagesPerSegment * _pageSize;
+		int numSegments = (int)((fileSize + segmentSize - 1) / segmentSize);
+		
+		_segments = new MappedByteBuffer[numSegments];
+		
+		for (int i = 0; i < numSegments; i++)
+		{
+			long position = i * segmentSize;
+			
+			_segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+			                           Math.min(segmentSize, fileSize - position));
+		}
+		
+		byte columnBytes[] = new byte[_segments[0].getShort(PagedBTree.COLUMN_OFFSET) & 0xFFFF];
+		
+		for (int i = 0; i < columnBytes.length; i++)
+		{
+			columnBytes[i] = _segments[0].get(PagedBTree.COLUMN_OFFSET + 2 + i);
+		}
+		_column = new String(columnBytes, PagedBTree.UTF8);
+	}
+	
+	public static MappedBTree open(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		
+		try
+		{
+			return new MappedBTree(file);
+		}
+		catch (IOException ex)
+		{
+			file.close();
+			throw ex;
+		}
+	}
+	
+	public String getColumnName()
+	{
+		return _column;
+	}
+	
+	public int getEntryCount()
+	{
+		return _entryCount;
+	}
+	
+	// Returns the ids of the records whose keys fall between fromKey and
+	// toKey, in key order. A null bound leaves that end of the range open.
+	public Iterator<Integer> range(String fromKey, boolean fromInclusive,
+	                               String toKey, boolean toInclusive)
+	{
+		return keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	KeyedIterator keyedRange(String fromKey, boolean fromInclusive,
+	                         String toKey, boolean toInclusive)
+	{
+		return new RangeIterator(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	public String printTree()
+	{
+		StringBuilder stringBuilder = new StringBuilder("");
+		
+		if (_rootPageId != NodePage.NO_PAGE)
+		{
+			printTreeInorder(_rootPageId, 0, stringBuilder);
+		}
+		
+		return new String(stringBuilder.toString());
+	}
+	
+	public void close() throws IOException
+	{
+		// The mapping itself is released when the buffers are collected
+		_segments = null;
+		_file.close();
+	}
+	
+	private ByteBuffer segment(int pageId)
+	{
+		return _segments[pageId / _pagesPerSegment];
+	}
+	
+	private int base(int pageId)
+	{
+		return (pageId % _pagesPerSegment) * _pageSize;
+	}
+	
+	private void printTreeInorder(int pageId, int level, StringBuilder s)
+	{
+		ByteBuffer buf = segment(pageId);
+		int base = base(pageId);
+		
+		int numEntries = NodePage.getNumEntries(buf, base);
+		
+		if (NodePage.isLeaf(buf, base))
+		{
+			for (int i = 0; i < numEntries; i++)
+			{
+				for (int j = 0; j < level; j++)
+				{
+					s.append("\t");
+				}
+				
+				s.append(PagedBTree.keyString(NodePage.getKey(buf, base, i)));
+				s.append(" ");
+				s.append(NodePage.getRecordId(buf, base, i));
+				s.append("\n");
+			}
+		}
+		else
+		{
+			printTreeInorder(NodePage.getLink(buf, base), level+1, s);
+			
+			for (int i = 0; i < numEntries; i++)
+			{
+				for (int j = 0; j < level; j++)
+				{
+					s.append("\t");
+				}
+				s.append(PagedBTree.keyString(NodePage.getKey(buf, base, i)));
+				s.append("\n");
+				
+				printTreeInorder(NodePage.getChild(buf, base, i), level+1, s);
+			}
+		}
+	}
+	
+	private class RangeIterator implements KeyedIterator
+	{
+		int _leafPageId;
+		int _slot;
+		
+		byte    _toKey[];
+		boolean _toInclusive;
+		
+		// The entry last returned
+		int _lastPageId;
+		int _lastSlot;
+		
+		private RangeIterator(String fromKey, boolean fromInclusive,
+		                      String toKey, boolean toInclusive)
+		{
+			_toKey = (toKey != null) ? KeyBytes.encode(toKey) : null;
+			_toInclusive = toInclusive;
+			
+			_leafPageId = _rootPageId;
+			_slot = 0;
+			_lastPageId = NodePage.NO_PAGE;
+			
+			if (_leafPageId == NodePage.NO_PAGE)
+			{
+				return;
+			}
+			
+			byte key[] = (fromKey != null) ? KeyBytes.encode(fromKey) : KeyBytes.EMPTY;
+			long recordId = ((fromKey == null) || fromInclusive) ? Long.MIN_VALUE : Long.MAX_VALUE;
+			
+			while (!NodePage.isLeaf(segment(_leafPageId), base(_leafPageId)))
+			{
+				_leafPageId = NodePage.findChild(segment(_leafPageId), base(_leafPageId), key, recordId);
+			}
+			
+			_slot = NodePage.lowerBound(segment(_leafPageId), base(_leafPageId), key, recordId);
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while (_leafPageId != NodePage.NO_PAGE)
+			{
+				ByteBuffer buf = segment(_leafPageId);
+				int base = base(_leafPageId);
+				
+				if (_slot >= NodePage.getNumEntries(buf, base))
+				{
+					// Move on to the next leaf in the chain
+					_leafPageId = NodePage.getLink(buf, base);
+					_slot = 0;
+				}
+				else
+				{
+					if (_toKey != null)
+					{
+						int cmp = NodePage.compareKey(buf, base, _slot, _toKey);
+						
+						if ((cmp > 0) || (cmp == 0 && !_toInclusive))
+						{
+							_leafPageId = NodePage.NO_PAGE;
+							return false;
+						}
+					}
+					
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public Integer next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			_lastPageId = _leafPageId;
+			_lastSlot   = _slot;
+			
+			return NodePage.getRecordId(segment(_leafPageId), base(_leafPageId), _slot++);
+		}
+		
+		@Override
+		public String key()
+		{
+			if (_lastPageId == NodePage.NO_PAGE)
+			{
+				throw new java.lang.IllegalStateException();
+			}
+			
+			return PagedBTree.keyString(NodePage.getKey(segment(_lastPageId), base(_lastPageId), _lastSlot));
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new java.lang.UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package database;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Layout of a B-tree node stored in one page. All accessors take the buffer
+// holding the page and the offset at which the page starts, and read it in
+// place without copying.
+//
+//   0  byte   node type (LEAF or INTERIOR)
+//   2  short  number of entries
+//   4  int    leaf: page id of the next leaf; interior: leftmost child
+//   8  short  offset of each entry, in key order
+//
+// Each entry is a key, encoded by KeyBytes, prefixed by its length, followed by a record id
+// and, in interior nodes, the page id of the child to the right of the
+// entry. Entries are ordered by key bytes and then by record id, which makes
+// every entry unique even when keys repeat.
+final class NodePage
+{
+	static final byte LEAF     = 1;
+	static final byte INTERIOR = 2;
+	
+	static final int NO_PAGE = -1;
+	
+	static final int HEADER_SIZE = 8;
+	
+	private static final int TYPE_OFFSET  = 0;
+	private static final int COUNT_OFFSET = 2;
+	private static final int LINK_OFFSET  = 4;
+	
+	private NodePage()
+	{
+	}
+	
+	static boolean isLeaf(ByteBuffer buf, int base)
+	{
+		return buf.get(base + TYPE_OFFSET) == LEAF;
+	}
+	
+	static int getNumEntries(ByteBuffer buf, int base)
+	{
+		return buf.getShort(base + COUNT_OFFSET) & 0xFFFF;
+	}
+	
+	static int getLink(ByteBuffer buf, int base)
+	{
+		return buf.getInt(base + LINK_OFFSET);
+	}
+	
+	static int getKeyLength(ByteBuffer buf, int base, int slot)
+	{
+		return buf.getShort(base + entryOffset(buf, base, slot)) & 0xFFFF;
+	}
+	
+	static byte[] getKey(ByteBuffer buf, int base, int slot)
+	{
+		int offset = base + entryOffset(buf, base, slot);
+		byte key[] = new byte[buf.getShort(offset) & 0xFFFF];
+		
+		for (int i = 0; i < key.length; i++)
+		{
+			key[i] = buf.get(offset + 2 + i);
+		}
+		
+		return key;
+	}
+	
+	static int getRecordId(ByteBuffer buf, int base, int slot)
+	{
+		int offset = base + entryOffset(buf, base, slot);
+		
+		return buf.getInt(offset + 2 + (buf.getShort(offset) & 0xFFFF));
+	}
+	
+	static int getChild(ByteBuffer buf, int base, int slot)
+	{
+		int offset = base + entryOffset(buf, base, slot);
+		
+		return buf.getInt(offset + 6 + (buf.getShort(offset) & 0xFFFF));
+	}
+	
+	// Compares the key stored in slot with key, ignoring record ids
+	static int compareKey(ByteBuffer buf, int base, int slot, byte key[])
+	{
+		int offset = base + entryOffset(buf, base, slot);
+		int length = buf.getShort(offset) & 0xFFFF;
+		
+		int limit = Math.min(length, key.length);
+		
+		for (int i = 0; i < limit; i++)
+		{
+			int cmp = (buf.get(offset + 2 + i) & 0xFF) - (key[i] & 0xFF);
+			
+			if (cmp != 0)
+			{
+				return cmp;
+			}
+		}
+		
+		return length - key.length;
+	}
+	
+	// Compares the entry in slot with (key, recordId). A record id of
+	// Long.MIN_VALUE or Long.MAX_VALUE sorts before or after every entry
+	// with the same key.
+	static int compareEntry(ByteBuffer buf, int base, int slot, byte key[], long recordId)
+	{
+		int cmp = compareKey(buf, base, slot, key);
+		
+		if (cmp != 0)
+		{
+			return cmp;
+		}
+		
+		long entryId = getRecordId(buf, base, slot);
+		
+		return (entryId < recordId) ? -1 : ((entryId == recordId) ? 0 : 1);
+	}
+	
+	// Returns the first slot whose entry is not less than (key, recordId)
+	static int lowerBound(ByteBuffer buf, int base, byte key[], long recordId)
+	{
+		int low  = 0;
+		int high = getNumEntries(buf, base);
+		
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			
+			if (compareEntry(buf, base, mid, key, recordId) < 0)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	// Returns the page id of the child of an interior node whose subtree
+	// covers (key, recordId)
+	static int findChild(ByteBuffer buf, int base, byte key[], long recordId)
+	{
+		int low  = 0;
+		int high = getNumEntries(buf, base);
+		
+		// Find the number of separators not greater than the probe
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			
+			if (compareEntry(buf, base, mid, key, recordId) <= 0)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		
+		return (low == 0) ? getLink(buf, base) : getChild(buf, base, low - 1);
+	}
+	
+	static int entrySize(boolean isLeaf, int keyLength)
+	{
+		// Slot, key length, key, record id and, for interior nodes, child
+		return 2 + 2 + keyLength + 4 + (isLeaf ? 0 : 4);
+	}
+	
+	static int nodeSize(boolean isLeaf, List<byte[]> keys)
+	{
+		int size = HEADER_SIZE;
+		
+		for (int i = 0; i < keys.size(); i++)
+		{
+			size += entrySize(isLeaf, keys.get(i).length);
+		}
+		
+		return size;
+	}
+	
+	// Rewrites the whole page. children holds the page id to the right of
+	// each entry and is ignored for leaves.
+	static void write(ByteBuffer buf, int base, int pageSize, boolean isLeaf, int link,
+	                  List<byte[]> keys, List<Integer> recordIds, List<Integer> children)
+	{
+		int numEntries = keys.size();
+		
+		if (nodeSize(isLeaf, keys) > pageSize)
+		{
+			throw new IllegalStateException("NodePage::write(): node does not fit in page");
+		}
+		
+		buf.put(base + TYPE_OFFSET, isLeaf ? LEAF : INTERIOR);
+		buf.put(base + TYPE_OFFSET + 1, (byte)0);
+		buf.putShort(base + COUNT_OFFSET, (short)numEntries);
+		buf.putInt(base + LINK_OFFSET, link);
+		
+		int offset = HEADER_SIZE + 2 * numEntries;
+		
+		for (int i = 0; i < numEntries; i++)
+		{
+			byte key[] = keys.get(i);
+			
+			buf.putShort(base + HEADER_SIZE + 2 * i, (short)offset);
+			buf.putShort(base + offset, (short)key.length);
+			
+			for (int j = 0; j < key.length; j++)
+			{
+				buf.put(base + offset + 2 + j, key[j]);
+			}
+			
+			buf.putInt(base + offset + 2 + key.length, recordIds.get(i));
+			
+			if (!isLeaf)
+			{
+				buf.putInt(base + offset + 6 + key.length, children.get(i));
+			}
+			
+			offset += entrySize(isLeaf, key.length) - 2;
+		}
+		
+		// Clear the unused tail so stale bytes never reach the file
+		for (int i = offset; i < pageSize; i++)
+		{
+			buf.put(base + i, (byte)0);
+		}
+	}
+	
+	private static int entryOffset(ByteBuffer buf, int base, int slot)
+	{
+		return buf.getShort(base + HEADER_SIZE + 2 * slot) & 0xFFFF;
+	}
+}
@@ -0,0 +1,93 @@
+package database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// A file divided into fixed-size pages addressed by page id.
+class PageFile
+{
+	private RandomAccessFile _file;
+	private FileChannel _channel;
+	private int _pageSize;
+	private int _numPages;
+	
+	PageFile(String fileName, int pageSize, boolean truncate) throws IOException
+	{
+		_file = new RandomAccessFile(fileName, "rw");
+		_channel = _file.getChannel();
+		_pageSize = pageSize;
+		
+		if (truncate)
+		{
+			_channel.truncate(0);
+		}
+		
+		_numPages = (int)((_channel.size() + pageSize - 1) / pageSize);
+	}
+	
+	int getPageSize()
+	{
+		return _pageSize;
+	}
+	
+	int getNumPages()
+	{
+		return _numPages;
+	}
+	
+	// Reserves a new page at the end of the file and returns its id. The
+	// page is not written until writePage() is called for it.
+	int allocatePage()
+	{
+		return _numPages++;
+	}
+	
+	void readPage(int pageId, ByteBuffer page) throws IOException
+	{
+		page.clear();
+		
+		long position = (long)pageId * _pageSize;
+		
+		while (page.hasRemaining())
+		{
+			int bytesRead = _channel.read(page, position + page.position());
+			
+			if (bytesRead < 0)
+			{
+				// Past the end of the file: the rest of the page is empty
+				while (page.hasRemaining())
+				{
+					page.put((byte)0);
+				}
+			}
+		}
+		
+		page.clear();
+	}
+	
+	void writePage(int pageId, ByteBuffer page) throws IOException
+	{
+		page.clear();
+		
+		long position = (long)pageId * _pageSize;
+		
+		while (page.hasRemaining())
+		{
+			_channel.write(page, position + page.position());
+		}
+		
+		page.clear();
+	}
+	
+	void force() throws IOException
+	{
+		_channel.force(false);
+	}
+	
+	void close() throws IOException
+	{
+		_channel.close();
+		_file.close();
+	}
+}
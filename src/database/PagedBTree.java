@@ -0,0 +1,1098 @@
+package database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+// A B+ tree kept in a page file, one node per page (see NodePage). Nodes
+// are reached through a bounded BufferPool, so a lookup only faults in the
+// pages on its root-to-leaf path and the tree does not have to fit in the
+// heap. Each leaf entry pairs a key with one record id; records sharing a
+// key are stored as separate entries ordered by record id.
+//
+// Every operation goes through the shared buffer pool, so threads using
+// the same tree take turns on it.
+//
+// Page 0 holds the file header:
+//
+//   0  int    MAGIC
+//   4  int    VERSION
+//   8  int    page size
+//  12  int    root page id
+//  16  int    number of entries
+//  20  short  length of the column name, followed by the name in UTF-8
+//
+// Keys are stored as KeyBytes, whose bytes sort the way String.compareTo()
+// sorts the keys, so that a paged index orders keys as an in-memory one
+// does. In UTF-8 the chars from U+E000 up would sort before surrogates.
+// Version 1 files, which held UTF-8 keys, are not read.
+public class PagedBTree
+{
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	
+	static final int MAGIC   = 0x42545047;
+	static final int VERSION = 2;
+	
+	static final int HEADER_PAGE = 0;
+	
+	static final int PAGE_SIZE_OFFSET   = 8;
+	static final int ROOT_OFFSET        = 12;
+	static final int ENTRY_COUNT_OFFSET = 16;
+	static final int COLUMN_OFFSET      = 20;
+	
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private String _fileName;
+	private String _column;
+	
+	private PageFile _pageFile;
+	private BufferPool _pool;
+	
+	private int _rootPageId;
+	private int _entryCount;
+	
+	// Counts changes to the entries, so that iterators know when their
+	// position in a leaf may have shifted
+	private int _modCount;
+	
+	// Entries deleted since the tree was opened or last compacted. Deletes
+	// leave their space in the leaves until compact() merges them.
+	private int _numDeletes;
+	
+	// Where the next compact() call carries on: the first entry under the
+	// next parent of leaves to visit, or null to start a new pass
+	private byte _compactKey[];
+	private long _compactId;
+	
+	// compact() merges adjacent leaves whose entries fit in this fraction
+	// of a page
+	private static final double MERGE_FILL = 0.75;
+	
+	private PagedBTree(String fileName, String column, PageFile pageFile, int bufferPages,
+	                   int rootPageId, int entryCount)
+	{
+		_fileName = fileName;
+		_column = column;
+		_pageFile = pageFile;
+		_pool = new BufferPool(pageFile, bufferPages);
+		_rootPageId = rootPageId;
+		_entryCount = entryCount;
+		_modCount = 0;
+		_numDeletes = 0;
+	}
+	
+	// Returns true if fileName starts with a paged index header
+	public static boolean isPagedFile(String fileName)
+	{
+		DataInputStream in = null;
+		
+		try
+		{
+			in = new DataInputStream(new FileInputStream(fileName));
+			return in.readInt() == MAGIC;
+		}
+		catch (IOException ex)
+		{
+			return false;
+		}
+		finally
+		{
+			closeQuietly(in);
+		}
+	}
+	
+	// Writes a new tree to fileName from the first count keys and record ids,
+	// packing leaves to fillFactor of a page and building the interior levels
+	// bottom-up, and opens it.
+	public static PagedBTree create(String fileName, String column, String keys[], int recordIds[],
+	                                int count, int pageSize, double fillFactor, int bufferPages)
+		throws IOException
+	{
+		if ((pageSize < 512) || (pageSize > 32768))
+		{
+			throw new IllegalArgumentException
+			   ("PagedBTree::create(): page size must be between 512 and 32768 bytes");
+		}
+		else if ((fillFactor < 0.5) || (fillFactor > 1.0))
+		{
+			throw new IllegalArgumentException
+			   ("PagedBTree::create(): fill factor must be between 0.5 and 1.0");
+		}
+		
+		// Sort entries by key bytes, then record id
+		final byte encodedKeys[][] = new byte[count][];
+		final int ids[] = new int[count];
+		Integer order[] = new Integer[count];
+		
+		for (int i = 0; i < count; i++)
+		{
+			encodedKeys[i] = encodeKey(keys[i], pageSize);
+			ids[i] = recordIds[i];
+			order[i] = i;
+		}
+		
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				int cmp = compareBytes(encodedKeys[a], encodedKeys[b]);
+				return (cmp != 0) ? cmp : ((ids[a] < ids[b]) ? -1 : ((ids[a] == ids[b]) ? 0 : 1));
+			}
+		});
+		
+		PageFile pageFile = new PageFile(fileName, pageSize, true);
+		ByteBuffer page = ByteBuffer.allocate(pageSize);
+		
+		pageFile.allocatePage(); // header
+		
+		int fillLimit = (int)(pageSize * fillFactor);
+		int rootPageId = NodePage.NO_PAGE;
+		
+		if (count > 0)
+		{
+			// Pack the leaves, which are given consecutive page ids
+			List<byte[]> levelKeys = new ArrayList<byte[]>();
+			List<Integer> levelIds = new ArrayList<Integer>();
+			List<Integer> levelPages = new ArrayList<Integer>();
+			
+			List<byte[]> nodeKeys = new ArrayList<byte[]>();
+			List<Integer> nodeIds = new ArrayList<Integer>();
+			
+			int size = NodePage.HEADER_SIZE;
+			
+			for (int i = 0; i < count; i++)
+			{
+				byte key[] = encodedKeys[order[i]];
+				int entrySize = NodePage.entrySize(true, key.length);
+				
+				if (!nodeKeys.isEmpty() && (size + entrySize > fillLimit))
+				{
+					int pageId = pageFile.allocatePage();
+					
+					levelKeys.add(nodeKeys.get(0));
+					levelIds.add(nodeIds.get(0));
+					levelPages.add(pageId);
+					
+					NodePage.write(page, 0, pageSize, true, pageId + 1, nodeKeys, nodeIds, null);
+					pageFile.writePage(pageId, page);
+					
+					nodeKeys.clear();
+					nodeIds.clear();
+					size = NodePage.HEADER_SIZE;
+				}
+				
+				nodeKeys.add(key);
+				nodeIds.add(ids[order[i]]);
+				size += entrySize;
+			}
+			
+			int lastLeaf = pageFile.allocatePage();
+			
+			levelKeys.add(nodeKeys.get(0));
+			levelIds.add(nodeIds.get(0));
+			levelPages.add(lastLeaf);
+			
+			NodePage.write(page, 0, pageSize, true, NodePage.NO_PAGE, nodeKeys, nodeIds, null);
+			pageFile.writePage(lastLeaf, page);
+			
+			// Build interior levels over the level below until one node is left
+			while (levelPages.size() > 1)
+			{
+				List<byte[]> parentKeys = new ArrayList<byte[]>();
+				List<Integer> parentIds = new ArrayList<Integer>();
+				List<Integer> parentPages = new ArrayList<Integer>();
+				
+				List<Integer> nodeChildren = new ArrayList<Integer>();
+				int link = NodePage.NO_PAGE;
+				
+				for (int i = 0; i < levelPages.size(); i++)
+				{
+					byte key[] = levelKeys.get(i);
+					int entrySize = NodePage.entrySize(false, key.length);
+					
+					if ((link != NodePage.NO_PAGE) && (size + entrySize > fillLimit))
+					{
+						int pageId = pageFile.allocatePage();
+						
+						NodePage.write(page, 0, pageSize, false, link, nodeKeys, nodeIds, nodeChildren);
+						pageFile.writePage(pageId, page);
+						parentPages.add(pageId);
+						
+						link = NodePage.NO_PAGE;
+					}
+					
+					if (link == NodePage.NO_PAGE)
+					{
+						// The first child of a node becomes its leftmost link
+						parentKeys.add(key);
+						parentIds.add(levelIds.get(i));
+						
+						link = levelPages.get(i);
+						nodeKeys.clear();
+						nodeIds.clear();
+						nodeChildren.clear();
+						size = NodePage.HEADER_SIZE;
+					}
+					else
+					{
+						nodeKeys.add(key);
+						nodeIds.add(levelIds.get(i));
+						nodeChildren.add(levelPages.get(i));
+						size += entrySize;
+					}
+				}
+				
+				int pageId = pageFile.allocatePage();
+				
+				NodePage.write(page, 0, pageSize, false, link, nodeKeys, nodeIds, nodeChildren);
+				pageFile.writePage(pageId, page);
+				parentPages.add(pageId);
+				
+				levelKeys  = parentKeys;
+				levelIds   = parentIds;
+				levelPages = parentPages;
+			}
+			
+			rootPageId = levelPages.get(0);
+		}
+		
+		PagedBTree tree = new PagedBTree(fileName, column, pageFile, bufferPages, rootPageId, count);
+		tree.writeHeader();
+		pageFile.force();
+		
+		return tree;
+	}
+	
+	// Opens an existing tree. Only the header page is read; nodes are
+	// faulted in on demand.
+	public static PagedBTree open(String fileName, int bufferPages) throws IOException
+	{
+		DataInputStream in = null;
+		int pageSize;
+		int rootPageId;
+		int entryCount;
+		String column;
+		
+		try
+		{
+			in = new DataInputStream(new FileInputStream(fileName));
+			
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException("PagedBTree::open(): " + fileName + " is not a paged index");
+			}
+			
+			int version = in.readInt();
+			
+			if (version != VERSION)
+			{
+				throw new IOException("PagedBTree::open(): " + fileName + " is a version " + version +
+				                      " paged index; rebuild it from its data file");
+			}
+			
+			pageSize   = in.readInt();
+			rootPageId = in.readInt();
+			entryCount = in.readInt();
+			
+			byte columnBytes[] = new byte[in.readUnsignedShort()];
+			in.readFully(columnBytes);
+			column = new String(columnBytes, UTF8);
+		}
+		finally
+		{
+			closeQuietly(in);
+		}
+		
+		PageFile pageFile = new PageFile(fileName, pageSize, false);
+		
+		return new PagedBTree(fileName, column, pageFile, bufferPages, rootPageId, entryCount);
+	}
+	
+	public String getColumnName()
+	{
+		return _column;
+	}
+	
+	public String getFileName()
+	{
+		return _fileName;
+	}
+	
+	public synchronized int getEntryCount()
+	{
+		return _entryCount;
+	}
+	
+	public synchronized int getDeleteCount()
+	{
+		return _numDeletes;
+	}
+	
+	public int getBufferPoolSize()
+	{
+		return _pool.getCapacity();
+	}
+	
+	// Number of pages read from disk since the tree was opened
+	public long getPageFaults()
+	{
+		return _pool.getFaultCount();
+	}
+	
+	// Returns the ids of the records whose keys fall between fromKey and
+	// toKey, in key order. A null bound leaves that end of the range open.
+	public Iterator<Integer> range(String fromKey, boolean fromInclusive,
+	                               String toKey, boolean toInclusive)
+	{
+		return keyedRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	KeyedIterator keyedRange(String fromKey, boolean fromInclusive,
+	                         String toKey, boolean toInclusive)
+	{
+		return new RangeIterator(fromKey, fromInclusive, toKey, toInclusive);
+	}
+	
+	public synchronized void insert(String key, int recordId)
+	{
+		byte keyBytes[] = encodeKey(key, _pageFile.getPageSize());
+		
+		if (_rootPageId == NodePage.NO_PAGE)
+		{
+			_rootPageId = _pageFile.allocatePage();
+			
+			List<byte[]> keys = new ArrayList<byte[]>();
+			List<Integer> ids = new ArrayList<Integer>();
+			keys.add(keyBytes);
+			ids.add(recordId);
+			
+			ByteBuffer page = _pool.pinNew(_rootPageId);
+			NodePage.write(page, 0, _pageFile.getPageSize(), true, NodePage.NO_PAGE, keys, ids, null);
+			_pool.unpin(_rootPageId, true);
+			
+			_entryCount++;
+			_modCount++;
+			return;
+		}
+		
+		// Descend to the leaf, remembering the interior nodes on the way
+		List<Integer> path = new ArrayList<Integer>();
+		int pageId = findLeaf(keyBytes, recordId, path);
+		
+		ByteBuffer page = _pool.pin(pageId);
+		int slot = NodePage.lowerBound(page, 0, keyBytes, recordId);
+		
+		if ((slot < NodePage.getNumEntries(page, 0)) &&
+		    (NodePage.compareEntry(page, 0, slot, keyBytes, recordId) == 0))
+		{
+			// Already present
+			_pool.unpin(pageId, false);
+			return;
+		}
+		
+		Node node = readNode(page);
+		node._keys.add(slot, keyBytes);
+		node._recordIds.add(slot, recordId);
+		
+		_entryCount++;
+		_modCount++;
+		
+		Node right = writeOrSplit(pageId, page, node);
+		_pool.unpin(pageId, true);
+		
+		// Push separators up the path for as long as nodes keep splitting
+		for (int level = path.size() - 1; (right != null) && (level >= 0); level--)
+		{
+			int parentId = path.get(level);
+			ByteBuffer parentPage = _pool.pin(parentId);
+			Node parent = readNode(parentPage);
+			
+			int index = NodePage.lowerBound(parentPage, 0, right._separatorKey, right._separatorId);
+			parent._keys.add(index, right._separatorKey);
+			parent._recordIds.add(index, right._separatorId);
+			parent._children.add(index, right._pageId);
+			
+			right = writeOrSplit(parentId, parentPage, parent);
+			_pool.unpin(parentId, true);
+		}
+		
+		if (right != null)
+		{
+			// The root split, so grow the tree by one level
+			Node root = new Node();
+			root._isLeaf = false;
+			root._link = _rootPageId;
+			root._keys.add(right._separatorKey);
+			root._recordIds.add(right._separatorId);
+			root._children.add(right._pageId);
+			
+			_rootPageId = _pageFile.allocatePage();
+			
+			ByteBuffer rootPage = _pool.pinNew(_rootPageId);
+			writeNode(rootPage, root);
+			_pool.unpin(_rootPageId, true);
+		}
+	}
+	
+	// Removes the entry for (key, recordId). Leaves are not merged when they
+	// empty; they stay in the leaf chain until the index is rebuilt.
+	public synchronized boolean delete(String key, int recordId)
+	{
+		if (_rootPageId == NodePage.NO_PAGE)
+		{
+			return false;
+		}
+		
+		byte keyBytes[] = encodeKey(key, _pageFile.getPageSize());
+		int pageId = findLeaf(keyBytes, recordId, null);
+		
+		ByteBuffer page = _pool.pin(pageId);
+		int slot = NodePage.lowerBound(page, 0, keyBytes, recordId);
+		
+		if ((slot >= NodePage.getNumEntries(page, 0)) ||
+		    (NodePage.compareEntry(page, 0, slot, keyBytes, recordId) != 0))
+		{
+			_pool.unpin(pageId, false);
+			return false;
+		}
+		
+		Node node = readNode(page);
+		node._keys.remove(slot);
+		node._recordIds.remove(slot);
+		writeNode(page, node);
+		
+		_pool.unpin(pageId, true);
+		
+		_entryCount--;
+		_numDeletes++;
+		_modCount++;
+		
+		return true;
+	}
+	
+	// Merges runs of adjacent leaves that share a parent and whose entries
+	// fit in MERGE_FILL of a page, visiting at most maxParents parents of
+	// leaves from where the last call stopped. Returns true once a pass over
+	// the whole tree is done, which also clears the delete count. Merged
+	// leaves drop out of the leaf chain, so scans no longer walk them; their
+	// pages stay in the file.
+	public synchronized boolean compact(int maxParents)
+	{
+		for (int i = 0; i < maxParents; i++)
+		{
+			if (!compactNextParent())
+			{
+				_compactKey = null;
+				_numDeletes = 0;
+				
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	// Merges the leaves under the parent whose range holds the compaction
+	// position, and moves the position to the next parent. Returns false if
+	// there was no next parent.
+	private boolean compactNextParent()
+	{
+		if (_rootPageId == NodePage.NO_PAGE)
+		{
+			return false;
+		}
+		
+		byte key[] = (_compactKey != null) ? _compactKey : new byte[0];
+		long recordId = (_compactKey != null) ? _compactId : Long.MIN_VALUE;
+		
+		// The nearest separator to the right of the path down bounds the
+		// parent's range
+		byte boundKey[] = null;
+		long boundId = 0;
+		
+		int pageId = _rootPageId;
+		ByteBuffer page = _pool.pin(pageId);
+		
+		if (NodePage.isLeaf(page, 0))
+		{
+			_pool.unpin(pageId, false);
+			return false;
+		}
+		
+		while (true)
+		{
+			int numEntries = NodePage.getNumEntries(page, 0);
+			int index = NodePage.lowerBound(page, 0, key, recordId);
+			
+			if ((index < numEntries) && (NodePage.compareEntry(page, 0, index, key, recordId) == 0))
+			{
+				index++;
+			}
+			
+			int childId = (index == 0) ? NodePage.getLink(page, 0) : NodePage.getChild(page, 0, index - 1);
+			ByteBuffer childPage = _pool.pin(childId);
+			
+			if (NodePage.isLeaf(childPage, 0))
+			{
+				_pool.unpin(childId, false);
+				break;
+			}
+			
+			if (index < numEntries)
+			{
+				boundKey = NodePage.getKey(page, 0, index);
+				boundId = NodePage.getRecordId(page, 0, index);
+			}
+			
+			_pool.unpin(pageId, false);
+			pageId = childId;
+			page = childPage;
+		}
+		
+		Node parent = readNode(page);
+		boolean merged = mergeLeaves(parent);
+		
+		if (merged)
+		{
+			writeNode(page, parent);
+			_modCount++;
+		}
+		
+		_pool.unpin(pageId, merged);
+		
+		_compactKey = boundKey;
+		_compactId = boundId;
+		
+		return boundKey != null;
+	}
+	
+	// Folds each leaf of parent into the one on its left while both fit in
+	// MERGE_FILL of a page, and returns true if any were
+	private boolean mergeLeaves(Node parent)
+	{
+		int limit = (int)(_pageFile.getPageSize() * MERGE_FILL);
+		boolean merged = false;
+		int i = 0;
+		
+		// Leaf i is the parent's link for i == 0, and otherwise child i - 1
+		while (i < parent._keys.size())
+		{
+			int leftId = (i == 0) ? parent._link : parent._children.get(i - 1);
+			int rightId = parent._children.get(i);
+			
+			ByteBuffer leftPage = _pool.pin(leftId);
+			Node left = readNode(leftPage);
+			
+			ByteBuffer rightPage = _pool.pin(rightId);
+			Node right = readNode(rightPage);
+			_pool.unpin(rightId, false);
+			
+			List<byte[]> keys = new ArrayList<byte[]>(left._keys);
+			keys.addAll(right._keys);
+			
+			if (NodePage.nodeSize(true, keys) > limit)
+			{
+				_pool.unpin(leftId, false);
+				i++;
+				continue;
+			}
+			
+			left._keys = keys;
+			left._recordIds.addAll(right._recordIds);
+			left._link = right._link;
+			
+			writeNode(leftPage, left);
+			_pool.unpin(leftId, true);
+			
+			parent._keys.remove(i);
+			parent._recordIds.remove(i);
+			parent._children.remove(i);
+			
+			merged = true;
+		}
+		
+		return merged;
+	}
+	
+	// Reports every page of the tree to builder, with the fraction of it in
+	// use. Keys are left to a range iterator, which also serves a mapped
+	// tree.
+	synchronized void addNodeStatistics(IndexStatistics.Builder builder)
+	{
+		if (_rootPageId != NodePage.NO_PAGE)
+		{
+			addNodeStatistics(_rootPageId, 0, builder);
+		}
+	}
+	
+	private void addNodeStatistics(int pageId, int depth, IndexStatistics.Builder builder)
+	{
+		ByteBuffer page = _pool.pin(pageId);
+		
+		try
+		{
+			boolean leaf = NodePage.isLeaf(page, 0);
+			int numEntries = NodePage.getNumEntries(page, 0);
+			int size = NodePage.HEADER_SIZE;
+			
+			for (int i = 0; i < numEntries; i++)
+			{
+				size += NodePage.entrySize(leaf, NodePage.getKeyLength(page, 0, i));
+			}
+			
+			builder.node(depth, leaf, (double)size / _pageFile.getPageSize());
+			
+			if (!leaf)
+			{
+				addNodeStatistics(NodePage.getLink(page, 0), depth + 1, builder);
+				
+				for (int i = 0; i < numEntries; i++)
+				{
+					addNodeStatistics(NodePage.getChild(page, 0, i), depth + 1, builder);
+				}
+			}
+		}
+		finally
+		{
+			_pool.unpin(pageId, false);
+		}
+	}
+	
+	public synchronized String printTree()
+	{
+		StringBuilder stringBuilder = new StringBuilder("");
+		
+		if (_rootPageId != NodePage.NO_PAGE)
+		{
+			printTreeInorder(_rootPageId, 0, stringBuilder);
+		}
+		
+		return new String(stringBuilder.toString());
+	}
+	
+	// Writes dirty pages and the header back to the file
+	public synchronized void flush() throws IOException
+	{
+		_pool.flush();
+		writeHeader();
+		_pageFile.force();
+	}
+	
+	public synchronized void close() throws IOException
+	{
+		flush();
+		_pageFile.close();
+	}
+	
+	private void printTreeInorder(int pageId, int level, StringBuilder s)
+	{
+		ByteBuffer page = _pool.pin(pageId);
+		
+		try
+		{
+			int numEntries = NodePage.getNumEntries(page, 0);
+			
+			if (NodePage.isLeaf(page, 0))
+			{
+				for (int i = 0; i < numEntries; i++)
+				{
+					for (int j = 0; j < level; j++)
+					{
+						s.append("\t");
+					}
+					
+					s.append(keyString(NodePage.getKey(page, 0, i)));
+					s.append(" ");
+					s.append(NodePage.getRecordId(page, 0, i));
+					s.append("\n");
+				}
+			}
+			else
+			{
+				printTreeInorder(NodePage.getLink(page, 0), level+1, s);
+				
+				for (int i = 0; i < numEntries; i++)
+				{
+					for (int j = 0; j < level; j++)
+					{
+						s.append("\t");
+					}
+					s.append(keyString(NodePage.getKey(page, 0, i)));
+					s.append("\n");
+					
+					printTreeInorder(NodePage.getChild(page, 0, i), level+1, s);
+				}
+			}
+		}
+		finally
+		{
+			_pool.unpin(pageId, false);
+		}
+	}
+	
+	// Returns the leaf whose range covers (key, recordId), adding the interior
+	// pages visited to path if it is not null
+	private int findLeaf(byte key[], long recordId, List<Integer> path)
+	{
+		int pageId = _rootPageId;
+		
+		while (true)
+		{
+			ByteBuffer page = _pool.pin(pageId);
+			
+			if (NodePage.isLeaf(page, 0))
+			{
+				_pool.unpin(pageId, false);
+				return pageId;
+			}
+			
+			if (path != null)
+			{
+				path.add(pageId);
+			}
+			
+			int child = NodePage.findChild(page, 0, key, recordId);
+			_pool.unpin(pageId, false);
+			
+			pageId = child;
+		}
+	}
+	
+	// A node decoded from its page so that it can be modified
+	private class Node
+	{
+		boolean _isLeaf;
+		int _link;
+		
+		List<byte[]>  _keys      = new ArrayList<byte[]>();
+		List<Integer> _recordIds = new ArrayList<Integer>();
+		List<Integer> _children  = new ArrayList<Integer>();
+		
+		// Set on the right half of a split
+		int    _pageId;
+		byte   _separatorKey[];
+		int    _separatorId;
+	}
+	
+	private Node readNode(ByteBuffer page)
+	{
+		Node node = new Node();
+		node._isLeaf = NodePage.isLeaf(page, 0);
+		node._link = NodePage.getLink(page, 0);
+		
+		int numEntries = NodePage.getNumEntries(page, 0);
+		
+		for (int i = 0; i < numEntries; i++)
+		{
+			node._keys.add(NodePage.getKey(page, 0, i));
+			node._recordIds.add(NodePage.getRecordId(page, 0, i));
+			
+			if (!node._isLeaf)
+			{
+				node._children.add(NodePage.getChild(page, 0, i));
+			}
+		}
+		
+		return node;
+	}
+	
+	private void writeNode(ByteBuffer page, Node node)
+	{
+		NodePage.write(page, 0, _pageFile.getPageSize(), node._isLeaf, node._link,
+		               node._keys, node._recordIds, node._children);
+	}
+	
+	// Writes node back to its page, splitting it in two by size if it no
+	// longer fits. Returns the new right-hand node, or null if there was no
+	// split.
+	private Node writeOrSplit(int pageId, ByteBuffer page, Node node)
+	{
+		if (NodePage.nodeSize(node._isLeaf, node._keys) <= _pageFile.getPageSize())
+		{
+			writeNode(page, node);
+			return null;
+		}
+		
+		// Find the entry at which half the bytes have been used
+		int half = (NodePage.nodeSize(node._isLeaf, node._keys) - NodePage.HEADER_SIZE) / 2;
+		int split = 0;
+		int size  = 0;
+		
+		while ((split < node._keys.size() - 1) && (size < half))
+		{
+			size += NodePage.entrySize(node._isLeaf, node._keys.get(split).length);
+			split++;
+		}
+		
+		Node right = new Node();
+		right._isLeaf = node._isLeaf;
+		right._pageId = _pageFile.allocatePage();
+		right._separatorKey = node._keys.get(split);
+		right._separatorId = node._recordIds.get(split);
+		
+		int numEntries = node._keys.size();
+		
+		if (node._isLeaf)
+		{
+			right._keys.addAll(node._keys.subList(split, numEntries));
+			right._recordIds.addAll(node._recordIds.subList(split, numEntries));
+			
+			right._link = node._link;
+			node._link = right._pageId;
+		}
+		else
+		{
+			// The separator moves up; its child becomes the right node's link
+			right._link = node._children.get(split);
+			right._keys.addAll(node._keys.subList(split + 1, numEntries));
+			right._recordIds.addAll(node._recordIds.subList(split + 1, numEntries));
+			right._children.addAll(node._children.subList(split + 1, numEntries));
+			
+			node._children.subList(split, numEntries).clear();
+		}
+		
+		node._keys.subList(split, numEntries).clear();
+		node._recordIds.subList(split, numEntries).clear();
+		
+		writeNode(page, node);
+		
+		ByteBuffer rightPage = _pool.pinNew(right._pageId);
+		writeNode(rightPage, right);
+		_pool.unpin(right._pageId, true);
+		
+		return right;
+	}
+	
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(_pageFile.getPageSize());
+		byte columnBytes[] = _column.getBytes(UTF8);
+		
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(PAGE_SIZE_OFFSET, _pageFile.getPageSize());
+		header.putInt(ROOT_OFFSET, _rootPageId);
+		header.putInt(ENTRY_COUNT_OFFSET, _entryCount);
+		header.putShort(COLUMN_OFFSET, (short)columnBytes.length);
+		
+		for (int i = 0; i < columnBytes.length; i++)
+		{
+			header.put(COLUMN_OFFSET + 2 + i, columnBytes[i]);
+		}
+		
+		_pageFile.writePage(HEADER_PAGE, header);
+	}
+	
+	private class RangeIterator implements KeyedIterator
+	{
+		int _leafPageId;
+		int _slot;
+		
+		byte    _toKey[];
+		boolean _toInclusive;
+		
+		byte _lastKey[];
+		
+		// Where to descend to find our place again if the tree changes
+		// underneath us: the range start, then just past the last entry
+		// returned
+		byte _seekKey[];
+		long _seekId;
+		
+		boolean _hasNext;
+		int     _nextId;
+		
+		int _expectedModCount;
+		
+		private RangeIterator(String fromKey, boolean fromInclusive,
+		                      String toKey, boolean toInclusive)
+		{
+			_toKey = (toKey != null) ? KeyBytes.encode(toKey) : null;
+			_toInclusive = toInclusive;
+			
+			_hasNext = false;
+			
+			if (fromKey == null)
+			{
+				_seekKey = new byte[0];
+				_seekId  = Long.MIN_VALUE;
+			}
+			else
+			{
+				_seekKey = KeyBytes.encode(fromKey);
+				_seekId  = fromInclusive ? Long.MIN_VALUE : Long.MAX_VALUE;
+			}
+			
+			synchronized (PagedBTree.this)
+			{
+				seek(_seekKey, _seekId);
+			}
+		}
+		
+		private void seek(byte key[], long recordId)
+		{
+			_expectedModCount = _modCount;
+			
+			if (_rootPageId == NodePage.NO_PAGE)
+			{
+				_leafPageId = NodePage.NO_PAGE;
+				return;
+			}
+			
+			_leafPageId = findLeaf(key, recordId, null);
+			
+			ByteBuffer page = _pool.pin(_leafPageId);
+			_slot = NodePage.lowerBound(page, 0, key, recordId);
+			_pool.unpin(_leafPageId, false);
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			if (_hasNext)
+			{
+				return true;
+			}
+			
+			synchronized (PagedBTree.this)
+			{
+				return advance();
+			}
+		}
+		
+		private boolean advance()
+		{
+			if (_expectedModCount != _modCount)
+			{
+				seek(_seekKey, _seekId);
+			}
+			
+			while (_leafPageId != NodePage.NO_PAGE)
+			{
+				ByteBuffer page = _pool.pin(_leafPageId);
+				
+				if (_slot >= NodePage.getNumEntries(page, 0))
+				{
+					// Move on to the next leaf in the chain
+					int next = NodePage.getLink(page, 0);
+					_pool.unpin(_leafPageId, false);
+					
+					_leafPageId = next;
+					_slot = 0;
+				}
+				else
+				{
+					if (_toKey != null)
+					{
+						int cmp = NodePage.compareKey(page, 0, _slot, _toKey);
+						
+						if ((cmp > 0) || (cmp == 0 && !_toInclusive))
+						{
+							_pool.unpin(_leafPageId, false);
+							_leafPageId = NodePage.NO_PAGE;
+							return false;
+						}
+					}
+					
+					_nextId = NodePage.getRecordId(page, 0, _slot);
+					
+					if (NodePage.compareKey(page, 0, _slot, _seekKey) != 0)
+					{
+						_seekKey = NodePage.getKey(page, 0, _slot);
+					}
+					_seekId = (long)_nextId + 1;
+					
+					_pool.unpin(_leafPageId, false);
+					
+					_slot++;
+					_hasNext = true;
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public Integer next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			_hasNext = false;
+			_lastKey = _seekKey;
+			
+			return _nextId;
+		}
+		
+		@Override
+		public String key()
+		{
+			if (_lastKey == null)
+			{
+				throw new java.lang.IllegalStateException();
+			}
+			
+			return keyString(_lastKey);
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new java.lang.UnsupportedOperationException();
+		}
+	}
+	
+	static byte[] encodeKey(String key, int pageSize)
+	{
+		byte keyBytes[] = KeyBytes.encode(key);
+		
+		// At least three entries must fit in a node for splits to work
+		if (NodePage.entrySize(false, keyBytes.length) * 3 > pageSize - NodePage.HEADER_SIZE)
+		{
+			throw new IllegalArgumentException
+			   ("PagedBTree::encodeKey(): key is too long for a " + pageSize + " byte page");
+		}
+		
+		return keyBytes;
+	}
+	
+	static String keyString(byte keyBytes[])
+	{
+		return KeyBytes.decode(KeyBytes.EMPTY, keyBytes);
+	}
+	
+	static int compareBytes(byte a[], byte b[])
+	{
+		int limit = Math.min(a.length, b.length);
+		
+		for (int i = 0; i < limit; i++)
+		{
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			
+			if (cmp != 0)
+			{
+				return cmp;
+			}
+		}
+		
+		return a.length - b.length;
+	}
+	
+	private static void closeQuietly(Closeable c)
+	{
+		if (c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException ex)
+			{
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package database;
+
+import java.io.*;
+import java.util.Arrays;
+
+// The record ids stored under one key of a BTree, in ascending order. A
+// sparse list is kept as a sorted int array and a dense one as a bitmap,
+// whichever takes less memory; add() and remove() switch between the two,
+// with some slack so that a list on the boundary does not flip back and
+// forth.
+//
+// A Postings never changes once other threads can see it. add() and remove()
+// return a new one instead, but an id above every other is appended in
+// place: the new list shares the old one's array and only writes past the
+// end of what the old one reads. Only the newest list may be added to, which
+// the tree guarantees by replacing lists under a latch.
+public final class Postings implements Serializable
+{
+	private static final long serialVersionUID = -6630155218430853718L;
+	
+	// Shorter lists are always kept as arrays
+	private static final int MIN_BITMAP_SIZE = 64;
+	
+	// Sorted ids, of which the first _size are in use; null for a bitmap
+	private transient int _ids[];
+	
+	// The words of a bitmap, of which the first _numWords - 1 are in use.
+	// The last word is kept in _lastWord, so that an append never changes a
+	// word that an older list reads. Bit b of word w stands for record id
+	// (_firstWord + w) * 64 + b.
+	private transient long _words[];
+	private transient int  _firstWord;
+	private transient int  _numWords;
+	private transient long _lastWord;
+	
+	private transient int _size;
+	
+	// Walks the ids in ascending order without boxing them
+	public static abstract class Cursor
+	{
+		public abstract boolean hasNext();
+		
+		public abstract int next();
+	}
+	
+	private Postings(int ids[], int size)
+	{
+		_ids  = ids;
+		_size = size;
+	}
+	
+	private Postings(long words[], int firstWord, int numWords, long lastWord, int size)
+	{
+		_words     = words;
+		_firstWord = firstWord;
+		_numWords  = numWords;
+		_lastWord  = lastWord;
+		_size      = size;
+	}
+	
+	static Postings of(int recordId)
+	{
+		return new Postings(new int[] { recordId, 0 }, 1);
+	}
+	
+	// Returns a list of the first count ids, which must be sorted and
+	// distinct
+	static Postings fromSorted(int ids[], int count)
+	{
+		return compact(ids, count);
+	}
+	
+	public int size()
+	{
+		return _size;
+	}
+	
+	public boolean isBitmap()
+	{
+		return _ids == null;
+	}
+	
+	public boolean contains(int recordId)
+	{
+		if (_ids != null)
+		{
+			return Arrays.binarySearch(_ids, 0, _size, recordId) >= 0;
+		}
+		
+		int word = (recordId >>> 6) - _firstWord;
+		
+		return (word >= 0) && (word < _numWords) && ((word(word) & (1L << recordId)) != 0);
+	}
+	
+	public int[] toArray()
+	{
+		int ids[] = new int[_size];
+		Cursor cursor = cursor();
+		
+		for (int i = 0; i < _size; i++)
+		{
+			ids[i] = cursor.next();
+		}
+		
+		return ids;
+	}
+	
+	public Cursor cursor()
+	{
+		return (_ids != null) ? new ArrayCursor() : new BitmapCursor();
+	}
+	
+	// Returns the list with recordId added, or this list if it already holds
+	// recordId
+	Postings add(int recordId)
+	{
+		if (contains(recordId))
+		{
+			return this;
+		}
+		
+		if (_ids != null)
+		{
+			if (recordId > _ids[_size-1])
+			{
+				int ids[] = _ids;
+				
+				if (_size == ids.length)
+				{
+					ids = Arrays.copyOf(ids, 2 * _size);
+				}
+				
+				ids[_size] = recordId;
+				
+				return ((_size + 1) < MIN_BITMAP_SIZE) ? new Postings(ids, _size + 1)
+				                                       : compact(ids, _size + 1);
+			}
+			
+			return compact(insert(_ids, _size, recordId), _size + 1);
+		}
+		
+		int word = (recordId >>> 6) - _firstWord;
+		
+		if (word == _numWords - 1)
+		{
+			return new Postings(_words, _firstWord, _numWords, _lastWord | (1L << recordId), _size + 1);
+		}
+		else if (word >= _numWords)
+		{
+			long words[] = _words;
+			
+			if (word >= words.length)
+			{
+				words = Arrays.copyOf(words, Math.max(word + 1, 2 * words.length));
+			}
+			
+			// Only words past the end of every older list are written
+			words[_numWords-1] = _lastWord;
+			Arrays.fill(words, _numWords, word, 0L);
+			
+			Postings postings = new Postings(words, _firstWord, word + 1, 1L << recordId, _size + 1);
+			
+			return postings.prefersArray() ? compact(postings.toArray(), postings._size) : postings;
+		}
+		
+		return compact(insert(toArray(), _size, recordId), _size + 1);
+	}
+	
+	// Returns the list without recordId, this list if it does not hold
+	// recordId, or null if recordId was the only id in it
+	Postings remove(int recordId)
+	{
+		if (!contains(recordId))
+		{
+			return this;
+		}
+		else if (_size == 1)
+		{
+			return null;
+		}
+		
+		int ids[] = new int[_size - 1];
+		int count = 0;
+		Cursor cursor = cursor();
+		
+		while (cursor.hasNext())
+		{
+			int id = cursor.next();
+			
+			if (id != recordId)
+			{
+				ids[count++] = id;
+			}
+		}
+		
+		if ((_ids != null) || prefersArray(count, ids[0], ids[count-1]))
+		{
+			return new Postings(ids, count);
+		}
+		
+		return bitmap(ids, count);
+	}
+	
+	// Returns a copy of the first size of ids with recordId in its place
+	private static int[] insert(int ids[], int size, int recordId)
+	{
+		int index = -(Arrays.binarySearch(ids, 0, size, recordId) + 1);
+		int newIds[] = new int[size + 1];
+		
+		System.arraycopy(ids, 0, newIds, 0, index);
+		newIds[index] = recordId;
+		System.arraycopy(ids, index, newIds, index + 1, size - index);
+		
+		return newIds;
+	}
+	
+	private long word(int word)
+	{
+		return (word == _numWords - 1) ? _lastWord : _words[word];
+	}
+	
+	// A bitmap costs 8 bytes for every 64 ids it spans and an array 4 bytes
+	// per id. Each form is kept until the other would take half the space.
+	private static boolean prefersBitmap(int count, int first, int last)
+	{
+		long spanWords = (last >>> 6) - (first >>> 6) + 1;
+		
+		return (count >= MIN_BITMAP_SIZE) && (2 * 8 * spanWords <= 4L * count);
+	}
+	
+	private static boolean prefersArray(int count, int first, int last)
+	{
+		long spanWords = (last >>> 6) - (first >>> 6) + 1;
+		
+		return (count < MIN_BITMAP_SIZE) || (2 * 4L * count <= 8 * spanWords);
+	}
+	
+	private boolean prefersArray()
+	{
+		return prefersArray(_size, (_firstWord << 6) + Long.numberOfTrailingZeros(word(0)),
+		                    ((_firstWord + _numWords - 1) << 6) + 63 - Long.numberOfLeadingZeros(_lastWord));
+	}
+	
+	// Returns the sorted ids in whichever form suits them; ids may be kept
+	private static Postings compact(int ids[], int count)
+	{
+		if ((count > 0) && prefersBitmap(count, ids[0], ids[count-1]))
+		{
+			return bitmap(ids, count);
+		}
+		
+		return new Postings(ids, count);
+	}
+	
+	private static Postings bitmap(int ids[], int count)
+	{
+		int firstWord = ids[0] >>> 6;
+		int numWords = (ids[count-1] >>> 6) - firstWord + 1;
+		
+		// Leave room to append as many ids again
+		long words[] = new long[Math.max(2 * numWords, 2)];
+		
+		for (int i = 0; i < count; i++)
+		{
+			words[(ids[i] >>> 6) - firstWord] |= 1L << ids[i];
+		}
+		
+		long lastWord = words[numWords-1];
+		words[numWords-1] = 0L;
+		
+		return new Postings(words, firstWord, numWords, lastWord, count);
+	}
+	
+	// Written as a count and the ids; read back in whichever form suits them
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		
+		out.writeInt(_size);
+		
+		Cursor cursor = cursor();
+		
+		while (cursor.hasNext())
+		{
+			out.writeInt(cursor.next());
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		int count = in.readInt();
+		int ids[] = new int[Math.max(count, 2)];
+		
+		for (int i = 0; i < count; i++)
+		{
+			ids[i] = in.readInt();
+		}
+		
+		Postings postings = compact(ids, count);
+		
+		_ids       = postings._ids;
+		_words     = postings._words;
+		_firstWord = postings._firstWord;
+		_numWords  = postings._numWords;
+		_lastWord  = postings._lastWord;
+		_size      = postings._size;
+	}
+	
+	private class ArrayCursor extends Cursor
+	{
+		int _next = 0;
+		
+		@Override
+		public boolean hasNext()
+		{
+			return _next < _size;
+		}
+		
+		@Override
+		public int next()
+		{
+			if (_next >= _size)
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			return _ids[_next++];
+		}
+	}
+	
+	private class BitmapCursor extends Cursor
+	{
+		int  _word = 0;
+		long _bits = word(0);
+		
+		@Override
+		public boolean hasNext()
+		{
+			while (_bits == 0)
+			{
+				if (++_word >= _numWords)
+				{
+					_word = _numWords;
+					return false;
+				}
+				
+				_bits = word(_word);
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public int next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			int bit = Long.numberOfTrailingZeros(_bits);
+			_bits &= _bits - 1;
+			
+			return ((_firstWord + _word) << 6) + bit;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package database;
+
+import java.util.*;
+
+// A condition on the records of a DataFile, for DataFile.query(): an
+// equality or range condition on one column, or an AND or OR of other
+// predicates. Values compare the way the column's type orders them, so a
+// range over an int column compares numbers; see ColumnType. A record with
+// no value for a column matches no condition on it.
+public final class Predicate
+{
+	enum Kind
+	{
+		RANGE, AND, OR
+	}
+	
+	Kind _kind;
+	
+	// A range condition; a null bound leaves that end of the range open
+	String  _column;
+	String  _from;
+	boolean _fromInclusive;
+	String  _to;
+	boolean _toInclusive;
+	
+	// The operands of an AND or OR
+	List<Predicate> _operands;
+	
+	private Predicate(Kind kind, String column, String from, boolean fromInclusive,
+	                  String to, boolean toInclusive, List<Predicate> operands)
+	{
+		_kind          = kind;
+		_column        = column;
+		_from          = from;
+		_fromInclusive = fromInclusive;
+		_to            = to;
+		_toInclusive   = toInclusive;
+		_operands      = operands;
+	}
+	
+	public static Predicate equal(String column, String value)
+	{
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Predicate::equal(): value is null");
+		}
+		
+		return range(column, value, true, value, true);
+	}
+	
+	public static Predicate range(String column, String from, boolean fromInclusive,
+	                              String to, boolean toInclusive)
+	{
+		if (column == null)
+		{
+			throw new IllegalArgumentException("Predicate::range(): column is null");
+		}
+		
+		return new Predicate(Kind.RANGE, column, from, fromInclusive, to, toInclusive, null);
+	}
+	
+	public static Predicate and(Predicate... operands)
+	{
+		return new Predicate(Kind.AND, null, null, false, null, false, operands(operands, "and"));
+	}
+	
+	public static Predicate or(Predicate... operands)
+	{
+		return new Predicate(Kind.OR, null, null, false, null, false, operands(operands, "or"));
+	}
+	
+	private static List<Predicate> operands(Predicate operands[], String method)
+	{
+		if (operands.length == 0)
+		{
+			throw new IllegalArgumentException("Predicate::" + method + "(): no operands");
+		}
+		
+		for (Predicate operand : operands)
+		{
+			if (operand == null)
+			{
+				throw new IllegalArgumentException("Predicate::" + method + "(): an operand is null");
+			}
+		}
+		
+		return Collections.unmodifiableList(new ArrayList<Predicate>(Arrays.asList(operands)));
+	}
+	
+	boolean isEquality()
+	{
+		return (_kind == Kind.RANGE) && (_from != null) && _from.equals(_to) && _fromInclusive && _toInclusive;
+	}
+	
+	// Returns whether a record of file matches the predicate
+	boolean matches(Map<String,String> record, DataFile file)
+	{
+		switch (_kind)
+		{
+			case AND:
+				for (Predicate operand : _operands)
+				{
+					if (!operand.matches(record, file))
+					{
+						return false;
+					}
+				}
+				return true;
+			
+			case OR:
+				for (Predicate operand : _operands)
+				{
+					if (operand.matches(record, file))
+					{
+						return true;
+					}
+				}
+				return false;
+			
+			default:
+				String value = record.get(_column);
+				
+				if (value == null)
+				{
+					return false;
+				}
+				
+				ColumnType type = file.getColumnType(_column);
+				String key = type.key(value);
+				
+				if (_from != null)
+				{
+					int cmp = key.compareTo(type.key(_from));
+					
+					if ((cmp < 0) || ((cmp == 0) && !_fromInclusive))
+					{
+						return false;
+					}
+				}
+				
+				if (_to != null)
+				{
+					int cmp = key.compareTo(type.key(_to));
+					
+					if ((cmp > 0) || ((cmp == 0) && !_toInclusive))
+					{
+						return false;
+					}
+				}
+				
+				return true;
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		if (_kind != Kind.RANGE)
+		{
+			StringBuilder s = new StringBuilder("(");
+			
+			for (Predicate operand : _operands)
+			{
+				if (s.length() > 1)
+				{
+					s.append((_kind == Kind.AND) ? " AND " : " OR ");
+				}
+				s.append(operand);
+			}
+			
+			return s.append(')').toString();
+		}
+		else if (isEquality())
+		{
+			return _column + " = " + _from;
+		}
+		
+		StringBuilder s = new StringBuilder();
+		
+		if (_from != null)
+		{
+			s.append(_from).append(_fromInclusive ? " <= " : " < ");
+		}
+		s.append(_column);
+		
+		if (_to != null)
+		{
+			s.append(_toInclusive ? " <= " : " < ").append(_to);
+		}
+		
+		return s.toString();
+	}
+}
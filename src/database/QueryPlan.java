@@ -0,0 +1,325 @@
+package database;
+
+import java.util.*;
+
+// How DataFile.query() finds the records that may match a predicate through
+// the file's indexes. Every record a plan returns is still tested against
+// the whole predicate, so a plan may return more than match: an AND can be
+// served by an index over just one of its conditions.
+//
+// Costs are counted in index entries read, and reading a record and testing
+// it costs RECORD_COST entries. The number of entries a condition reads is
+// counted in its index up to EXACT_COUNT, and past that estimated from the
+// index's histogram; see Index.getStatistics(). Conditions are taken to be
+// independent when ANDed. plan() returns null when a scan of the whole
+// file costs less, or is the only way to find every match.
+abstract class QueryPlan
+{
+	static final double RECORD_COST = 4;
+	
+	static final int EXACT_COUNT = 1024;
+	
+	// Estimated number of ids returned, and of index entries read to find
+	// them
+	double _estimate;
+	double _entries;
+	
+	QueryPlan(double estimate, double entries)
+	{
+		_estimate = estimate;
+		_entries  = entries;
+	}
+	
+	double cost()
+	{
+		return _entries + RECORD_COST * _estimate;
+	}
+	
+	// Returns the ids of the records that may match, sorted and distinct
+	abstract int[] recordIds();
+	
+	static QueryPlan plan(Predicate predicate, DataFile file, int numRecords)
+	{
+		numRecords = Math.max(numRecords, 1);
+		
+		QueryPlan plan = planIndexes(predicate, file, numRecords);
+		
+		return ((plan != null) && (plan.cost() < RECORD_COST * numRecords)) ? plan : null;
+	}
+	
+	private static QueryPlan planIndexes(Predicate predicate, DataFile file, int numRecords)
+	{
+		switch (predicate._kind)
+		{
+			case AND:
+				return planAnd(predicate._operands, file, numRecords);
+				
+			case OR:
+				return planOr(predicate._operands, file, numRecords);
+				
+			default:
+				Index index = file.indexFor(predicate._column);
+				
+				if (index == null)
+				{
+					return null;
+				}
+				
+				// The ids under a single key are at hand once looked up
+				Postings recordIds = index.keyRecordIds(predicate._from, predicate._fromInclusive,
+				                                        predicate._to, predicate._toInclusive);
+				double count = (recordIds != null) ? recordIds.size()
+				                                   : index.countRange(predicate._from, predicate._fromInclusive,
+				                                                      predicate._to, predicate._toInclusive, EXACT_COUNT);
+				
+				if (count >= EXACT_COUNT)
+				{
+					count = Math.max(count, index.estimateRange(predicate._from, predicate._fromInclusive,
+					                                            predicate._to, predicate._toInclusive));
+				}
+				
+				return new IndexScan(index, predicate, recordIds, count);
+		}
+	}
+	
+	// Starts from the operand with the fewest ids, and intersects the ids of
+	// the next fewest for as long as reading them costs less than testing
+	// the records they rule out
+	private static QueryPlan planAnd(List<Predicate> operands, DataFile file, int numRecords)
+	{
+		List<QueryPlan> plans = new ArrayList<QueryPlan>();
+		
+		for (Predicate operand : operands)
+		{
+			QueryPlan plan = planIndexes(operand, file, numRecords);
+			
+			if (plan != null)
+			{
+				plans.add(plan);
+			}
+		}
+		
+		if (plans.isEmpty())
+		{
+			return null;
+		}
+		
+		Collections.sort(plans, new Comparator<QueryPlan>()
+		{
+			public int compare(QueryPlan a, QueryPlan b)
+			{
+				return Double.compare(a._estimate, b._estimate);
+			}
+		});
+		
+		List<QueryPlan> intersected = new ArrayList<QueryPlan>();
+		intersected.add(plans.get(0));
+		
+		double estimate = plans.get(0)._estimate;
+		double entries = plans.get(0)._entries;
+		
+		for (int i = 1; i < plans.size(); i++)
+		{
+			QueryPlan plan = plans.get(i);
+			double newEstimate = estimate * plan._estimate / numRecords;
+			
+			if (plan._entries >= RECORD_COST * (estimate - newEstimate))
+			{
+				break;
+			}
+			
+			intersected.add(plan);
+			estimate = newEstimate;
+			entries += plan._entries;
+		}
+		
+		return (intersected.size() == 1) ? intersected.get(0) : new Intersection(intersected, estimate, entries);
+	}
+	
+	// An OR can only be served by indexes if every operand can
+	private static QueryPlan planOr(List<Predicate> operands, DataFile file, int numRecords)
+	{
+		List<QueryPlan> plans = new ArrayList<QueryPlan>();
+		double estimate = 0;
+		double entries = 0;
+		
+		for (Predicate operand : operands)
+		{
+			QueryPlan plan = planIndexes(operand, file, numRecords);
+			
+			if (plan == null)
+			{
+				return null;
+			}
+			
+			plans.add(plan);
+			estimate += plan._estimate;
+			entries += plan._entries;
+		}
+		
+		return (plans.size() == 1) ? plans.get(0) : new Union(plans, Math.min(estimate, numRecords), entries);
+	}
+	
+	// Reads the ids under one range of an index: a lookup when the range is
+	// a single value, and a range scan otherwise
+	private static class IndexScan extends QueryPlan
+	{
+		Index _index;
+		Predicate _condition;
+		Postings _recordIds;
+		
+		IndexScan(Index index, Predicate condition, Postings recordIds, double count)
+		{
+			super(count, count);
+			
+			_index = index;
+			_condition = condition;
+			_recordIds = recordIds;
+		}
+		
+		int[] recordIds()
+		{
+			if (_recordIds != null)
+			{
+				return _recordIds.toArray();
+			}
+			
+			Postings.Cursor cursor = _index.rangeCursor(_condition._from, _condition._fromInclusive,
+			                                            _condition._to, _condition._toInclusive);
+			int ids[] = new int[16];
+			int count = 0;
+			
+			while (cursor.hasNext())
+			{
+				if (count == ids.length)
+				{
+					ids = Arrays.copyOf(ids, 2 * count);
+				}
+				
+				ids[count++] = cursor.next();
+			}
+			
+			// A range scan reads ids in key order
+			Arrays.sort(ids, 0, count);
+			
+			int distinct = 0;
+			
+			for (int i = 0; i < count; i++)
+			{
+				if ((distinct == 0) || (ids[i] != ids[distinct-1]))
+				{
+					ids[distinct++] = ids[i];
+				}
+			}
+			
+			return Arrays.copyOf(ids, distinct);
+		}
+		
+		@Override
+		public String toString()
+		{
+			return (_condition.isEquality() ? "lookup " : "range scan ") +
+			       _index.getIndexName() + " (" + _condition + ")";
+		}
+	}
+	
+	private static class Intersection extends QueryPlan
+	{
+		List<QueryPlan> _plans;
+		
+		Intersection(List<QueryPlan> plans, double estimate, double entries)
+		{
+			super(estimate, entries);
+			
+			_plans = plans;
+		}
+		
+		int[] recordIds()
+		{
+			int ids[] = _plans.get(0).recordIds();
+			
+			for (int i = 1; (i < _plans.size()) && (ids.length > 0); i++)
+			{
+				int other[] = _plans.get(i).recordIds();
+				int count = 0;
+				int j = 0;
+				
+				for (int k = 0; (k < ids.length) && (j < other.length); k++)
+				{
+					while ((j < other.length) && (other[j] < ids[k]))
+					{
+						j++;
+					}
+					
+					if ((j < other.length) && (other[j] == ids[k]))
+					{
+						ids[count++] = ids[k];
+					}
+				}
+				
+				ids = Arrays.copyOf(ids, count);
+			}
+			
+			return ids;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "intersection " + _plans;
+		}
+	}
+	
+	private static class Union extends QueryPlan
+	{
+		List<QueryPlan> _plans;
+		
+		Union(List<QueryPlan> plans, double estimate, double entries)
+		{
+			super(estimate, entries);
+			
+			_plans = plans;
+		}
+		
+		int[] recordIds()
+		{
+			int ids[] = new int[0];
+			
+			for (QueryPlan plan : _plans)
+			{
+				int other[] = plan.recordIds();
+				int merged[] = new int[ids.length + other.length];
+				int count = 0;
+				int j = 0;
+				int k = 0;
+				
+				while ((j < ids.length) || (k < other.length))
+				{
+					if ((k == other.length) || ((j < ids.length) && (ids[j] < other[k])))
+					{
+						merged[count++] = ids[j++];
+					}
+					else if ((j == ids.length) || (other[k] < ids[j]))
+					{
+						merged[count++] = other[k++];
+					}
+					else
+					{
+						merged[count++] = ids[j++];
+						k++;
+					}
+				}
+				
+				ids = Arrays.copyOf(merged, count);
+			}
+			
+			return ids;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "union " + _plans;
+		}
+	}
+}
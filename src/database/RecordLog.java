@@ -0,0 +1,750 @@
+package database;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Append-only log of the changes made to a DataFile since its last
+// checkpoint. The file starts with a header listing the descriptor's fields
+// in sorted order:
+//
+//   int    MAGIC
+//   int    VERSION
+//   varint number of fields, then each field name as varint length + UTF-8
+//
+// and is followed by one entry per change, each framed as
+//
+//   int    length of the entry
+//   int    CRC32 of the entry
+//   byte[] the entry, one of:
+//
+//   byte   INSERT, int record id, then for each field in header order a
+//          varint of the value's UTF-8 length plus one (0 if the record has
+//          no value for the field) followed by the value
+//   byte   DELETE, int record id
+//   byte   INDEX_CREATE, index name, column, int order, int buffer pages
+//          (0 for an in-memory index), byte 1 if a snapshot index
+//   byte   INDEX_ATTACH, index name, byte 1 if mapped
+//   byte   INDEX_DROP, index name
+//
+// Entries are only ever appended, so a crash can at worst leave a partial
+// entry at the end of the file, or a run of zeros or garbage where the file
+// grew before its data reached the disk. Replay stops at the first entry
+// whose frame does not check out and the log is cut off there when it is
+// next opened.
+//
+// An entry is durable once commit() returns for the sequence number its
+// append returned. With a batch size of 1 every commit syncs the file
+// itself. Otherwise a committer thread syncs on behalf of all waiting
+// writers, after up to commitInterval milliseconds or once batchSize
+// entries are pending, so concurrent writers share one sync.
+class RecordLog
+{
+	static final int MAGIC = 0x524C4F47;
+	static final int VERSION = 4;
+	
+	private static final byte INSERT       = 1;
+	private static final byte DELETE       = 2;
+	private static final byte INDEX_CREATE = 3;
+	private static final byte INDEX_ATTACH = 4;
+	private static final byte INDEX_DROP   = 5;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private String _fileName;
+	private List<String> _fields;
+	
+	private FileOutputStream _fileStream;
+	private DataOutputStream _out;
+	private int _entryCount;
+	
+	// Each entry is built here, then framed and written to _out
+	private ByteArrayOutputStream _entryBytes;
+	private DataOutputStream _entry;
+	private CRC32 _crc;
+	
+	// Sequence numbers of the last entry appended and the last one known to
+	// be on disk. They keep increasing across truncate().
+	private long _appendedSeq;
+	private long _durableSeq;
+	
+	private int _commitInterval;
+	private int _batchSize;
+	private Thread _committer;
+	private IOException _commitFailure;
+	
+	private RecordLog(String fileName, List<String> fields)
+	{
+		_fileName = fileName;
+		_fields = fields;
+		_fileStream = null;
+		_out = null;
+		_entryCount = 0;
+		
+		_entryBytes = new ByteArrayOutputStream();
+		_entry = new DataOutputStream(_entryBytes);
+		_crc = new CRC32();
+		
+		_appendedSeq = 0;
+		_durableSeq = 0;
+		
+		_commitInterval = 0;
+		_batchSize = 1;
+		_committer = null;
+		_commitFailure = null;
+	}
+	
+	// Creates an empty log in fileName, replacing any existing one
+	static RecordLog create(String fileName, List<String> fields) throws IOException
+	{
+		RecordLog log = new RecordLog(fileName, fields);
+		log.truncate();
+		
+		return log;
+	}
+	
+	// Opens the log in fileName for appending, first replaying any entries
+	// it already holds into file. A missing log is created empty, and a null
+	// file only has the entries checked.
+	static RecordLog open(String fileName, List<String> fields, DataFile file) throws IOException
+	{
+		if (!new File(fileName).exists())
+		{
+			return create(fileName, fields);
+		}
+		else
+		{
+			RecordLog log = new RecordLog(fileName, fields);
+			
+			long validLength = log.replay(file);
+			
+			if (validLength < 0)
+			{
+				// A crash while the log was being emptied left only part of
+				// its header; the checkpoint before it holds every change
+				log.truncate();
+				return log;
+			}
+			
+			// Cut off a partial entry left by a crash so new entries follow
+			// the last complete one
+			RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+			
+			try
+			{
+				if (raf.length() > validLength)
+				{
+					raf.setLength(validLength);
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+			
+			log.openStream(true);
+			
+			return log;
+		}
+	}
+	
+	// Each append returns the entry's sequence number, to pass to commit()
+	synchronized long appendInsert(int recordId, Map<String,String> values) throws IOException
+	{
+		_entry.writeByte(INSERT);
+		_entry.writeInt(recordId);
+		
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			String value = values.get(_fields.get(i));
+			
+			if (value == null)
+			{
+				writeVarInt(_entry, 0);
+			}
+			else
+			{
+				byte bytes[] = value.getBytes(UTF8);
+				
+				writeVarInt(_entry, bytes.length + 1);
+				_entry.write(bytes);
+			}
+		}
+		
+		return appended();
+	}
+	
+	synchronized long appendDelete(int recordId) throws IOException
+	{
+		_entry.writeByte(DELETE);
+		_entry.writeInt(recordId);
+		
+		return appended();
+	}
+	
+	synchronized long appendCreateIndex(String indexName, String column, int order, int bufferPages,
+	                                    boolean snapshot) throws IOException
+	{
+		_entry.writeByte(INDEX_CREATE);
+		writeString(_entry, indexName);
+		writeString(_entry, column);
+		_entry.writeInt(order);
+		_entry.writeInt(bufferPages);
+		_entry.writeByte(snapshot ? 1 : 0);
+		
+		return appended();
+	}
+	
+	synchronized long appendAttachIndex(String indexName, boolean mapped) throws IOException
+	{
+		_entry.writeByte(INDEX_ATTACH);
+		writeString(_entry, indexName);
+		_entry.writeByte(mapped ? 1 : 0);
+		
+		return appended();
+	}
+	
+	synchronized long appendDropIndex(String indexName) throws IOException
+	{
+		_entry.writeByte(INDEX_DROP);
+		writeString(_entry, indexName);
+		
+		return appended();
+	}
+	
+	// Blocks until every entry up to seq is on disk
+	void commit(long seq) throws IOException
+	{
+		if (_committer == null)
+		{
+			synchronized (this)
+			{
+				if (_durableSeq < seq)
+				{
+					_out.flush();
+					_fileStream.getChannel().force(false);
+					_durableSeq = _appendedSeq;
+				}
+			}
+		}
+		else
+		{
+			synchronized (this)
+			{
+				notifyAll();
+				
+				while ((_durableSeq < seq) && (_commitFailure == null))
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("RecordLog::commit(): interrupted");
+					}
+				}
+				
+				if (_commitFailure != null)
+				{
+					throw _commitFailure;
+				}
+			}
+		}
+	}
+	
+	// Makes every entry appended so far durable
+	void commitAll() throws IOException
+	{
+		long seq;
+		
+		synchronized (this)
+		{
+			seq = _appendedSeq;
+		}
+		
+		commit(seq);
+	}
+	
+	// Changes how commits are grouped. A batch size of 1 stops the committer
+	// thread and has each commit sync the file itself.
+	synchronized void setGroupCommit(int commitInterval, int batchSize)
+	{
+		_commitInterval = commitInterval;
+		_batchSize = batchSize;
+		
+		if ((batchSize > 1) && (_committer == null) && (_out != null))
+		{
+			_committer = new Thread(new Committer(), "RecordLog committer: " + _fileName);
+			_committer.setDaemon(true);
+			_committer.start();
+		}
+		else if ((batchSize <= 1) && (_committer != null))
+		{
+			stopCommitter();
+		}
+	}
+	
+	// Number of entries in the log, including those replayed when it was
+	// opened
+	int getEntryCount()
+	{
+		return _entryCount;
+	}
+	
+	// Discards every entry, leaving only the header. Called once the changes
+	// have been saved in a checkpoint.
+	synchronized void truncate() throws IOException
+	{
+		// The committer may be syncing the old stream; wait for it to finish
+		commitAll();
+		
+		if (_out != null)
+		{
+			_out.close();
+		}
+		
+		openStream(false);
+		
+		_out.writeInt(MAGIC);
+		_out.writeInt(VERSION);
+		writeVarInt(_out, _fields.size());
+		
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			writeString(_out, _fields.get(i));
+		}
+		
+		_out.flush();
+		_fileStream.getChannel().force(false);
+		_entryCount = 0;
+	}
+	
+	void close() throws IOException
+	{
+		commitAll();
+		
+		synchronized (this)
+		{
+			stopCommitter();
+			
+			if (_out != null)
+			{
+				_out.close();
+				_out = null;
+			}
+		}
+	}
+	
+	private void openStream(boolean append) throws IOException
+	{
+		_fileStream = new FileOutputStream(_fileName, append);
+		_out = new DataOutputStream(new BufferedOutputStream(_fileStream));
+		
+		if ((_batchSize > 1) && (_committer == null))
+		{
+			setGroupCommit(_commitInterval, _batchSize);
+		}
+	}
+	
+	// Frames the entry built in _entry and writes it to the log
+	private long appended() throws IOException
+	{
+		byte bytes[] = _entryBytes.toByteArray();
+		_entryBytes.reset();
+		
+		_crc.reset();
+		_crc.update(bytes);
+		
+		_out.writeInt(bytes.length);
+		_out.writeInt((int)_crc.getValue());
+		_out.write(bytes);
+		
+		_entryCount++;
+		_appendedSeq++;
+		
+		// Wake the committer if a batch has filled up
+		if ((_committer != null) && (_appendedSeq - _durableSeq >= _batchSize))
+		{
+			notifyAll();
+		}
+		
+		return _appendedSeq;
+	}
+	
+	// Called with the log locked
+	private void stopCommitter()
+	{
+		Thread committer = _committer;
+		
+		if (committer != null)
+		{
+			_committer = null;
+			notifyAll();
+			
+			// The committer exits the next time it holds the lock; wait()
+			// hands the lock over to it
+			while (committer.isAlive())
+			{
+				try
+				{
+					wait(10);
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+	
+	private class Committer implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				long target;
+				FileOutputStream stream;
+				
+				synchronized (RecordLog.this)
+				{
+					// Wait for something to commit
+					while ((_committer == Thread.currentThread()) && (_durableSeq == _appendedSeq))
+					{
+						waitQuietly(0);
+					}
+					
+					if (_committer != Thread.currentThread())
+					{
+						return;
+					}
+					
+					// Give more writers a chance to join the batch
+					long deadline = System.currentTimeMillis() + _commitInterval;
+					long now = System.currentTimeMillis();
+					
+					while ((_committer == Thread.currentThread()) &&
+					       (_appendedSeq - _durableSeq < _batchSize) && (now < deadline))
+					{
+						waitQuietly(deadline - now);
+						now = System.currentTimeMillis();
+					}
+					
+					target = _appendedSeq;
+					stream = _fileStream;
+					
+					try
+					{
+						_out.flush();
+					}
+					catch (IOException ex)
+					{
+						_commitFailure = ex;
+						RecordLog.this.notifyAll();
+						return;
+					}
+				}
+				
+				// Sync without holding the lock so writers can keep appending
+				IOException failure = null;
+				
+				try
+				{
+					stream.getChannel().force(false);
+				}
+				catch (IOException ex)
+				{
+					failure = ex;
+				}
+				
+				synchronized (RecordLog.this)
+				{
+					if (failure != null)
+					{
+						_commitFailure = failure;
+					}
+					else
+					{
+						_durableSeq = Math.max(_durableSeq, target);
+					}
+					
+					RecordLog.this.notifyAll();
+					
+					if (failure != null)
+					{
+						return;
+					}
+				}
+			}
+		}
+		
+		private void waitQuietly(long millis)
+		{
+			try
+			{
+				RecordLog.this.wait(millis);
+			}
+			catch (InterruptedException ex)
+			{
+				// Only stopCommitter() ends the thread
+			}
+		}
+	}
+	
+	// Applies every complete entry to file and returns the length of the
+	// log up to the end of the last one, or -1 if the header is incomplete.
+	// The first entry that is cut short, fails its CRC or cannot be decoded
+	// ends the log.
+	private long replay(DataFile file) throws IOException
+	{
+		long fileLength = new File(_fileName).length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_fileName)));
+		
+		try
+		{
+			long validLength = 0;
+			
+			try
+			{
+				validLength = readHeader(in);
+			}
+			catch (EOFException ex)
+			{
+				return -1;
+			}
+			
+			while (true)
+			{
+				byte bytes[];
+				
+				try
+				{
+					int length = in.readInt();
+					int crc = in.readInt();
+					
+					if ((length <= 0) || (length > fileLength - validLength - 8))
+					{
+						break;
+					}
+					
+					bytes = new byte[length];
+					in.readFully(bytes);
+					
+					_crc.reset();
+					_crc.update(bytes);
+					
+					if ((int)_crc.getValue() != crc)
+					{
+						break;
+					}
+				}
+				catch (EOFException ex)
+				{
+					// A partial entry at the end of the log
+					break;
+				}
+				
+				if (!replayEntry(new DataInputStream(new ByteArrayInputStream(bytes)), file))
+				{
+					break;
+				}
+				
+				validLength += 8 + bytes.length;
+				_entryCount++;
+			}
+			
+			return validLength;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	// Decodes one entry and applies it to file, unless file is null.
+	// Returns false, without touching file, if the entry cannot be decoded.
+	private boolean replayEntry(DataInputStream in, DataFile file) throws IOException
+	{
+		try
+		{
+			int type = in.readByte();
+			
+			if (type == INSERT)
+			{
+				int recordId = in.readInt();
+				
+				Map<String,String> values = new HashMap<String,String>();
+				
+				for (int i = 0; i < _fields.size(); i++)
+				{
+					int length = readVarInt(in);
+					
+					if (length > 0)
+					{
+						byte bytes[] = new byte[length - 1];
+						in.readFully(bytes);
+						
+						values.put(_fields.get(i), new String(bytes, UTF8));
+					}
+				}
+				
+				if (file != null)
+				{
+					file.replayInsert(recordId, values);
+				}
+			}
+			else if (type == DELETE)
+			{
+				int recordId = in.readInt();
+				
+				if (file != null)
+				{
+					file.replayDelete(recordId);
+				}
+			}
+			else if (type == INDEX_CREATE)
+			{
+				String indexName = readString(in);
+				String column = readString(in);
+				int order = in.readInt();
+				int bufferPages = in.readInt();
+				boolean snapshot = in.readByte() != 0;
+				
+				if (file != null)
+				{
+					file.replayCreateIndex(indexName, column, order, bufferPages, snapshot);
+				}
+			}
+			else if (type == INDEX_ATTACH)
+			{
+				String indexName = readString(in);
+				boolean mapped = in.readByte() != 0;
+				
+				if (file != null)
+				{
+					file.replayAttachIndex(indexName, mapped);
+				}
+			}
+			else if (type == INDEX_DROP)
+			{
+				String indexName = readString(in);
+				
+				if (file != null)
+				{
+					file.replayDropIndex(indexName);
+				}
+			}
+			else
+			{
+				return false;
+			}
+			
+			return true;
+		}
+		catch (EOFException ex)
+		{
+			return false;
+		}
+	}
+	
+	// Checks that the log was written for the same fields and returns the
+	// length of the header
+	private long readHeader(DataInputStream in) throws IOException
+	{
+		if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+		{
+			throw new IOException("RecordLog::readHeader(): " + _fileName + " is not a record log");
+		}
+		
+		long length = 8;
+		
+		int numFields = readVarInt(in);
+		length += varIntSize(numFields);
+		
+		List<String> fields = new ArrayList<String>();
+		
+		for (int i = 0; i < numFields; i++)
+		{
+			String field = readString(in);
+			length += stringSize(field);
+			
+			fields.add(field);
+		}
+		
+		if (!fields.equals(_fields))
+		{
+			throw new IOException("RecordLog::readHeader(): " + _fileName + " was written for other fields");
+		}
+		
+		return length;
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte bytes[] = value.getBytes(UTF8);
+		
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte bytes[] = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		
+		return new String(bytes, UTF8);
+	}
+	
+	private static int stringSize(String value)
+	{
+		int length = value.getBytes(UTF8).length;
+		
+		return varIntSize(length) + length;
+	}
+	
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		out.writeByte(value);
+	}
+	
+	private static int readVarInt(DataInputStream in) throws IOException
+	{
+		int value = 0;
+		int shift = 0;
+		int b;
+		
+		do
+		{
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		
+		return value;
+	}
+	
+	private static int varIntSize(int value)
+	{
+		int size = 1;
+		
+		while ((value & ~0x7F) != 0)
+		{
+			value >>>= 7;
+			size++;
+		}
+		
+		return size;
+	}
+}
@@ -0,0 +1,373 @@
+package database;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The records of a DataFile, addressed directly by record id. Ids are handed
+// out densely from zero, so the store is a directory of fixed-size chunks
+// and finding a record takes two array reads, with no boxing and no tree
+// to walk. Each chunk also keeps a bit per id that is set while the record
+// is delete-pending, so that scans for live records and rebuildFile() can
+// skip deleted records a word at a time.
+//
+// Records may be put, removed and marked by several threads at once. Slots
+// and bits are updated atomically, and the directory is only replaced by a
+// larger copy, under the store's lock.
+class RecordStore implements Serializable, Iterable<DataRecord>
+{
+	private static final long serialVersionUID = 2954372861049131523L;
+	
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK  = CHUNK_SIZE - 1;
+	
+	private static class Chunk
+	{
+		final AtomicReferenceArray<DataRecord> _records;
+		final AtomicLongArray _deleted;
+		
+		Chunk()
+		{
+			_records = new AtomicReferenceArray<DataRecord>(CHUNK_SIZE);
+			_deleted = new AtomicLongArray(CHUNK_SIZE / 64);
+		}
+	}
+	
+	private transient volatile Chunk _chunks[];
+	private transient AtomicInteger _size;
+	private transient AtomicInteger _numDeleted;
+	
+	RecordStore()
+	{
+		_chunks = new Chunk[0];
+		_size = new AtomicInteger();
+		_numDeleted = new AtomicInteger();
+	}
+	
+	// Returns the record with the given id, or null if there is none
+	DataRecord get(int recordId)
+	{
+		Chunk chunk = chunk(recordId);
+		
+		return (chunk != null) ? chunk._records.get(recordId & CHUNK_MASK) : null;
+	}
+	
+	boolean contains(int recordId)
+	{
+		return get(recordId) != null;
+	}
+	
+	// Stores record under its id, replacing any record already there
+	void put(DataRecord record)
+	{
+		int recordId = record.getRecordId();
+		
+		if (recordId < 0)
+		{
+			throw new IllegalArgumentException
+			   ("RecordStore::put(): record id " + recordId + " is negative");
+		}
+		
+		Chunk chunk = chunk(recordId);
+		
+		if (chunk == null)
+		{
+			chunk = grow(recordId);
+		}
+		
+		if (chunk._records.getAndSet(recordId & CHUNK_MASK, record) == null)
+		{
+			_size.incrementAndGet();
+		}
+		
+		setDeleted(chunk, recordId, record.isDeletePending());
+	}
+	
+	// Removes the record with the given id and returns it
+	DataRecord remove(int recordId)
+	{
+		Chunk chunk = chunk(recordId);
+		
+		if (chunk == null)
+		{
+			return null;
+		}
+		
+		DataRecord record = chunk._records.getAndSet(recordId & CHUNK_MASK, null);
+		
+		if (record != null)
+		{
+			_size.decrementAndGet();
+			setDeleted(chunk, recordId, false);
+		}
+		
+		return record;
+	}
+	
+	// Marks the record as delete-pending, both in the record and here
+	void markDeleted(DataRecord record)
+	{
+		record.setDeletePending(true);
+		
+		Chunk chunk = chunk(record.getRecordId());
+		
+		if (chunk != null)
+		{
+			setDeleted(chunk, record.getRecordId(), true);
+		}
+	}
+	
+	boolean isDeleted(int recordId)
+	{
+		Chunk chunk = chunk(recordId);
+		
+		return (chunk != null) &&
+		       ((chunk._deleted.get((recordId & CHUNK_MASK) >>> 6) & (1L << recordId)) != 0);
+	}
+	
+	// Number of records held, including those that are delete-pending
+	int size()
+	{
+		return _size.get();
+	}
+	
+	// Number of delete-pending records held
+	int deletedCount()
+	{
+		return _numDeleted.get();
+	}
+	
+	synchronized void clear()
+	{
+		_chunks = new Chunk[0];
+		_size.set(0);
+		_numDeleted.set(0);
+	}
+	
+	// Removes every delete-pending record
+	void removeDeleted()
+	{
+		removeDeleted(0, Integer.MAX_VALUE);
+	}
+	
+	// Removes the delete-pending records with ids from fromId up to toId,
+	// whole chunks at a time: fromId is rounded down to a chunk and toId up
+	void removeDeleted(int fromId, int toId)
+	{
+		Chunk chunks[] = _chunks;
+		int end = (int)Math.min(chunks.length, ((long)toId + CHUNK_MASK) >>> CHUNK_SHIFT);
+		
+		for (int c = fromId >>> CHUNK_SHIFT; c < end; c++)
+		{
+			if (chunks[c] == null)
+			{
+				continue;
+			}
+			
+			for (int w = 0; w < CHUNK_SIZE / 64; w++)
+			{
+				long bits = chunks[c]._deleted.get(w);
+				
+				while (bits != 0)
+				{
+					int bit = Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					
+					remove((c << CHUNK_SHIFT) + (w << 6) + bit);
+				}
+			}
+		}
+	}
+	
+	// Iterates over every record in id order, delete-pending ones included.
+	// Records put or removed during the iteration may or may not be seen.
+	public Iterator<DataRecord> iterator()
+	{
+		return new RecordIterator(false);
+	}
+	
+	// Iterates over the records that are not delete-pending, in id order
+	Iterator<DataRecord> liveIterator()
+	{
+		return new RecordIterator(true);
+	}
+	
+	private Chunk chunk(int recordId)
+	{
+		Chunk chunks[] = _chunks;
+		int index = recordId >>> CHUNK_SHIFT;
+		
+		return (index < chunks.length) ? chunks[index] : null;
+	}
+	
+	// Makes room for recordId and returns its chunk
+	private synchronized Chunk grow(int recordId)
+	{
+		int index = recordId >>> CHUNK_SHIFT;
+		Chunk chunks[] = _chunks;
+		
+		if (index >= chunks.length)
+		{
+			chunks = Arrays.copyOf(chunks, Math.max(index + 1, chunks.length * 2));
+		}
+		
+		if (chunks[index] == null)
+		{
+			if (chunks == _chunks)
+			{
+				chunks = chunks.clone();
+			}
+			
+			chunks[index] = new Chunk();
+		}
+		
+		_chunks = chunks;
+		
+		return chunks[index];
+	}
+	
+	private void setDeleted(Chunk chunk, int recordId, boolean deleted)
+	{
+		int word = (recordId & CHUNK_MASK) >>> 6;
+		long mask = 1L << recordId;
+		
+		while (true)
+		{
+			long bits = chunk._deleted.get(word);
+			long newBits = deleted ? (bits | mask) : (bits & ~mask);
+			
+			if (bits == newBits)
+			{
+				return;
+			}
+			else if (chunk._deleted.compareAndSet(word, bits, newBits))
+			{
+				_numDeleted.addAndGet(deleted ? 1 : -1);
+				return;
+			}
+		}
+	}
+	
+	// Only the records are written; the chunks are rebuilt around them
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		
+		List<DataRecord> records = new ArrayList<DataRecord>(size());
+		Iterator<DataRecord> recordIter = iterator();
+		
+		while (recordIter.hasNext())
+		{
+			records.add(recordIter.next());
+		}
+		
+		out.writeInt(records.size());
+		
+		for (int i = 0; i < records.size(); i++)
+		{
+			out.writeObject(records.get(i));
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		
+		_chunks = new Chunk[0];
+		_size = new AtomicInteger();
+		_numDeleted = new AtomicInteger();
+		
+		int count = in.readInt();
+		
+		for (int i = 0; i < count; i++)
+		{
+			put((DataRecord)in.readObject());
+		}
+	}
+	
+	private class RecordIterator implements Iterator<DataRecord>
+	{
+		boolean _liveOnly;
+		
+		int _nextId;
+		DataRecord _next;
+		DataRecord _lastReturned;
+		
+		private RecordIterator(boolean liveOnly)
+		{
+			_liveOnly = liveOnly;
+			_nextId = 0;
+			_next = null;
+			_lastReturned = null;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while (_next == null)
+			{
+				Chunk chunks[] = _chunks;
+				int index = _nextId >>> CHUNK_SHIFT;
+				
+				if (index >= chunks.length)
+				{
+					return false;
+				}
+				
+				Chunk chunk = chunks[index];
+				
+				if (chunk == null)
+				{
+					_nextId = (index + 1) << CHUNK_SHIFT;
+				}
+				else if (_liveOnly && (chunk._deleted.get((_nextId & CHUNK_MASK) >>> 6) == -1L))
+				{
+					// A whole word of deleted records
+					_nextId = (_nextId | 63) + 1;
+				}
+				else
+				{
+					DataRecord record = chunk._records.get(_nextId & CHUNK_MASK);
+					
+					if ((record != null) && !(_liveOnly && record.isDeletePending()))
+					{
+						_next = record;
+					}
+					
+					_nextId++;
+				}
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public DataRecord next()
+		{
+			if (!hasNext())
+			{
+				throw new java.util.NoSuchElementException();
+			}
+			
+			_lastReturned = _next;
+			_next = null;
+			
+			return _lastReturned;
+		}
+		
+		@Override
+		public void remove()
+		{
+			if (_lastReturned == null)
+			{
+				throw new java.lang.IllegalStateException();
+			}
+			
+			RecordStore.this.remove(_lastReturned.getRecordId());
+			_lastReturned = null;
+		}
+	}
+}
@@ -0,0 +1,855 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import database.ColumnType;
+import database.DataFile;
+import database.DataManager;
+import database.Index;
+import database.IndexStatistics;
+import database.Predicate;
+
+public class BTreeTests {
+
+	static Map<String, Integer> desc ;
+	
+	static{
+		desc = new HashMap<String, Integer>();
+		desc.put("Title", 20);
+		desc.put("Year", 6);
+	}
+	
+	private DataFile populate(String fileName, int count){
+		DataFile f = DataManager.createFile(fileName, desc);
+		for(int i = 0; i < count; i++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + i);
+			r.put("Year", String.valueOf(1900 + (i % 100)));
+			f.insertRecord(r);
+		}
+		return f;
+	}
+	
+	private List<String> drain(DataFile f, Iterator<Integer> it, String column){
+		List<String> values = new ArrayList<String>();
+		while(it.hasNext()){
+			values.add(f.getRecord(it.next()).get(column));
+		}
+		return values;
+	}
+	
+	@Test
+	public void rangeInclusiveBounds(){
+		DataFile f = populate("bt1", 1000);
+		Index i = f.createIndex("bt1i", "Year");
+		
+		List<String> years = drain(f, i.rangeIterator("1990", true, "1999", true), "Year");
+		
+		assertEquals(100, years.size());
+		assertEquals("1990", years.get(0));
+		assertEquals("1999", years.get(years.size() - 1));
+		for(int j = 1; j < years.size(); j++){
+			assertFalse(years.get(j - 1).compareTo(years.get(j)) > 0);
+		}
+	}
+	
+	@Test
+	public void rangeExclusiveAndOpenBounds(){
+		DataFile f = populate("bt2", 1000);
+		Index i = f.createIndex("bt2i", "Year");
+		
+		assertEquals(80, drain(f, i.rangeIterator("1990", false, "1999", false), "Year").size());
+		assertEquals(100, drain(f, i.rangeIterator(null, false, "1909", true), "Year").size());
+		assertEquals(50, drain(f, i.rangeIterator("1995", true, null, false), "Year").size());
+		assertEquals(1000, drain(f, i.rangeIterator(null, false, null, false), "Year").size());
+		assertEquals(0, drain(f, i.rangeIterator("2000", true, null, false), "Year").size());
+	}
+	
+	@Test
+	public void rangeSkipsDeletedRecords(){
+		DataFile f = populate("bt3", 200);
+		Index i = f.createIndex("bt3i", "Year");
+		
+		Iterator<Integer> it = i.rangeIterator("1950", true, "1950", true);
+		it.next();
+		it.remove();
+		
+		assertEquals(1, drain(f, i.rangeIterator("1950", true, "1950", true), "Year").size());
+	}
+	
+	@Test
+	public void configurableOrder(){
+		DataFile f = populate("bt4", 5000);
+		Index i = f.createIndex("bt4i", "Title", 64);
+		
+		assertEquals(64, i.getOrder());
+		for(int j = 0; j < 5000; j += 7){
+			assertEquals(1, drain(f, i.iterator("t" + j), "Title").size());
+		}
+		assertEquals(5000, drain(f, i.rangeIterator(null, false, null, false), "Title").size());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void oddOrderRejected(){
+		DataFile f = populate("bt5", 10);
+		f.createIndex("bt5i", "Title", 7);
+	}
+	
+	@Test
+	public void bulkLoadThenInsert(){
+		DataFile f = populate("bt6", 3000);
+		Index i = f.createIndex("bt6i", "Year", 16, 1.0);
+		
+		for(int j = 0; j < 500; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "u" + j);
+			r.put("Year", String.valueOf(1850 + (j % 200)));
+			f.insertRecord(r);
+		}
+		
+		assertEquals(32, drain(f, i.iterator("1950"), "Year").size());
+		assertEquals(3, drain(f, i.iterator("1850"), "Year").size());
+		assertEquals(3500, drain(f, i.rangeIterator(null, false, null, false), "Year").size());
+		
+		List<String> years = drain(f, i.rangeIterator("1900", true, "1999", true), "Year");
+		assertEquals(3250, years.size());
+		for(int j = 1; j < years.size(); j++){
+			assertFalse(years.get(j - 1).compareTo(years.get(j)) > 0);
+		}
+	}
+	
+	@Test
+	public void rangeRemoveDeletesKeys(){
+		DataFile f = populate("bt7", 2000);
+		Index years = f.createIndex("bt7y", "Year");
+		Index titles = f.createIndex("bt7t", "Title");
+		
+		Iterator<Integer> it = years.rangeIterator("1920", true, "1979", true);
+		int removed = 0;
+		while(it.hasNext()){
+			it.next();
+			it.remove();
+			removed++;
+		}
+		
+		assertEquals(1200, removed);
+		assertEquals(0, drain(f, years.rangeIterator("1920", true, "1979", true), "Year").size());
+		assertEquals(800, drain(f, years.rangeIterator(null, false, null, false), "Year").size());
+		assertEquals(800, drain(f, titles.rangeIterator(null, false, null, false), "Title").size());
+		assertEquals(0, drain(f, titles.iterator("t20"), "Title").size());
+	}
+	
+	@Test
+	public void fileRemoveEmptiesIndexes(){
+		DataFile f = populate("bt8", 1500);
+		Index years = f.createIndex("bt8y", "Year", 4);
+		
+		Iterator<Integer> it = f.iterator();
+		while(it.hasNext()){
+			it.next();
+			it.remove();
+		}
+		
+		assertEquals(0, drain(f, years.rangeIterator(null, false, null, false), "Year").size());
+		assertEquals(0, drain(f, years.iterator("1950"), "Year").size());
+		assertEquals("", years.viewIndex().split("\n\n", 2)[1]);
+	}
+	
+	@Test
+	public void concurrentInsertsKeepIndexOrdered() throws InterruptedException{
+		final DataFile f = DataManager.createFile("bt9", desc);
+		final Index years = f.createIndex("bt9y", "Year", 4);
+		
+		Thread threads[] = new Thread[4];
+		for(int t = 0; t < threads.length; t++){
+			final int base = t * 1000;
+			threads[t] = new Thread(new Runnable(){
+				public void run(){
+					for(int j = base; j < base + 1000; j++){
+						Map<String, String> r = new HashMap<String, String>();
+						r.put("Title", "t" + j);
+						r.put("Year", String.valueOf(1900 + (j % 100)));
+						f.insertRecord(r);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for(int t = 0; t < threads.length; t++){
+			threads[t].join();
+		}
+		
+		List<String> all = drain(f, years.rangeIterator(null, false, null, false), "Year");
+		assertEquals(4000, all.size());
+		for(int j = 1; j < all.size(); j++){
+			assertFalse(all.get(j - 1).compareTo(all.get(j)) > 0);
+		}
+		assertEquals(40, drain(f, years.iterator("1950"), "Year").size());
+	}
+	
+	@Test
+	public void snapshotIndexScansAlongsideWrites(){
+		DataFile f = populate("bt10", 1000);
+		Index years = f.createSnapshotIndex("bt10y", "Year", 4);
+		
+		Iterator<Integer> it = years.rangeIterator("1950", true, "1959", true);
+		Iterator<Integer> all = f.snapshotIterator();
+		int seen = 0;
+		while(it.hasNext()){
+			Map<String, String> record = f.getRecord(it.next());
+			assertEquals("195", record.get("Year").substring(0, 3));
+			seen++;
+			
+			// Neither scan notices the new records, or fails because of them
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "n" + seen);
+			r.put("Year", "1955");
+			f.insertRecord(r);
+			all.next();
+		}
+		assertEquals(100, seen);
+		
+		// Records deleted ahead of a snapshot scan are skipped
+		Iterator<Integer> rest = years.iterator("1955");
+		Iterator<Integer> doomed = years.iterator("1955");
+		for(int j = 0; j < 10; j++){
+			doomed.next();
+			doomed.remove();
+		}
+		assertEquals(100, drain(f, rest, "Year").size());
+		int remaining = 0;
+		while(all.hasNext()){
+			all.next();
+			remaining++;
+		}
+		// 900 left, less the nine deleted records past id 99
+		assertEquals(891, remaining);
+	}
+	
+	@Test
+	public void duplicateHeavyKeysKeepRecordOrder(){
+		DataFile f = DataManager.createFile("bt11", desc);
+		Index years = f.createIndex("bt11y", "Year");
+		for(int j = 0; j < 5000; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", (j % 3 == 0) ? "2000" : "2001");
+			f.insertRecord(r);
+		}
+		
+		Iterator<Integer> it = years.iterator("2001");
+		int previous = -1;
+		int kept = 0;
+		while(it.hasNext()){
+			int id = it.next();
+			assertTrue(id > previous);
+			previous = id;
+			if(id % 2 == 0){
+				it.remove();
+			}else{
+				kept++;
+			}
+		}
+		assertEquals(1667, kept);
+		assertEquals(kept, drain(f, years.iterator("2001"), "Year").size());
+		assertEquals(1667, drain(f, years.iterator("2000"), "Year").size());
+		assertEquals(3334, drain(f, years.rangeIterator(null, false, null, false), "Year").size());
+	}
+	
+	@Test
+	public void sharedPrefixAndWideCharKeysKeepStringOrder(){
+		DataFile f = DataManager.createFile("bt12", desc);
+		Index titles = f.createIndex("bt12t", "Title");
+		String tails[] = { "a", "z", "\u00e9", "\u4e2d", "\uffff", "\ud83d\ude00" };
+		List<String> expected = new ArrayList<String>();
+		for(int j = 0; j < 600; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			String title = "the movie " + (j % 100) + tails[j % tails.length];
+			r.put("Title", title);
+			r.put("Year", "2000");
+			f.insertRecord(r);
+			expected.add(title);
+		}
+		Collections.sort(expected);
+		
+		assertEquals(expected, drain(f, titles.rangeIterator(null, false, null, false), "Title"));
+		for(String title : expected){
+			Iterator<Integer> it = titles.iterator(title);
+			assertEquals(title, f.getRecord(it.next()).get("Title"));
+		}
+		
+		// Bounds that fall between the stored keys
+		List<String> range = drain(f, titles.rangeIterator("the movie 5", false, "the movie 5\u4e2d", true), "Title");
+		List<String> inRange = new ArrayList<String>();
+		for(String title : expected){
+			if(title.compareTo("the movie 5") > 0 && title.compareTo("the movie 5\u4e2d") <= 0){
+				inRange.add(title);
+			}
+		}
+		assertFalse(inRange.isEmpty());
+		assertEquals(inRange, range);
+	}
+	
+	@Test
+	public void compositeIndexServesLeadingColumns(){
+		Map<String, Integer> movies = new HashMap<String, Integer>(desc);
+		movies.put("Director", 20);
+		DataFile f = DataManager.createFile("bt13", movies);
+		for(int j = 0; j < 2000; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", String.valueOf(1950 + (j % 7)));
+			if(j % 50 != 0){
+				// Directors whose names are prefixes of one another
+				r.put("Director", (j % 3 == 0) ? "Lee" : (j % 3 == 1) ? "Lee\u0000" : "Leeds");
+			}
+			f.insertRecord(r);
+		}
+		Index byYear = f.createIndex("bt13y", "Year");
+		Index both = f.createCompositeIndex("bt13dy", Arrays.asList("Director", "Year"));
+		assertTrue(both.isComposite());
+		assertFalse(byYear.isComposite());
+		assertEquals(Arrays.asList("Director", "Year"), both.getColumnNames());
+		
+		int expected = 0;
+		for(int j = 0; j < 2000; j++){
+			if(j % 50 != 0 && j % 3 == 0 && j % 7 == 3){
+				expected++;
+			}
+		}
+		List<String> titles = drain(f, both.iterator("Lee", "1953"), "Title");
+		assertEquals(expected, titles.size());
+		for(String title : titles){
+			int j = Integer.parseInt(title.substring(1));
+			assertEquals(0, j % 3);
+			assertEquals(3, j % 7);
+		}
+		
+		// One leading column, and ranges, cover only that column's values
+		List<String> years = drain(f, both.iterator("Lee"), "Year");
+		assertEquals(drain(f, both.iterator("Lee"), "Director").size(), years.size());
+		for(int j = 1; j < years.size(); j++){
+			assertFalse(years.get(j - 1).compareTo(years.get(j)) > 0);
+		}
+		int lee = drain(f, both.iterator("Lee"), "Title").size();
+		int leeNul = drain(f, both.iterator("Lee\u0000"), "Title").size();
+		int leeds = drain(f, both.iterator("Leeds"), "Title").size();
+		assertEquals(1960, lee + leeNul + leeds);
+		assertEquals(lee, drain(f, both.rangeIterator("Lee", true, "Lee", true), "Title").size());
+		assertEquals(leeNul + leeds, drain(f, both.rangeIterator("Lee", false, null, false), "Title").size());
+		assertEquals(lee + leeNul, drain(f, both.rangeIterator(null, false, "Leeds", false), "Title").size());
+		assertEquals(0, drain(f, both.rangeIterator("Lee", false, "Lee", true), "Title").size());
+		
+		// Deletes through one index reach the other
+		Iterator<Integer> it = byYear.iterator("1953");
+		while(it.hasNext()){
+			it.next();
+			it.remove();
+		}
+		assertEquals(0, drain(f, both.iterator("Lee", "1953"), "Title").size());
+		assertEquals(lee - expected, drain(f, both.iterator("Lee"), "Title").size());
+		
+		try{
+			both.iterator("Lee", "1953", "x");
+			fail("too many values accepted");
+		}catch(IllegalArgumentException e){
+		}
+	}
+	
+	@Test
+	public void coveringIndexAnswersFromItsKeys(){
+		Map<String, Integer> movies = new HashMap<String, Integer>(desc);
+		movies.put("Director", 20);
+		DataFile f = DataManager.createFile("bt14", movies);
+		for(int j = 0; j < 1000; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Director", "d" + (j % 10));
+			r.put("Year", String.valueOf(1950 + (j % 7)));
+			if(j % 100 != 3){
+				r.put("Title", "t\u0000" + j);
+			}
+			f.insertRecord(r);
+		}
+		Index titles = f.createIndex("bt14dt", "Director", Arrays.asList("Title", "Year"));
+		assertTrue(titles.isCovering());
+		assertFalse(titles.isComposite());
+		assertEquals(Arrays.asList("Director"), titles.getColumnNames());
+		assertEquals(Arrays.asList("Title", "Year"), titles.getIncludedColumnNames());
+		
+		List<Map<String, String>> expected = new ArrayList<Map<String, String>>();
+		Iterator<Integer> ids = titles.iterator("d3");
+		while(ids.hasNext()){
+			expected.add(f.getRecord(ids.next()));
+		}
+		assertEquals(100, expected.size());
+		
+		List<Map<String, String>> projected = new ArrayList<Map<String, String>>();
+		Iterator<Map<String, String>> it = titles.projectionIterator("d3");
+		while(it.hasNext()){
+			projected.add(it.next());
+		}
+		assertEquals(expected, projected);
+		
+		// A copy of the index answers the same query over a file without records
+		titles.dumpIndex();
+		DataFile empty = DataManager.createFile("bt14e", movies);
+		try{
+			Index mapped = empty.mapIndex("bt14dt");
+			assertTrue(mapped.isCovering());
+			assertFalse(mapped.iterator("d3").hasNext());
+			it = mapped.projectionIterator("d3");
+			for(Map<String, String> values : expected){
+				assertEquals(values, it.next());
+			}
+			assertFalse(it.hasNext());
+		}finally{
+			empty.dropFile();
+		}
+	}
+	
+	@Test
+	public void typedColumnsSortByValue(){
+		Map<String, Integer> movies = new HashMap<String, Integer>(desc);
+		movies.put("Budget", 12);
+		movies.put("Released", 10);
+		Map<String, ColumnType> types = new HashMap<String, ColumnType>();
+		types.put("Year", ColumnType.INT);
+		types.put("Budget", ColumnType.DECIMAL);
+		types.put("Released", ColumnType.DATE);
+		DataFile f = DataManager.createFile("bt15", movies, types);
+		for(int j = 0; j < 500; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", String.valueOf(j * 7 % 250 - 100));
+			r.put("Budget", (j % 2 == 0 ? "-" : "") + (j % 25) + "." + (j % 4) + "0");
+			r.put("Released", (1990 + j % 20) + "-0" + (1 + j % 9) + "-1" + (j % 10));
+			f.insertRecord(r);
+		}
+		
+		Map<String, String> bad = new HashMap<String, String>();
+		bad.put("Year", "1990s");
+		try{
+			f.insertRecord(bad);
+			fail("invalid int accepted");
+		}catch(IllegalArgumentException e){
+		}
+		bad.put("Year", "1990");
+		bad.put("Released", "1990-02-30");
+		try{
+			f.insertRecord(bad);
+			fail("invalid date accepted");
+		}catch(IllegalArgumentException e){
+		}
+		
+		Index years = f.createIndex("bt15y", "Year");
+		List<String> found = drain(f, years.rangeIterator("-20", true, "100", false), "Year");
+		assertEquals(240, found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(Integer.parseInt(found.get(j - 1)) <= Integer.parseInt(found.get(j)));
+		}
+		assertEquals("-20", found.get(0));
+		assertEquals("99", found.get(found.size() - 1));
+		
+		Index budgets = f.createIndex("bt15b", "Budget");
+		found = drain(f, budgets.rangeIterator("-2.5", false, "1.1", true), "Budget");
+		int expected = 0;
+		for(int j = 0; j < 500; j++){
+			BigDecimal budget = new BigDecimal(f.getRecord(j).get("Budget"));
+			if(budget.compareTo(new BigDecimal("-2.5")) > 0 && budget.compareTo(new BigDecimal("1.1")) <= 0){
+				expected++;
+			}
+		}
+		assertEquals(expected, found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(new BigDecimal(found.get(j - 1)).compareTo(new BigDecimal(found.get(j))) <= 0);
+		}
+		assertEquals("-2.20", found.get(0));
+		assertEquals("1.10", found.get(found.size() - 1));
+		// Equal values are one key however they are written
+		List<String> titles = drain(f, budgets.iterator("-2.2"), "Title");
+		assertFalse(titles.isEmpty());
+		assertEquals(titles, drain(f, budgets.iterator("-2.200"), "Title"));
+		
+		Index released = f.createIndex("bt15r", "Released", Arrays.asList("Year"));
+		Iterator<Map<String, String>> it = released.projectionIterator("1999-09-19");
+		assertTrue(it.hasNext());
+		while(it.hasNext()){
+			Map<String, String> values = it.next();
+			assertEquals("1999-09-19", values.get("Released"));
+			assertEquals(2, values.size());
+			assertTrue(ColumnType.INT.isValid(values.get("Year")));
+		}
+		assertEquals(25, drain(f, released.rangeIterator("1990-01-01", true, "1991-01-01", false), "Title").size());
+	}
+	
+	@Test
+	public void insertAllMergesSortedBatches(){
+		DataFile f = populate("bt16", 200);
+		Index years = f.createIndex("bt16y", "Year");
+		Index titles = f.createIndex("bt16t", "Title");
+		
+		// Large next to the trees, so they are merged with it and rebuilt
+		List<Map<String, String>> batch = new ArrayList<Map<String, String>>();
+		for(int j = 0; j < 400; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "u" + j);
+			r.put("Year", String.valueOf(1950 + (j % 100)));
+			batch.add(r);
+		}
+		assertEquals(200, f.insertAll(batch));
+		assertEquals("u399", f.getRecord(599).get("Title"));
+		assertEquals(6, drain(f, years.iterator("1960"), "Title").size());
+		assertEquals(4, drain(f, years.iterator("2010"), "Title").size());
+		assertEquals(2, drain(f, years.iterator("1910"), "Title").size());
+		List<String> found = drain(f, years.rangeIterator("1900", true, "2049", true), "Year");
+		assertEquals(600, found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(found.get(j - 1).compareTo(found.get(j)) <= 0);
+		}
+		
+		// Small, so inserted one key at a time
+		batch.clear();
+		for(int j = 0; j < 10; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "v" + j);
+			r.put("Year", "1975");
+			batch.add(r);
+		}
+		assertEquals(600, f.insertAll(batch));
+		List<Integer> ids = new ArrayList<Integer>();
+		Iterator<Integer> it = years.iterator("1975");
+		while(it.hasNext()){
+			ids.add(it.next());
+		}
+		assertEquals(16, ids.size());
+		assertEquals(Integer.valueOf(609), ids.get(ids.size() - 1));
+		assertEquals(Arrays.asList("v0"), drain(f, titles.iterator("v0"), "Title"));
+		
+		// One bad record keeps the whole batch out
+		Map<String, String> bad = new HashMap<String, String>();
+		bad.put("Rating", "PG");
+		batch.add(bad);
+		try{
+			f.insertAll(batch);
+			fail("invalid batch accepted");
+		}catch(IllegalArgumentException e){
+		}
+		assertEquals(null, f.getRecord(610));
+		assertEquals(610, drain(f, titles.rangeIterator(null, false, null, false), "Title").size());
+		assertEquals(-1, f.insertAll(new ArrayList<Map<String, String>>()));
+	}
+	
+	@Test
+	public void insertAllTakesAStream(){
+		DataFile f = populate("bt16s", 100);
+		Index years = f.createIndex("bt16sy", "Year");
+		
+		assertEquals(100, f.insertAll(IntStream.range(0, 300).mapToObj(j -> {
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "s" + j);
+			r.put("Year", String.valueOf(1900 + (j % 100)));
+			return r;
+		})));
+		assertEquals("s299", f.getRecord(399).get("Title"));
+		assertEquals(4, drain(f, years.iterator("1950"), "Title").size());
+		assertEquals(-1, f.insertAll(IntStream.range(0, 0).mapToObj(j -> new HashMap<String, String>())));
+	}
+	
+	@Test
+	public void createIndexesBuildsTogether(){
+		// Enough records for the builds to sort in several partitions
+		DataFile f = populate("bt17", 20000);
+		for(int j = 0; j < 300; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "x" + j);
+			f.insertRecord(r);
+		}
+		Map<String, String> columns = new HashMap<String, String>();
+		columns.put("bt17y", "Year");
+		columns.put("bt17t", "Title");
+		List<Index> indexes = f.createIndexes(columns);
+		assertEquals(2, indexes.size());
+		try{
+			f.createIndexes(Collections.singletonMap("bt17y2", "Year"));
+			fail("second index over Year accepted");
+		}catch(IllegalArgumentException e){
+		}
+		
+		Index years = indexes.get(0).getColumnName().equals("Year") ? indexes.get(0) : indexes.get(1);
+		Index titles = (years == indexes.get(0)) ? indexes.get(1) : indexes.get(0);
+		// Records that share a key stay in id order
+		List<Integer> ids = new ArrayList<Integer>();
+		Iterator<Integer> it = years.iterator("1942");
+		while(it.hasNext()){
+			ids.add(it.next());
+		}
+		assertEquals(200, ids.size());
+		for(int j = 0; j < ids.size(); j++){
+			assertEquals(Integer.valueOf(42 + 100 * j), ids.get(j));
+		}
+		assertEquals(20000, drain(f, years.rangeIterator(null, false, null, false), "Year").size());
+		List<String> found = drain(f, titles.rangeIterator(null, false, null, false), "Title");
+		assertEquals(20300, found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(found.get(j - 1).compareTo(found.get(j)) < 0);
+		}
+		
+		// Only the last record of each hundred is kept
+		Iterator<Integer> records = f.iterator();
+		while(records.hasNext()){
+			if(records.next() % 100 != 99){
+				records.remove();
+			}
+		}
+		f.rebuildFile();
+		for(Index index : f.rebuildIndexes()){
+			List<String> values = drain(f, index.rangeIterator(null, false, null, false), "Year");
+			// Three of the records without a year are left too
+			assertEquals(index.getColumnName().equals("Year") ? 200 : 203, values.size());
+			assertEquals(200, Collections.frequency(values, "1999"));
+		}
+	}
+	
+	@Test
+	public void onlineBuildsKeepUpWithWrites() throws Exception{
+		DataFile f = populate("bt18", 20000);
+		Index years = f.createIndex("bt18y", "Year");
+		Future<Index> rebuilt = f.rebuildIndexOnline("bt18y");
+		Future<Index> titles = f.createIndexOnline("bt18t", "Title");
+		
+		// Writes go on, and the old index serves lookups, while the indexes
+		// are built
+		Iterator<Integer> records = f.snapshotIterator();
+		for(int j = 0; j < 5000; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "n" + j);
+			r.put("Year", "2000");
+			f.insertRecord(r);
+			if(records.next() % 2 == 0){
+				records.remove();
+			}
+			if(!rebuilt.isDone()){
+				assertTrue(years.iterator("1950").hasNext());
+			}
+		}
+		assertTrue(rebuilt.get() != years);
+		
+		// The new indexes agree with a scan of the file
+		int live = 0;
+		int live2000 = 0;
+		records = f.iterator();
+		while(records.hasNext()){
+			live++;
+			if(f.getRecord(records.next()).get("Year").equals("2000")){
+				live2000++;
+			}
+		}
+		assertEquals(live, drain(f, rebuilt.get().rangeIterator(null, false, null, false), "Year").size());
+		assertEquals(live, drain(f, titles.get().rangeIterator(null, false, null, false), "Title").size());
+		assertEquals(live2000, drain(f, rebuilt.get().iterator("2000"), "Title").size());
+		
+		try{
+			f.createIndex("bt18t2", "Title");
+			fail("second index over Title accepted");
+		}catch(IllegalArgumentException e){
+		}
+	}
+	
+	@Test
+	public void streamsSplitForParallelScans(){
+		DataFile f = populate("bt19", 20000);
+		Index years = f.createIndex("bt19y", "Year");
+		Index titles = f.createIndex("bt19t", "Title");
+		Iterator<Integer> records = f.iterator();
+		while(records.hasNext()){
+			if(records.next() % 10 == 0){
+				records.remove();
+			}
+		}
+		
+		assertTrue(f.stream().spliterator().trySplit() != null);
+		assertTrue(titles.stream(null, false, null, false).spliterator().trySplit() != null);
+		
+		assertEquals(18000, f.stream().parallel().count());
+		assertEquals(f.stream().map(r -> r.get("Title")).collect(Collectors.toList()),
+		             f.stream().parallel().map(r -> r.get("Title")).collect(Collectors.toList()));
+		
+		// Every part of a split range comes back, in key order
+		List<String> found = titles.stream(null, false, null, false).parallel()
+		                           .map(r -> r.get("Title")).collect(Collectors.toList());
+		assertEquals(18000, found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(found.get(j - 1).compareTo(found.get(j)) < 0);
+		}
+		
+		// Every record from 1950 was deleted
+		assertEquals(1800, years.stream("1950", true, "1959", true).parallel().count());
+		assertEquals(1600, years.stream("1950", false, "1959", false).parallel().count());
+		assertEquals(200, years.stream("1951", true, "1951", true).parallel()
+		                       .filter(r -> r.get("Year").equals("1951")).count());
+	}
+	
+	private List<Integer> ids(Iterator<Integer> it){
+		List<Integer> ids = new ArrayList<Integer>();
+		while(it.hasNext()){
+			ids.add(it.next());
+		}
+		return ids;
+	}
+	
+	@Test
+	public void queriesTakeTheCheapestPath(){
+		DataFile f = populate("bt20", 20000);
+		f.createIndex("bt20y", "Year");
+		f.createIndex("bt20t", "Title");
+		Iterator<Integer> records = f.iterator();
+		while(records.hasNext()){
+			if(records.next() % 7 == 0){
+				records.remove();
+			}
+		}
+		
+		Predicate year = Predicate.equal("Year", "1950");
+		assertEquals("lookup bt20y (Year = 1950)", f.explain(year));
+		List<Integer> found = ids(f.query(year));
+		assertEquals(IntStream.range(0, 20000).filter(j -> j % 7 != 0 && j % 100 == 50).count(), found.size());
+		for(int j = 1; j < found.size(); j++){
+			assertTrue(found.get(j - 1) < found.get(j));
+			assertEquals("1950", f.getRecord(found.get(j)).get("Year"));
+		}
+		
+		Predicate decade = Predicate.range("Year", "1950", true, "1960", false);
+		assertEquals("range scan bt20y (1950 <= Year < 1960)", f.explain(decade));
+		assertEquals(IntStream.range(0, 20000).filter(j -> j % 7 != 0 && j % 100 / 10 == 5).count(),
+		             ids(f.query(decade)).size());
+		
+		// One title is cheaper to test than to intersect with 200 ids
+		Predicate title = Predicate.and(year, Predicate.equal("Title", "t150"));
+		assertEquals("lookup bt20t (Title = t150)", f.explain(title));
+		assertEquals(Arrays.asList(150), ids(f.query(title)));
+		
+		// Titles from t19 on and a decade of years narrow each other down
+		Predicate both = Predicate.and(decade, Predicate.range("Title", "t19", true, "t2", false));
+		assertTrue(f.explain(both).startsWith("intersection"));
+		List<Integer> expected = new ArrayList<Integer>();
+		for(int j = 0; j < 20000; j++){
+			if(j % 7 != 0 && j % 100 >= 50 && j % 100 < 60 && String.valueOf(j).startsWith("19")){
+				expected.add(j);
+			}
+		}
+		assertEquals(expected, ids(f.query(both)));
+		
+		Predicate either = Predicate.or(year, Predicate.equal("Title", "t51"));
+		assertTrue(f.explain(either).startsWith("union"));
+		assertEquals(found.size() + 1, ids(f.query(either)).size());
+		
+		// Most of the file is cheaper to scan than to look up
+		Predicate most = Predicate.range("Year", "1910", true, null, false);
+		assertEquals("full scan", f.explain(most));
+		assertEquals(ids(f.query(Predicate.or(Predicate.range("Year", null, false, "1910", false), most))).size(),
+		             ids(f.iterator()).size());
+		
+		try{
+			f.query(Predicate.equal("Rating", "5"));
+			fail("query on a column not in the descriptor accepted");
+		}catch(IllegalArgumentException e){
+		}
+	}
+	
+	@Test
+	public void statisticsDescribeTheKeys(){
+		DataFile f = populate("bt21", 20000);
+		Index years = f.createIndex("bt21y", "Year");
+		Index titles = f.createIndex("bt21t", "Title");
+		
+		IndexStatistics stats = years.getStatistics();
+		assertEquals(100, stats.getKeyCount());
+		assertEquals(20000, stats.getRecordCount());
+		assertEquals(200, stats.getMaxRecordsPerKey());
+		assertEquals(200.0, stats.getAverageRecordsPerKey(), 0.0);
+		// Every year has between 128 and 255 records
+		int distribution[] = stats.getRecordsPerKeyDistribution();
+		assertEquals(8, distribution.length);
+		assertEquals(100, distribution[7]);
+		assertTrue(stats.getHeight() >= 2);
+		assertTrue(stats.getFill() > 0 && stats.getFill() <= 1);
+		assertTrue(stats.getLeafCount() < stats.getNodeCount());
+		
+		// Equal depth buckets, each ending on a year
+		int records = 0;
+		for(int j = 0; j < stats.getBucketCount(); j++){
+			records += stats.getBucketRecordCount(j);
+			assertTrue(stats.getBucketUpperBound(j).startsWith("19"));
+		}
+		assertEquals(20000, records);
+		assertEquals("1999", stats.getBucketUpperBound(stats.getBucketCount() - 1));
+		assertEquals(2000, years.estimateRange("1950", true, "1959", true), 400);
+		assertEquals(1800, years.estimateRange("1950", false, "1959", true), 400);
+		assertEquals(20000, years.estimateRange(null, false, null, false), 0);
+		assertEquals(0, years.estimateRange("2050", true, null, false), 0);
+		
+		stats = titles.getStatistics();
+		assertEquals(20000, stats.getKeyCount());
+		assertEquals(1, stats.getMaxRecordsPerKey());
+		assertEquals(20000 / 64, stats.getBucketKeyCount(0), 1);
+		assertEquals(11111, titles.estimateRange("t1", true, "t2", false), 500);
+		
+		// Statistics are taken again once a tenth of the records change
+		for(int j = 0; j < 1000; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "n" + j);
+			r.put("Year", "2000");
+			f.insertRecord(r);
+		}
+		assertEquals(20000, years.getStatistics().getRecordCount());
+		for(int j = 1000; j < 2001; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "n" + j);
+			r.put("Year", "2000");
+			f.insertRecord(r);
+		}
+		stats = years.getStatistics();
+		assertEquals(22001, stats.getRecordCount());
+		assertEquals(101, stats.getKeyCount());
+		assertEquals(2001, stats.getMaxRecordsPerKey());
+		assertEquals(2001, years.estimateRange("2000", true, "2000", true), 0);
+		
+		f.dropIndex("bt21t");
+		Index paged = f.createPagedIndex("bt21p", "Title", 16);
+		try{
+			int removed = 0;
+			Iterator<Integer> it = paged.rangeIterator("t1000", true, "t1999", true);
+			while(it.hasNext()){
+				it.next();
+				it.remove();
+				removed++;
+			}
+			stats = paged.computeStatistics(10);
+			assertEquals(22001 - removed, stats.getKeyCount());
+			assertEquals(22001 - removed, stats.getRecordCount());
+			assertEquals(removed, stats.getDeleteCount());
+			assertEquals(10, stats.getBucketCount());
+			assertTrue(stats.getHeight() >= 2);
+			assertTrue(stats.getFill() > 0 && stats.getFill() <= 1);
+		}finally{
+			f.dropIndex("bt21p");
+		}
+	}
+}
@@ -0,0 +1,692 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import database.DataFile;
+import database.DataManager;
+import database.Index;
+import database.Predicate;
+
+public class PersistenceTests {
+
+	static Map<String, Integer> desc ;
+	
+	static{
+		desc = new HashMap<String, Integer>();
+		desc.put("Title", 20);
+		desc.put("Year", 6);
+	}
+	
+	private DataFile populate(String fileName, int count){
+		DataFile f = new DataFile(fileName, desc);
+		for(int i = 0; i < count; i++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + i);
+			r.put("Year", String.valueOf(1900 + (i % 100)));
+			f.insertRecord(r);
+		}
+		return f;
+	}
+	
+	private List<Integer> drain(Iterator<Integer> it){
+		List<Integer> ids = new ArrayList<Integer>();
+		while(it.hasNext()){
+			ids.add(it.next());
+		}
+		return ids;
+	}
+	
+	// Reads a file written by dumpFile() without handing it to DataManager,
+	// so that nothing writes it back
+	private DataFile readFile(String fileName) throws IOException, ClassNotFoundException{
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName));
+		try{
+			return (DataFile)in.readObject();
+		}finally{
+			in.close();
+		}
+	}
+	
+	@Test
+	public void pagedIndexLookupsAndRemove(){
+		DataFile f = populate("pt1", 5000);
+		Index i = f.createPagedIndex("pt1i", "Year", 16);
+		
+		try{
+			assertTrue(i.isPaged());
+			assertEquals(50, drain(i.iterator("1950")).size());
+			assertEquals(500, drain(i.rangeIterator("1990", true, "1999", true)).size());
+			
+			Iterator<Integer> it = i.rangeIterator("1990", true, "1994", true);
+			while(it.hasNext()){
+				it.next();
+				it.remove();
+			}
+			assertEquals(0, drain(i.iterator("1992")).size());
+			assertEquals(4750, drain(i.rangeIterator(null, false, null, false)).size());
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1992");
+			int id = f.insertRecord(r);
+			assertEquals(id, (int)drain(i.iterator("1992")).get(0));
+		}finally{
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void dumpedIndexRestoresPaged(){
+		DataFile f = populate("pt2", 3000);
+		Index i = f.createIndex("pt2i", "Title");
+		i.dumpIndex();
+		
+		DataFile g = populate("pt2b", 3000);
+		Index restored = g.restoreIndex("pt2i");
+		
+		try{
+			assertTrue(restored.isPaged());
+			assertEquals("Title", restored.getColumnName());
+			for(int j = 0; j < 3000; j += 13){
+				assertEquals(drain(i.iterator("t" + j)), drain(restored.iterator("t" + j)));
+			}
+			assertEquals(drain(i.rangeIterator("t1", true, "t2", false)),
+			             drain(restored.rangeIterator("t1", true, "t2", false)));
+		}finally{
+			g.dropFile();
+			new File("pt2i").delete();
+		}
+	}
+	
+	@Test
+	public void restoresIndexDumpedByObjectOutputStream() throws IOException{
+		// legacy.index was dumped by the first version of Index, over 500
+		// records whose Year cycles through 1900 to 1949
+		DataFile f = new DataFile("pt12", desc);
+		for(int i = 0; i < 500; i++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + i);
+			r.put("Year", String.valueOf(1900 + (i % 50)));
+			f.insertRecord(r);
+		}
+		Files.copy(Paths.get("legacy.index"), Paths.get("pt12i"));
+		
+		try{
+			Index i = f.restoreIndex("pt12i");
+			assertEquals("Year", i.getColumnName());
+			assertFalse(i.isPaged());
+			List<Integer> ids = drain(i.iterator("1913"));
+			assertEquals(10, ids.size());
+			for(int id : ids){
+				assertEquals("1913", f.getRecord(id).get("Year"));
+			}
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1913");
+			f.insertRecord(r);
+			assertEquals(11, drain(i.iterator("1913")).size());
+		}finally{
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void mappedIndexReadsThenPromotesOnWrite(){
+		DataFile f = populate("pt3", 4000);
+		Index i = f.createIndex("pt3i", "Year");
+		i.dumpIndex();
+		
+		DataFile g = populate("pt3b", 4000);
+		Index mapped = g.mapIndex("pt3i");
+		
+		try{
+			assertTrue(mapped.isMapped());
+			assertEquals(drain(i.iterator("1942")), drain(mapped.iterator("1942")));
+			assertEquals(drain(i.rangeIterator("1950", false, "1960", true)),
+			             drain(mapped.rangeIterator("1950", false, "1960", true)));
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1942");
+			int id = g.insertRecord(r);
+			
+			assertTrue(!mapped.isMapped());
+			List<Integer> ids = drain(mapped.iterator("1942"));
+			assertEquals(41, ids.size());
+			assertEquals(id, (int)ids.get(40));
+		}finally{
+			g.dropFile();
+			new File("pt3i").delete();
+		}
+	}
+	
+	@Test
+	public void pagedIndexesOrderKeysAsStringsDo(){
+		// In sorted order. As UTF-8 the surrogate pair would sort last.
+		String titles[] = {"a", "\uD000", "\uD83D\uDE00", "\uE000", "\uFFFF"};
+		DataFile f = new DataFile("pt13", desc);
+		DataFile g = new DataFile("pt13b", desc);
+		for(String title : titles){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", title);
+			r.put("Year", "1950");
+			f.insertRecord(r);
+			g.insertRecord(r);
+		}
+		Index memory = f.createIndex("pt13i", "Title");
+		Index paged = g.createPagedIndex("pt13p", "Title", 16);
+		paged.dumpIndex();
+		DataFile h = populate("pt13c", 5);
+		Index mapped = h.mapIndex("pt13p");
+		
+		try{
+			List<Integer> all = Arrays.asList(0, 1, 2, 3, 4);
+			assertEquals(all, drain(memory.rangeIterator(null, false, null, false)));
+			assertEquals(all, drain(paged.rangeIterator(null, false, null, false)));
+			assertEquals(all, drain(mapped.rangeIterator(null, false, null, false)));
+			
+			List<Integer> upper = Arrays.asList(1, 2, 3, 4);
+			assertEquals(upper, drain(memory.rangeIterator("\uD000", true, "\uFFFF", true)));
+			assertEquals(upper, drain(paged.rangeIterator("\uD000", true, "\uFFFF", true)));
+			assertEquals(upper, drain(mapped.rangeIterator("\uD000", true, "\uFFFF", true)));
+			
+			Predicate p = Predicate.range("Title", "\uD800", true, "\uFFFF", true);
+			assertEquals(Arrays.asList(2, 3, 4), drain(f.query(p)));
+			assertEquals(Arrays.asList(2, 3, 4), drain(g.query(p)));
+		}finally{
+			f.dropFile();
+			h.dropFile();
+			g.dropFile();
+		}
+	}
+	
+	@Test
+	public void loggedFileReplaysChangesSinceCheckpoint() throws IOException{
+		DataFile f = new DataFile("pt4", desc, true);
+		for(int j = 0; j < 100; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", String.valueOf(1900 + (j % 10)));
+			f.insertRecord(r);
+		}
+		Index i = f.createIndex("pt4i", "Year");
+		f.dumpFile();
+		long checkpointSize = new File("pt4").length();
+		
+		try{
+			for(int j = 100; j < 200; j++){
+				Map<String, String> r = new HashMap<String, String>();
+				r.put("Title", "t" + j);
+				r.put("Year", String.valueOf(1900 + (j % 10)));
+				f.insertRecord(r);
+			}
+			Iterator<Integer> it = i.iterator("1905");
+			while(it.hasNext()){
+				it.next();
+				it.remove();
+			}
+			f.dumpFile();
+			assertEquals(checkpointSize, new File("pt4").length());
+			
+			// A torn insert at the end of the log is ignored
+			FileOutputStream out = new FileOutputStream("pt4.log", true);
+			out.write(new byte[] { 1, 0, 0 });
+			out.close();
+			
+			DataFile g = DataManager.restoreFile("pt4");
+			for(int j = 0; j < 200; j++){
+				assertEquals(f.getRecord(j), g.getRecord(j));
+			}
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			assertEquals(200, g.insertRecord(r));
+		}finally{
+			DataManager.exit();
+			new File("pt4").delete();
+			new File("pt4.log").delete();
+		}
+	}
+	
+	@Test
+	public void logEndsAtFirstDamagedEntry() throws IOException{
+		DataFile f = new DataFile("pt15", desc, true);
+		f.checkpoint();
+		for(int j = 0; j < 50; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", String.valueOf(1900 + (j % 10)));
+			f.insertRecord(r);
+		}
+		long logLength = new File("pt15.log").length();
+		
+		try{
+			// Zeros where the file grew before its data was written
+			FileOutputStream out = new FileOutputStream("pt15.log", true);
+			out.write(new byte[64]);
+			out.close();
+			
+			DataFile g = DataManager.restoreFile("pt15");
+			assertEquals(logLength, new File("pt15.log").length());
+			assertEquals("t0", g.getRecord(0).get("Title"));
+			
+			// An entry with a bad CRC ends the log too
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t50");
+			assertEquals(50, g.insertRecord(r));
+			DataManager.exit();
+			RandomAccessFile raf = new RandomAccessFile("pt15.log", "rw");
+			raf.seek(raf.length() - 1);
+			raf.write('x');
+			raf.close();
+			
+			DataFile h = DataManager.restoreFile("pt15");
+			assertEquals(f.getRecord(49), h.getRecord(49));
+			assertNull(h.getRecord(50));
+			assertEquals(logLength, new File("pt15.log").length());
+		}finally{
+			DataManager.exit();
+			new File("pt15").delete();
+			new File("pt15.log").delete();
+		}
+	}
+	
+	@Test
+	public void checkpointReplacesFileWhole() throws IOException, ClassNotFoundException{
+		DataFile f = new DataFile("pt14", desc, true);
+		for(int j = 0; j < 100; j++){
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t" + j);
+			r.put("Year", String.valueOf(1900 + (j % 10)));
+			f.insertRecord(r);
+		}
+		f.checkpoint();
+		
+		try{
+			assertFalse(new File("pt14.tmp").exists());
+			
+			// A checkpoint torn before its rename leaves the last one whole
+			FileOutputStream out = new FileOutputStream("pt14.tmp");
+			out.write(new byte[] { 1, 2, 3 });
+			out.close();
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "t100");
+			f.insertRecord(r);
+			
+			DataFile g = DataManager.restoreFile("pt14");
+			assertEquals(f.getRecord(99), g.getRecord(99));
+			assertEquals("t100", g.getRecord(100).get("Title"));
+			
+			g.checkpoint();
+			assertFalse(new File("pt14.tmp").exists());
+			assertEquals("t100", readFile("pt14").getRecord(100).get("Title"));
+		}finally{
+			DataManager.exit();
+			new File("pt14").delete();
+			new File("pt14.log").delete();
+			new File("pt14.tmp").delete();
+		}
+	}
+	
+	@Test
+	public void groupCommitKeepsConcurrentInserts() throws InterruptedException{
+		final DataFile f = new DataFile("pt5", desc, true);
+		f.setGroupCommit(2, 64);
+		f.createPagedIndex("pt5i", "Year");
+		
+		try{
+			Thread threads[] = new Thread[4];
+			for(int t = 0; t < threads.length; t++){
+				final int base = t * 500;
+				threads[t] = new Thread(new Runnable(){
+					public void run(){
+						for(int j = base; j < base + 500; j++){
+							Map<String, String> r = new HashMap<String, String>();
+							r.put("Title", "t" + j);
+							r.put("Year", String.valueOf(1900 + (j % 100)));
+							f.insertRecord(r);
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for(int t = 0; t < threads.length; t++){
+				threads[t].join();
+			}
+			
+			// Nothing was dumped: the records and the index come back from the log
+			DataFile g = DataManager.restoreFile("pt5");
+			int count = 0;
+			Iterator<Integer> it = g.iterator();
+			while(it.hasNext()){
+				assertEquals(f.getRecord(it.next()), g.getRecord(count++));
+			}
+			assertEquals(2000, count);
+			
+			try{
+				g.mapIndex("pt5i");
+				fail("index was not restored from the log");
+			}catch(IllegalArgumentException e){
+			}
+		}finally{
+			DataManager.exit();
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void restoredFileDumpsAgain(){
+		DataFile f = populate("pt6", 2000);
+		f.createIndex("pt6i", "Year", 4);
+		f.dumpFile();
+		
+		try{
+			// Writing the restored index back out must not lose its nodes
+			DataFile g = DataManager.restoreFile("pt6");
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1950");
+			g.insertRecord(r);
+			DataManager.exit();
+			
+			DataFile h = DataManager.restoreFile("pt6");
+			assertEquals(r, h.getRecord(2000));
+			assertEquals(g.viewFile(), h.viewFile());
+		}finally{
+			DataManager.exit();
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void rebuiltFileKeepsRecordIds(){
+		DataFile f = populate("pt7", 3000);
+		
+		try{
+			Iterator<Integer> it = f.iterator();
+			while(it.hasNext()){
+				if(it.next() % 3 == 0){
+					it.remove();
+				}
+			}
+			f.rebuildFile();
+			f.dumpFile();
+			
+			DataFile g = DataManager.restoreFile("pt7");
+			for(int j = 0; j < 3000; j++){
+				assertEquals(j % 3 == 0 ? null : f.getRecord(j), g.getRecord(j));
+			}
+			assertEquals(2000, drain(g.iterator()).size());
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			assertEquals(3000, g.insertRecord(r));
+		}finally{
+			DataManager.exit();
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void columnarFileMatchesMapRecords(){
+		DataFile f = populate("pt8a", 3000);
+		DataFile c = new DataFile("pt8", desc, false, true);
+		
+		try{
+			for(int j = 0; j < 3000; j++){
+				c.insertRecord(f.getRecord(j));
+			}
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "\u00e9t\u00e9");
+			assertEquals(3000, c.insertRecord(new HashMap<String, String>()));
+			assertEquals(3001, c.insertRecord(r));
+			
+			Index i = c.createIndex("pt8.year", "Year");
+			assertEquals(30, drain(i.iterator("1951")).size());
+			
+			Iterator<Integer> it = c.iterator();
+			while(it.hasNext()){
+				if(it.next() % 2 == 0){
+					it.remove();
+				}
+			}
+			c.rebuildFile();
+			assertEquals(30, drain(i.iterator("1951")).size());
+			assertEquals(0, drain(i.iterator("1950")).size());
+			c.dumpFile();
+			
+			DataFile g = DataManager.restoreFile("pt8");
+			assertTrue(g.isColumnar());
+			for(int j = 0; j < 3000; j++){
+				assertEquals(j % 2 == 0 ? null : f.getRecord(j), g.getRecord(j));
+			}
+			assertEquals(r, g.getRecord(3001));
+		}finally{
+			DataManager.exit();
+			c.dropFile();
+			f.dropFile();
+		}
+	}
+	
+	@Test
+	public void compactionDropsDeletedRecordsAndLeaves() throws InterruptedException{
+		DataFile c = new DataFile("pt9", desc, false, true);
+		
+		try{
+			for(int j = 0; j < 6000; j++){
+				Map<String, String> r = new HashMap<String, String>();
+				r.put("Title", "t" + j);
+				r.put("Year", String.valueOf(1900 + (j % 100)));
+				c.insertRecord(r);
+			}
+			Index i = c.createPagedIndex("pt9i", "Year", 16);
+			
+			Iterator<Integer> it = c.iterator();
+			while(it.hasNext()){
+				if(it.next() % 3 != 0){
+					it.remove();
+				}
+			}
+			assertEquals(4000, c.getDeletedCount());
+			assertEquals(4000, i.getDeleteCount());
+			c.setCompactionRatio(0.2);
+			
+			long deadline = System.currentTimeMillis() + 10000;
+			while((c.getDeletedCount() > 0 || i.getDeleteCount() > 0) && System.currentTimeMillis() < deadline){
+				Thread.sleep(20);
+			}
+			assertEquals(0, c.getDeletedCount());
+			assertEquals(0, i.getDeleteCount());
+			
+			for(int j = 0; j < 6000; j++){
+				if(j % 3 == 0){
+					assertEquals("t" + j, c.getRecord(j).get("Title"));
+				}else{
+					assertEquals(null, c.getRecord(j));
+				}
+			}
+			assertEquals(20, drain(i.iterator("1950")).size());
+			assertEquals(2000, drain(i.rangeIterator(null, false, null, false)).size());
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1950");
+			int id = c.insertRecord(r);
+			assertEquals(6000, id);
+			assertEquals(21, drain(i.iterator("1950")).size());
+		}finally{
+			c.dropFile();
+		}
+	}
+	
+	@Test
+	public void compactionKeepsUpWithDeletes() throws InterruptedException{
+		DataFile c = new DataFile("pt10", desc, false, true);
+		
+		try{
+			for(int j = 0; j < 6000; j++){
+				Map<String, String> r = new HashMap<String, String>();
+				r.put("Title", "t" + j);
+				r.put("Year", String.valueOf(1900 + (j % 100)));
+				c.insertRecord(r);
+			}
+			Index i = c.createPagedIndex("pt10i", "Year", 16);
+			c.setCompactionRatio(0.2);
+			
+			// Pause now and then, so that passes run between the deletes
+			int deleted = 0;
+			Iterator<Integer> it = c.iterator();
+			while(it.hasNext()){
+				if(it.next() % 3 != 0){
+					it.remove();
+					if(++deleted % 200 == 0){
+						Thread.sleep(5);
+					}
+				}
+			}
+			
+			// A pass that ends while deletes still come in may leave some
+			// behind, but no more than the ratio of what the file and index
+			// hold
+			long deadline = System.currentTimeMillis() + 10000;
+			while((!belowRatio(c.getDeletedCount(), 2000, 0.2) || !belowRatio(i.getDeleteCount(), 2000, 0.2)) &&
+			      System.currentTimeMillis() < deadline){
+				Thread.sleep(20);
+			}
+			assertTrue(belowRatio(c.getDeletedCount(), 2000, 0.2));
+			assertTrue(belowRatio(i.getDeleteCount(), 2000, 0.2));
+			
+			for(int j = 0; j < 6000; j++){
+				if(j % 3 == 0){
+					assertEquals("t" + j, c.getRecord(j).get("Title"));
+				}else{
+					assertEquals(null, c.getRecord(j));
+				}
+			}
+			assertEquals(20, drain(i.iterator("1950")).size());
+			assertEquals(2000, drain(i.rangeIterator(null, false, null, false)).size());
+		}finally{
+			c.dropFile();
+		}
+	}
+	
+	private boolean belowRatio(int deleted, int live, double ratio){
+		return deleted <= ratio * (deleted + live);
+	}
+	
+	@Test
+	public void readersSeeRecordsWhileCompacting() throws InterruptedException{
+		final DataFile c = new DataFile("pt16", desc, false, true);
+		
+		try{
+			for(int j = 0; j < 12000; j++){
+				Map<String, String> r = new HashMap<String, String>();
+				r.put("Title", "t" + j);
+				r.put("Year", String.valueOf(1900 + (j % 100)));
+				c.insertRecord(r);
+			}
+			
+			// Readers take no lock, and look only at records that stay
+			final AtomicBoolean done = new AtomicBoolean(false);
+			final AtomicReference<String> failure = new AtomicReference<String>();
+			Thread readers[] = new Thread[2];
+			for(int t = 0; t < readers.length; t++){
+				readers[t] = new Thread(new Runnable(){
+					public void run(){
+						while(!done.get()){
+							for(int j = 0; j < 12000; j += 12){
+								String title = c.getRecord(j).get("Title");
+								if(!("t" + j).equals(title)){
+									failure.compareAndSet(null, j + ": " + title);
+								}
+							}
+						}
+					}
+				});
+				readers[t].start();
+			}
+			
+			// Each rebuild repacks every chunk under the readers
+			for(int k = 1; k < 12; k++){
+				Iterator<Integer> it = c.iterator();
+				while(it.hasNext()){
+					if(it.next() % 12 == k){
+						it.remove();
+					}
+				}
+				c.rebuildFile();
+			}
+			done.set(true);
+			for(int t = 0; t < readers.length; t++){
+				readers[t].join();
+			}
+			
+			assertNull(failure.get());
+			assertEquals(1000, drain(c.iterator()).size());
+		}finally{
+			c.dropFile();
+		}
+	}
+	
+	@Test
+	public void restoresFilesOfTheFirstFormat() throws IOException, ClassNotFoundException{
+		// df3 and test2 were written by the first version of DataFile
+		DataFile df3 = readFile("df3");
+		assertEquals(11, drain(df3.iterator()).size());
+		assertEquals("aahnsexmdxjnekzjtwof", df3.getRecord(0).get("Title"));
+		assertEquals("1965", df3.getRecord(0).get("Year"));
+		assertEquals(0, drain(readFile("test2").iterator()).size());
+		
+		// So was legacy.file, named pt11 when written, with an index over Year
+		// in memory and every tenth record deleted
+		Files.copy(Paths.get("legacy.file"), Paths.get("pt11"));
+		DataFile f = DataManager.restoreFile("pt11");
+		
+		try{
+			assertEquals(450, drain(f.iterator()).size());
+			assertEquals(null, f.getRecord(10));
+			assertEquals("t13", f.getRecord(13).get("Title"));
+			assertEquals("lookup pt11i (Year = 1913)", f.explain(Predicate.equal("Year", "1913")));
+			assertEquals(10, drain(f.query(Predicate.equal("Year", "1913"))).size());
+			
+			Map<String, String> r = new HashMap<String, String>();
+			r.put("Title", "new");
+			r.put("Year", "1913");
+			assertEquals(500, f.insertRecord(r));
+			assertEquals(11, drain(f.query(Predicate.equal("Year", "1913"))).size());
+			
+			// and is written back in the same form
+			f.dumpFile();
+			DataFile g = readFile("pt11");
+			assertEquals(451, drain(g.iterator()).size());
+			assertEquals(11, drain(g.query(Predicate.equal("Year", "1913"))).size());
+		}finally{
+			DataManager.exit();
+			f.dropFile();
+		}
+	}
+}